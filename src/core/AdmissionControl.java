@@ -0,0 +1,195 @@
+/**
+ * Decides, as each connection is accepted, whether to take it on.
+ * A connection is turned away when the server already runs as many
+ * sessions as it is allowed, when too many connections are still in
+ * their handshake, or when its address has used up its token bucket.
+ * Turning one away costs the acceptor a write and a close, and never
+ * a thread.
+ *
+ * Every address hashes to one of a fixed number of token buckets,
+ * so a flood from many addresses cannot grow the table; addresses
+ * which collide share a bucket. Each bucket is a single long, its
+ * last refill time above its tokens, updated by compare-and-set, and
+ * the gauges are striped, so deciding takes no lock.
+ *
+ * Options: --maxSessions=20000 --maxHandshakes=1000 --ipRate=50
+ *          --ipBurst=200 --handshakeTimeout=10000
+ *
+ * A limit of 0 turns it off. --ipRate is in new connections a second
+ * for each address, and --handshakeTimeout in milliseconds.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AdmissionControl
+{
+	// Verdicts
+	public static final int ADMITTED = 0;
+	public static final int BUSY = 1;
+	public static final int RATE_LIMITED = 2;
+
+	// Buckets hold thousandths of a token below the refill time
+	private static final int BUCKET_COUNT = 1 << 16;
+	private static final int TOKEN_BITS = 22;
+	private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+	private static final long TOKEN = 1000;
+
+	// Settings
+	private final int maxSessions;
+	private final int maxHandshakes;
+	private final long ratePerSecond;
+	private final long burst;
+	private final int handshakeTimeout;
+
+	// State
+	private final AtomicLongArray buckets;
+	private final LongAdder handshaking = new LongAdder();
+	private final long originNanos = System.nanoTime();
+
+	/**
+	 * Creates admission control with no limits, only a handshake timeout.
+	 */
+	public AdmissionControl()
+	{
+		this(0, 0, 0, 0, 10_000);
+	}
+
+	/**
+	 * Creates admission control from command line options.
+	 *
+	 * @param args the parsed options
+	 */
+	public AdmissionControl(Connect4Args args)
+	{
+		this(args.getInt("maxSessions", 20_000), args.getInt("maxHandshakes", 1000),
+				args.getInt("ipRate", 50), args.getInt("ipBurst", 200),
+				args.getInt("handshakeTimeout", 10_000));
+	}
+
+	/**
+	 * Creates admission control with the given limits, any of which
+	 * may be 0 for none.
+	 *
+	 * @param maxSessions the most sessions which may run at once
+	 * @param maxHandshakes the most connections which may be in their handshake at once
+	 * @param ipRate the connections a second each address may open, once its burst is spent
+	 * @param ipBurst the connections an address may open at once
+	 * @param handshakeTimeout the milliseconds a connection has to say what it wants
+	 */
+	public AdmissionControl(int maxSessions, int maxHandshakes, int ipRate, int ipBurst, int handshakeTimeout)
+	{
+		if(ipBurst * TOKEN > TOKEN_MASK)
+			throw new IllegalArgumentException("--ipBurst may be at most " + TOKEN_MASK / TOKEN);
+
+		this.maxSessions = maxSessions;
+		this.maxHandshakes = maxHandshakes;
+		this.ratePerSecond = ipRate;
+		this.burst = Math.max(ipBurst, 1) * TOKEN;
+		this.handshakeTimeout = handshakeTimeout;
+
+		buckets = (ipRate > 0) ? new AtomicLongArray(BUCKET_COUNT) : null;
+	}
+
+	/**
+	 * Decides whether to take on a newly accepted connection. An
+	 * admitted connection counts as in its handshake until
+	 * handshakeDone is called for it.
+	 *
+	 * @param address where the connection comes from
+	 * @param liveSessions the number of sessions running now
+	 * @return ADMITTED, BUSY or RATE_LIMITED
+	 */
+	public int admit(InetAddress address, long liveSessions)
+	{
+		if(maxSessions > 0 && liveSessions >= maxSessions)
+			return BUSY;
+
+		if(maxHandshakes > 0 && handshaking.sum() >= maxHandshakes)
+			return BUSY;
+
+		if(buckets != null && !takeToken(address))
+			return RATE_LIMITED;
+
+		handshaking.increment();
+		return ADMITTED;
+	}
+
+	/**
+	 * Marks an admitted connection's handshake over, however it ended.
+	 */
+	public void handshakeDone()
+	{
+		handshaking.decrement();
+	}
+
+	/**
+	 * Returns the number of admitted connections still in their handshake.
+	 *
+	 * @return the connections in their handshake
+	 */
+	public long getHandshaking()
+	{
+		return handshaking.sum();
+	}
+
+	/**
+	 * Returns how long a connection may take over its handshake.
+	 *
+	 * @return the handshake timeout in milliseconds, or 0 for none
+	 */
+	public int getHandshakeTimeout()
+	{
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Takes a token from an address's bucket, first adding what has
+	 * dripped in since it was last touched.
+	 *
+	 * @param address the address to charge
+	 * @return false if the bucket is empty
+	 */
+	private boolean takeToken(InetAddress address)
+	{
+		int index = spread(address.hashCode()) & (BUCKET_COUNT - 1);
+
+		// Offset so an untouched bucket, at time 0, starts out full
+		long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - originNanos) + TimeUnit.DAYS.toMillis(1);
+
+		while(true)
+		{
+			long state = buckets.get(index);
+			long last = state >>> TOKEN_BITS;
+			long tokens = state & TOKEN_MASK;
+
+			// A millisecond drips in a thousandth of a token per connection a second
+			if(now > last)
+				tokens = Math.min(burst, tokens + (now - last) * ratePerSecond);
+
+			if(tokens < TOKEN)
+				return false;
+
+			if(buckets.compareAndSet(index, state, (Math.max(now, last) << TOKEN_BITS) | (tokens - TOKEN)))
+				return true;
+		}
+	}
+
+	/**
+	 * Mixes an address's hash, so neighbouring addresses land far apart.
+	 *
+	 * @param hash the address's hash code
+	 * @return the mixed hash
+	 */
+	private static int spread(int hash)
+	{
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,607 @@
+/**
+ * Handles a single session of Connect4, either between
+ * two players or between a player and the computer.
+ * Sessions are started by the server once their players
+ * have been matched, or by a client hosting a game against
+ * the computer offline. Players are reached through a
+ * Connect4Transport, so a session runs the same over sockets
+ * as it does entirely in memory. With a MoveLog set, every
+ * move is logged before either player hears of it.
+ *
+ * A player who asked to be resumable is sent a resume token
+ * as two ints when the session begins, and if their connection
+ * drops the session waits for them to return with it rather than
+ * ending. A returning player is sent the whole game at once:
+ * RESUMED, their player number, the position as PositionCodec
+ * sends it and the status.
+ *
+ * Spectators are told of each move through a SpectatorFeed,
+ * which never makes the session wait. On the server, players are
+ * reached through ChannelTransports, whose flushes never wait either,
+ * so a player who stops reading cannot hold up their opponent.
+ *
+ * With a MoveClock set, a player who runs out of time loses the
+ * game on time: both players are sent TIMEOUT and the number of
+ * the player who ran out, and the game ends with TIMEOUT.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.9
+ */
+package core;
+
+import java.io.*;
+import java.net.*;
+
+// Define the thread class for handling a new session for two players
+// OR a game against the computer
+class BeginASession implements Runnable, Connect4Constants
+{
+	// How long a dropped player has to return
+	static final long RESUME_GRACE_MILLIS = 60_000;
+
+	// Links to Both Players; the second is null when it is the computer,
+	// and either is null while its player is away
+	private final Connect4Transport[] players = new Connect4Transport[2];
+	private final Connect4ComputerPlayer comp;
+
+	// Create and initialize cells
+	private final Connect4 game;
+
+	// Record Type and Outcome for Metrics
+	private final int gameType;
+	private int result = CONTINUE;
+	private final Connect4Metrics metrics;
+
+	// Record the Game for the Archive
+	private GameArchive archive;
+	private final byte[] moves = new byte[MAXMOVES];
+	private final long startMillis = System.currentTimeMillis();
+
+	// Log Moves for Recovery After a Crash
+	private MoveLog moveLog;
+	private long sessionId;
+	private final boolean recovered;
+
+	// Let Dropped Players Return
+	private SessionRegistry registry;
+	private final boolean[] resumable = new boolean[2];
+	private final long[] awaySince = new long[2];
+	private boolean finished;
+
+	// Let Spectators Watch
+	private SpectatorFeed feed;
+
+	// Time Each Player's Moves
+	private MoveClock clock;
+
+	/**
+	 * Opens a new game between two players, to be run on its own thread.
+	 *
+	 * @param player1 the link to the first player
+	 * @param player2 the link to the second player
+	 * @param game the board to play upon
+	 * @param metrics the metrics to record the game in
+	 */
+	public BeginASession(Connect4Transport player1, Connect4Transport player2, Connect4 game,
+			Connect4Metrics metrics)
+	{
+		this(player1, player2, null, game, PVP_GAME, metrics, false);
+	}
+
+	/**
+	 * Opens a new game between a player and the computer, to be run
+	 * on its own thread.
+	 *
+	 * @param player1 the link to the player
+	 * @param comp the computer, playing upon the same board
+	 * @param game the board to play upon
+	 * @param metrics the metrics to record the game in
+	 */
+	public BeginASession(Connect4Transport player1, Connect4ComputerPlayer comp, Connect4 game,
+			Connect4Metrics metrics)
+	{
+		this(player1, null, comp, game, AI_GAME, metrics, false);
+	}
+
+	/**
+	 * Carries on a game rebuilt from the move log. Its players are
+	 * all away until they return through the registry.
+	 *
+	 * @param recoveredGame the game as the log last held it
+	 * @param metrics the metrics to record the game in
+	 * @param moveLog the log the game carries on being written to
+	 * @param registry the registry its players return through
+	 */
+	BeginASession(MoveLog.LiveGame recoveredGame, Connect4Metrics metrics, MoveLog moveLog,
+			SessionRegistry registry)
+	{
+		this(null, null, null, recoveredGame.replay(), recoveredGame.gameType, metrics, true);
+
+		this.moveLog = moveLog;
+		this.registry = registry;
+		sessionId = recoveredGame.sessionId;
+
+		for(int i = 0; i < recoveredGame.getMoveCount(); i++)
+			moves[i] = (byte) recoveredGame.getMove(i);
+
+		resumable[0] = true;
+		resumable[1] = (gameType == PVP_GAME);
+		awaySince[0] = awaySince[1] = startMillis;
+	}
+
+	private BeginASession(Connect4Transport player1, Connect4Transport player2,
+			Connect4ComputerPlayer comp, Connect4 game, int gameType, Connect4Metrics metrics,
+			boolean recovered)
+	{
+		players[0] = player1;
+		players[1] = player2;
+		this.game = game;
+		this.comp = (comp == null && gameType == AI_GAME) ? new Connect4ComputerPlayer(game) : comp;
+		this.gameType = gameType;
+		this.metrics = metrics;
+		this.recovered = recovered;
+
+		metrics.gameStarted(gameType);
+	}
+
+	/**
+	 * Has the game archived once it is finished.
+	 *
+	 * @param archive the archive to add the game to
+	 */
+	void setArchive(GameArchive archive)
+	{
+		this.archive = archive;
+	}
+
+	/**
+	 * Has every move written ahead to a log before it is acknowledged.
+	 *
+	 * @param moveLog the log to write moves to
+	 */
+	void setMoveLog(MoveLog moveLog)
+	{
+		this.moveLog = moveLog;
+	}
+
+	/**
+	 * Lets the players who asked for it return after their
+	 * connection drops. Each is sent a token when the session begins.
+	 *
+	 * @param registry the registry players return through
+	 * @param player1 true if player 1 may return
+	 * @param player2 true if player 2 may return
+	 */
+	void setResumable(SessionRegistry registry, boolean player1, boolean player2)
+	{
+		this.registry = registry;
+		resumable[0] = player1;
+		resumable[1] = player2 && comp == null;
+	}
+
+	/**
+	 * Has every move published to the game's spectators.
+	 *
+	 * @param feed the feed spectators watch the game through
+	 */
+	void setFeed(SpectatorFeed feed)
+	{
+		this.feed = feed;
+	}
+
+	/**
+	 * Puts the players on the clock. Only players are timed, never
+	 * the computer.
+	 *
+	 * @param clock the game's clocks
+	 */
+	void setClock(MoveClock clock)
+	{
+		this.clock = clock;
+	}
+
+	/**
+	 * Runs the Session, taking turns until the game is won, drawn
+	 * or abandoned. Each player is told of every move in the same
+	 * order: CONTINUE, the column, the row, then the game's status.
+	 */
+	public void run()
+	{
+		try
+		{
+			begin();
+
+			int turn = game.getTurnCounter() % 2;
+
+			// Continue to Serve, Determine, and Report Game Status
+			while (true)
+			{
+				int column;
+				long moveStart;
+
+				if(comp != null && turn == 1)
+				{
+					// *** COMPUTER TURN *** //
+					moveStart = System.nanoTime();
+
+					// The computer tries its markers on the shared board, which
+					// a resume must not snapshot halfway through
+					synchronized(this)
+					{
+						column = comp.makeMove();
+					}
+
+					metrics.aiMoveMade(moveStart);
+				}
+				else
+				{
+					// *** PLAYER TURN *** //
+					startClock(turn);
+					column = readMove(turn);
+					moveStart = System.nanoTime();
+				}
+
+				play(turn, column);
+				metrics.movePlayed(moveStart);
+
+				if(result != CONTINUE)
+					return;
+
+				turn = 1 - turn;
+			}
+		}
+		catch(EOFException | SocketException | InterruptedIOException ex)
+		{
+			// A player left before the game was over
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				finished = true;
+			}
+
+			if(clock != null)
+				clock.stop();
+
+			// Game is over, one way or another
+			metrics.gameFinished(gameType, result);
+
+			if(registry != null)
+				registry.remove(sessionId);
+
+			if(feed != null)
+				feed.end();
+
+			if(moveLog != null && sessionId != 0)
+				moveLog.end(sessionId, result);
+
+			// Only finished games are archived
+			if(archive != null && result != CONTINUE)
+				archive.append(gameType, result, startMillis, System.currentTimeMillis(), moves,
+						game.getTurnCounter());
+
+			closePlayers();
+		}
+	}
+
+	/**
+	 * Takes a player back after their connection dropped, sending
+	 * them the game as it stands. Any link they still had is closed.
+	 *
+	 * @param seat the player's seat, 0 or 1
+	 * @param link the player's new link
+	 * @return false if the game is already over
+	 * @throws IOException thrown if the snapshot cannot be sent
+	 */
+	synchronized boolean resume(int seat, Connect4Transport link) throws IOException
+	{
+		if(finished || result == TIMEOUT)
+			return false;
+
+		link.writeInt(RESUMED);
+		link.writeInt(seat == 0 ? PLAYER1 : PLAYER2);
+		PositionCodec.write(game, link);
+		link.writeInt(result);
+		link.flush();
+
+		Connect4Transport old = players[seat];
+		players[seat] = link;
+
+		// A read still waiting on the old link fails, and moves to this one
+		if(old != null)
+			old.close();
+
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Starts the session, giving each resumable player their token
+	 * and telling player one to begin. A game carried on from the
+	 * move log has already begun.
+	 *
+	 * @throws IOException thrown if the start cannot be logged
+	 */
+	private synchronized void begin() throws IOException
+	{
+		if(recovered)
+			return;
+
+		if(moveLog != null)
+			sessionId = moveLog.start(gameType);
+		else if(registry != null)
+			sessionId = registry.nextSessionId();
+
+		for(int seat = 0; seat < 2; seat++)
+		{
+			Connect4Transport player = players[seat];
+
+			if(player == null || (seat == 1 && !resumable[seat]))
+				continue;
+
+			try
+			{
+				if(resumable[seat])
+				{
+					long token = registry.register(this, sessionId, seat);
+					player.writeInt((int) (token >>> 32));
+					player.writeInt((int) token);
+				}
+
+				// Notify Player One to Begin The Game
+				if(seat == 0)
+					player.writeInt(1);
+
+				player.flush();
+			}
+			catch(IOException ex)
+			{
+				drop(seat, player, ex);
+			}
+		}
+	}
+
+	/**
+	 * Makes a move and tells every player present of it. The move is
+	 * logged before anyone hears of it.
+	 *
+	 * @param turn the seat which moved
+	 * @param column the column played
+	 * @throws IOException thrown if the move cannot be logged, or a
+	 *         player who may not return cannot be told
+	 */
+	private synchronized void play(int turn, int column) throws IOException
+	{
+		// The move came too late
+		if(result == TIMEOUT)
+			throw new EOFException("Player " + (turn + 1) + " ran out of time");
+
+		if(clock != null)
+			clock.stop();
+
+		// Find Row of Move, then Make the Move
+		int rowOfMove = game.getLowestOpenRow(column);
+		game.placeMarker(column);
+		moves[game.getTurnCounter() - 1] = (byte) column;
+
+		// Check for Wins
+		if(game.checkForWin(column))
+			result = (turn == 0) ? PLAYER1_WON : PLAYER2_WON;
+		else if(game.getTurnCounter() == MAXMOVES)
+			result = DRAW;
+
+		// The move is durable before anyone is told of it
+		if(moveLog != null)
+			moveLog.move(sessionId, column);
+
+		// Update Boards
+		for(int seat = 0; seat < 2; seat++)
+		{
+			Connect4Transport player = players[seat];
+
+			if(player == null)
+				continue;
+
+			try
+			{
+				player.writeInt(CONTINUE);
+				player.writeInt(column);
+				player.writeInt(rowOfMove);
+				player.writeInt(result);
+				player.flush();
+			}
+			catch(IOException ex)
+			{
+				drop(seat, player, ex);
+			}
+		}
+
+		if(feed != null)
+			feed.moved(column, rowOfMove, result);
+	}
+
+	/**
+	 * Starts a player's clock for the move they are about to make.
+	 *
+	 * @param seat the player to move
+	 */
+	private void startClock(int seat)
+	{
+		if(clock == null)
+			return;
+
+		int moveNumber = game.getTurnCounter();
+		clock.start(seat, () -> timeOut(seat, moveNumber));
+	}
+
+	/**
+	 * Ends the game once a player has run out of time, telling both
+	 * players. Runs on the clock's thread, so it never waits on a
+	 * player; closing the link of the player who ran out wakes the
+	 * session, which is waiting on their move.
+	 *
+	 * @param seat the player who ran out
+	 * @param moveNumber the move they were to make
+	 */
+	private synchronized void timeOut(int seat, int moveNumber)
+	{
+		// The move was made just in time
+		if(finished || result != CONTINUE || game.getTurnCounter() != moveNumber)
+			return;
+
+		result = TIMEOUT;
+
+		for(Connect4Transport player : players)
+		{
+			if(player == null)
+				continue;
+
+			try
+			{
+				player.writeInt(TIMEOUT);
+				player.writeInt(seat == 0 ? PLAYER1 : PLAYER2);
+				player.flush();
+			}
+			catch(IOException ex)
+			{
+				// They are gone anyway
+			}
+		}
+
+		if(feed != null)
+			feed.timedOut(seat == 0 ? PLAYER1 : PLAYER2);
+
+		if(players[seat] != null)
+			players[seat].close();
+
+		// A session waiting for the player to return gives up
+		notifyAll();
+	}
+
+	/**
+	 * Reads a valid move from a player, waiting for them to return
+	 * if their connection drops.
+	 *
+	 * @param seat the player's seat
+	 * @return a valid column
+	 * @throws IOException thrown if the player is gone for good
+	 */
+	private int readMove(int seat) throws IOException
+	{
+		while(true)
+		{
+			Connect4Transport player = awaitPlayer(seat);
+
+			try
+			{
+				return readValidMove(player);
+			}
+			catch(IOException ex)
+			{
+				drop(seat, player, ex);
+			}
+		}
+	}
+
+	/**
+	 * Reads a player's move, answering INVALID until the player
+	 * chooses a column which is not full.
+	 *
+	 * @param player the player to move
+	 * @return a valid column
+	 * @throws IOException thrown if communication with the player fails
+	 */
+	private int readValidMove(Connect4Transport player) throws IOException
+	{
+		int column = player.readInt();
+
+		while(!game.isValidMove(column))
+		{
+			metrics.invalidMove();
+			player.writeInt(INVALID);
+			player.flush();
+			column = player.readInt();
+		}
+
+		return column;
+	}
+
+	/**
+	 * Returns a player's link, waiting out the rest of their grace
+	 * period if they are away.
+	 *
+	 * @param seat the player's seat
+	 * @return the player's link
+	 * @throws IOException thrown if they do not return in time
+	 */
+	private synchronized Connect4Transport awaitPlayer(int seat) throws IOException
+	{
+		while(players[seat] == null)
+		{
+			if(result == TIMEOUT)
+				throw new EOFException("Player " + (seat + 1) + " ran out of time");
+
+			long left = awaySince[seat] + RESUME_GRACE_MILLIS - System.currentTimeMillis();
+
+			if(left <= 0)
+				throw new EOFException("Player " + (seat + 1) + " did not return");
+
+			try
+			{
+				wait(left);
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		return players[seat];
+	}
+
+	/**
+	 * Deals with a player's link failing. A resumable player is
+	 * marked away; for anyone else the failure ends the game.
+	 *
+	 * @param seat the player's seat
+	 * @param player the link which failed
+	 * @param ex why it failed
+	 * @throws IOException the failure, if the player may not return
+	 */
+	private synchronized void drop(int seat, Connect4Transport player, IOException ex) throws IOException
+	{
+		// The link was closed because the player ran out of time
+		if(result == TIMEOUT)
+			throw ex;
+
+		// The player has already returned on a new link
+		if(players[seat] != player)
+			return;
+
+		players[seat] = null;
+		player.close();
+
+		if(!resumable[seat])
+			throw ex;
+
+		awaySince[seat] = System.currentTimeMillis();
+	}
+
+	/**
+	 * Closes every player's link.
+	 */
+	private synchronized void closePlayers()
+	{
+		for(Connect4Transport player : players)
+		{
+			if(player != null)
+				player.close();
+		}
+	}
+}
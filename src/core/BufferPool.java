@@ -0,0 +1,68 @@
+/**
+ * A pool of buffers of one size, such as the small buffers shared
+ * by the links of a ChannelPoller. A link holds a buffer only
+ * while it has bytes in it, between a read and the ints taken
+ * from it or between a write and its flush, so however many links
+ * are open only the few in the middle of a move hold one. Buffers
+ * handed back past the pool's limit are left to be collected.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+class BufferPool
+{
+	private final int bufferSize;
+	private final int maxFree;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+	/**
+	 * Creates an empty pool.
+	 *
+	 * @param bufferSize the size of each buffer, in bytes
+	 * @param maxFree the most buffers to keep once handed back
+	 */
+	BufferPool(int bufferSize, int maxFree)
+	{
+		this.bufferSize = bufferSize;
+		this.maxFree = maxFree;
+	}
+
+	/**
+	 * Takes a cleared buffer, making one if none is free.
+	 *
+	 * @return a buffer ready to be filled
+	 */
+	ByteBuffer take()
+	{
+		ByteBuffer buffer;
+
+		synchronized(this)
+		{
+			buffer = free.poll();
+		}
+
+		return (buffer != null) ? buffer : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Hands a buffer back. It must not be used again by whoever
+	 * gave it.
+	 *
+	 * @param buffer the buffer to hand back
+	 */
+	void give(ByteBuffer buffer)
+	{
+		buffer.clear();
+
+		synchronized(this)
+		{
+			if(free.size() < maxFree)
+				free.push(buffer);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Waits on the channels of many ChannelTransports from a single
+ * thread: it wakes their readers once there is something to read,
+ * and sends their queued bytes as their sockets find room. Once a
+ * second it looks over the links which are backed up, and any which
+ * has been so for longer than STALL_MILLIS is disconnected, so a
+ * client who stops reading is let go rather than held forever.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ChannelPoller implements Runnable
+{
+	// How long a link may stay backed up before it is disconnected
+	static final long STALL_MILLIS = 10_000;
+	private static final long SWEEP_MILLIS = 1_000;
+
+	// Every link's reads and writes fit many times over in one buffer
+	private static final int BUFFER_SIZE = 256;
+	private static final int MAX_FREE_BUFFERS = 1024;
+
+	private final Selector selector;
+	private final Connect4Metrics metrics;
+
+	// Links whose interest has changed, handed to the poller's thread
+	private final Queue<ChannelTransport> changes = new ConcurrentLinkedQueue<>();
+
+	// Links with bytes queued, touched only by the poller's thread
+	private final Set<ChannelTransport> queued = new HashSet<>();
+
+	// Lent to links while they have bytes in hand
+	private final BufferPool buffers = new BufferPool(BUFFER_SIZE, MAX_FREE_BUFFERS);
+
+	/**
+	 * Opens a poller and starts its thread.
+	 *
+	 * @param name the name of the poller's thread
+	 * @param metrics the metrics to count disconnected clients in
+	 * @throws IOException thrown if the selector cannot be opened
+	 */
+	public ChannelPoller(String name, Connect4Metrics metrics) throws IOException
+	{
+		this.metrics = metrics;
+
+		selector = Selector.open();
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Has the poller look again at what a link waits for.
+	 *
+	 * @param link the link whose interest may have changed
+	 */
+	void update(ChannelTransport link)
+	{
+		changes.add(link);
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the pool the poller's links borrow their buffers from.
+	 *
+	 * @return the poller's buffer pool
+	 */
+	BufferPool getBuffers()
+	{
+		return buffers;
+	}
+
+	/**
+	 * Disconnects a client who has fallen too far behind.
+	 *
+	 * @param link the client's link
+	 */
+	void dropStalled(ChannelTransport link)
+	{
+		if(!link.isClosed())
+		{
+			link.close();
+			metrics.slowClientDropped();
+		}
+	}
+
+	/**
+	 * Stops the poller. Its links stay open, but nothing more is
+	 * read from or sent to them.
+	 */
+	public void close()
+	{
+		try
+		{
+			selector.close();
+		}
+		catch(IOException ex)
+		{
+			// Closing anyway
+		}
+	}
+
+	/**
+	 * Waits on links until the poller is closed.
+	 */
+	@Override
+	public void run()
+	{
+		long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+
+		try
+		{
+			while(selector.isOpen())
+			{
+				selector.select(SWEEP_MILLIS);
+
+				ChannelTransport link;
+
+				while((link = changes.poll()) != null)
+					apply(link);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					link = (ChannelTransport) key.attachment();
+
+					try
+					{
+						if(key.isReadable())
+							link.readable();
+
+						if(key.isWritable())
+							link.writable();
+					}
+					catch(CancelledKeyException | IOException ex)
+					{
+						// The client has gone away; their reader finds out
+						link.close();
+					}
+
+					apply(link);
+				}
+
+				long now = System.currentTimeMillis();
+
+				if(now >= nextSweep)
+				{
+					sweep(now);
+					nextSweep = now + SWEEP_MILLIS;
+				}
+			}
+		}
+		catch(ClosedSelectorException ex)
+		{
+			// The poller was closed
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets a link's key to wait on what the link now wants,
+	 * registering its channel the first time.
+	 *
+	 * @param link the link to update
+	 */
+	private void apply(ChannelTransport link)
+	{
+		int ops = link.isClosed() ? 0 : link.interestOps();
+
+		try
+		{
+			if(link.isClosed())
+			{
+				if(link.key != null)
+					link.key.cancel();
+			}
+			else if(link.key == null)
+			{
+				if(ops != 0)
+					link.key = link.getChannel().register(selector, ops, link);
+			}
+			else
+			{
+				link.key.interestOps(ops);
+			}
+		}
+		catch(ClosedChannelException | CancelledKeyException ex)
+		{
+			// Closed while the change was waiting
+			ops = 0;
+		}
+
+		if((ops & SelectionKey.OP_WRITE) != 0)
+			queued.add(link);
+		else
+			queued.remove(link);
+	}
+
+	/**
+	 * Disconnects every link which has been backed up too long.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	private void sweep(long now)
+	{
+		for(ChannelTransport link : new ArrayList<>(queued))
+		{
+			if(link.getQueue().backedUpFor(now) > STALL_MILLIS)
+			{
+				dropStalled(link);
+				apply(link);
+			}
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * A transport over a socket channel in non-blocking mode, as used
+ * by the server. Flushing never waits: what the socket will not take
+ * at once is left in the link's OutboundQueue for its poller to send
+ * as room appears, so a player who stops reading never holds up the
+ * session or anyone else in it. While a player's queue is backed up
+ * nothing more is read from them, and if it stays backed up too long,
+ * or passes its limit, the poller disconnects them.
+ *
+ * Reads wait on the poller too, rather than on the socket, since a
+ * non-blocking channel cannot be read in the blocking way.
+ *
+ * A link holds no buffer of its own while idle. It borrows one from
+ * the poller's BufferPool to read into, handing it back once every
+ * int read has been taken, and another to write into, handing it
+ * back once flushed, so a waiting player costs only the link itself.
+ * Whatever a link still holds when it closes, or fails, is handed
+ * back as it closes.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+public class ChannelTransport implements Connect4Transport
+{
+	private final SocketChannel channel;
+	private final ChannelPoller poller;
+	private final BufferPool buffers;
+
+	// Read ahead, and written since the last flush, while there are any
+	private ByteBuffer in, out;
+	private final OutboundQueue queue = new OutboundQueue();
+
+	// Handed between the link's reader and its poller
+	private boolean wantRead, readReady, closed;
+
+	// Touched only by the poller's thread
+	SelectionKey key;
+
+	/**
+	 * Creates a transport over a connected channel, which is switched
+	 * to non-blocking mode and closed when the transport is.
+	 *
+	 * @param channel the connected channel
+	 * @param poller the poller which waits on the channel
+	 * @throws IOException thrown if the channel cannot be made non-blocking
+	 */
+	public ChannelTransport(SocketChannel channel, ChannelPoller poller) throws IOException
+	{
+		this.channel = channel;
+		this.poller = poller;
+
+		buffers = poller.getBuffers();
+		channel.configureBlocking(false);
+	}
+
+	@Override
+	public synchronized int readInt() throws IOException
+	{
+		while(in == null || in.remaining() < Integer.BYTES)
+			fill();
+
+		int value = in.getInt();
+
+		if(!in.hasRemaining())
+		{
+			buffers.give(in);
+			in = null;
+		}
+
+		return value;
+	}
+
+	@Override
+	public synchronized void writeInt(int value) throws IOException
+	{
+		if(closed)
+			throw new EOFException("Connection closed");
+
+		if(out != null && out.remaining() < Integer.BYTES)
+			flush();
+
+		if(out == null)
+			out = buffers.take();
+
+		out.putInt(value);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		if(closed)
+			throw new EOFException("Connection closed");
+
+		if(out == null)
+			return;
+
+		out.flip();
+
+		try
+		{
+			if(!queue.send(out, channel))
+			{
+				poller.dropStalled(this);
+				throw new SocketException("Client fell too far behind");
+			}
+		}
+		catch(IOException ex)
+		{
+			throw failure(ex);
+		}
+		finally
+		{
+			// What the socket would not take was copied to the queue,
+			// unless a stalled link's close has handed the buffer back
+			if(out != null)
+			{
+				buffers.give(out);
+				out = null;
+			}
+		}
+
+		if(!queue.isEmpty())
+			poller.update(this);
+	}
+
+	@Override
+	public void close()
+	{
+		synchronized(this)
+		{
+			if(closed)
+				return;
+
+			closed = true;
+			notifyAll();
+
+			// Reads and writes hold the lock, so neither buffer is in use
+			if(in != null)
+				buffers.give(in);
+
+			if(out != null)
+				buffers.give(out);
+
+			in = out = null;
+		}
+
+		// Closing the channel cancels its key, so the poller need only
+		// hear of it if the link is on its list of queues to send
+		StreamTransport.closeQuietly(channel);
+
+		if(!queue.isEmpty())
+			poller.update(this);
+	}
+
+	/**
+	 * Reads whatever has arrived, waiting on the poller if nothing
+	 * has. Nothing is read while the player's queue is backed up.
+	 *
+	 * @throws IOException thrown if the connection fails or is closed
+	 */
+	private void fill() throws IOException
+	{
+		awaitDrained();
+
+		int count;
+
+		if(in == null)
+			in = buffers.take();
+		else
+			in.compact();
+
+		try
+		{
+			count = channel.read(in);
+		}
+		catch(IOException ex)
+		{
+			throw failure(ex);
+		}
+		finally
+		{
+			in.flip();
+		}
+
+		if(count < 0)
+			throw new EOFException("Connection closed");
+
+		if(count == 0)
+		{
+			// Nothing is held while waiting, which may be for a long time
+			if(!in.hasRemaining())
+			{
+				buffers.give(in);
+				in = null;
+			}
+
+			awaitReadable();
+		}
+	}
+
+	/**
+	 * Waits for the poller to find the channel readable.
+	 *
+	 * @throws IOException thrown if the link is closed or the wait interrupted
+	 */
+	private synchronized void awaitReadable() throws IOException
+	{
+		wantRead = true;
+		readReady = false;
+		poller.update(this);
+
+		while(!readReady && !closed)
+			await();
+
+		if(closed)
+			throw new EOFException("Connection closed");
+	}
+
+	/**
+	 * Waits while the player's queue is backed up.
+	 *
+	 * @throws IOException thrown if the link is closed or the wait interrupted
+	 */
+	private synchronized void awaitDrained() throws IOException
+	{
+		while(queue.isBackedUp() && !closed)
+			await();
+
+		if(closed)
+			throw new EOFException("Connection closed");
+	}
+
+	/**
+	 * Waits to be woken by the poller, or by the link closing.
+	 *
+	 * @throws InterruptedIOException thrown if interrupted while waiting
+	 */
+	private void await() throws InterruptedIOException
+	{
+		try
+		{
+			wait();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Called by the poller once the channel is readable.
+	 */
+	synchronized void readable()
+	{
+		wantRead = false;
+		readReady = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the poller once the channel can be written, to send
+	 * as much of the queue as it will take.
+	 *
+	 * @throws IOException thrown if the channel fails
+	 */
+	void writable() throws IOException
+	{
+		queue.drainTo(channel);
+
+		if(!queue.isBackedUp())
+		{
+			synchronized(this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns what the poller should wait on the channel for.
+	 *
+	 * @return the selection key's interest set
+	 */
+	synchronized int interestOps()
+	{
+		return (wantRead ? SelectionKey.OP_READ : 0) | (queue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Returns the channel underneath this transport.
+	 *
+	 * @return the connected channel
+	 */
+	SocketChannel getChannel()
+	{
+		return channel;
+	}
+
+	/**
+	 * Returns the bytes this link has waiting to be sent.
+	 *
+	 * @return the link's outbound queue
+	 */
+	OutboundQueue getQueue()
+	{
+		return queue;
+	}
+
+	/**
+	 * Tells whether the link has been closed.
+	 *
+	 * @return true once closed
+	 */
+	synchronized boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Turns a channel's failure into the exceptions sessions expect
+	 * of a socket: EOFException once closed, SocketException otherwise.
+	 *
+	 * @param ex the channel's failure
+	 * @return the exception to throw
+	 */
+	private static IOException failure(IOException ex)
+	{
+		if(ex instanceof ClosedChannelException)
+			return new EOFException("Connection closed");
+
+		if(ex instanceof SocketException || ex instanceof EOFException)
+			return ex;
+
+		SocketException failure = new SocketException(ex.getMessage());
+		failure.initCause(ex);
+		return failure;
+	}
+}
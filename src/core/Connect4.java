@@ -5,20 +5,59 @@
  * methods necessary to place tokens, check for winners,
  * etc. 
  * 
+ * The board is kept as two bitboards, one long for each
+ * player's markers, with cell (row, column) at bit
+ * row * COLUMNS + column, so a board costs a few dozen bytes
+ * however many games are held at once. A win is found by
+ * shifting the mover's bitboard along each direction.
+ * 
  * @author Jonathan (Jack) MacArthur
- * @version 1.4
+ * @version 1.5
  */
 
 package core;
 
 public class Connect4 implements Connect4Constants
 {
+	// Markers, as found on the board
+	private static final String X = "X", O = "O", EMPTY = " ";
+	
+	// The cells of each column, and the cells a line of four may start from
+	private static final long[] COLUMN_CELLS = new long[COLUMNS];
+	private static final long ACROSS_STARTS, DOWN_STARTS, DOWN_RIGHT_STARTS, DOWN_LEFT_STARTS;
+	
+	static
+	{
+		long across = 0, downLeft = 0;
+		
+		for(int row = 0; row < ROWS; row++)
+		{
+			for(int column = 0; column < COLUMNS; column++)
+			{
+				long cell = 1L << (row * COLUMNS + column);
+				COLUMN_CELLS[column] |= cell;
+				
+				if(column <= COLUMNS - 4)
+					across |= cell;
+				
+				if(column >= 3)
+					downLeft |= cell;
+			}
+		}
+		
+		// Lines running off the bottom find no cells there
+		ACROSS_STARTS = across;
+		DOWN_STARTS = ~0L;
+		DOWN_RIGHT_STARTS = across;
+		DOWN_LEFT_STARTS = downLeft;
+	}
+	
 	// Necessary Variables
 	private int turnCounter;
-	private String[][] gameBoard;
+	private long xCells, oCells;
 	
 	private int lastMoveMade, lastMoveComputerMade = -1;
-	private String lastMarkerPlaced;
+	private boolean xPlacedLast;
 	private boolean canWinHoriz, canWinVert, horizIsClose;
 	
 	/**
@@ -26,20 +65,25 @@ public class Connect4 implements Connect4Constants
 	 */
 	public Connect4()
 	{
-		// Player Turn
+		// Player Turn, with "O" as the last marker so "X" goes first
 		turnCounter = 0;
-		
-		// Last Marker Placed
-		lastMarkerPlaced = "O";
-		
-		// New Game Board
-		gameBoard = new String[ROWS][COLUMNS];
-		
-		for(int i = 0; i < ROWS; i++)
-		{
-			for(int j = 0; j < COLUMNS; j++)
-				gameBoard[i][j] = " ";
-		}
+		xPlacedLast = false;
+	}
+	
+	/**
+	 * Constructor for a board in the same position as another,
+	 * which can then be played on without changing the original.
+	 * 
+	 * @param other the board to copy
+	 */
+	public Connect4(Connect4 other)
+	{
+		turnCounter = other.turnCounter;
+		xCells = other.xCells;
+		oCells = other.oCells;
+		lastMoveMade = other.lastMoveMade;
+		lastMoveComputerMade = other.lastMoveComputerMade;
+		xPlacedLast = other.xPlacedLast;
 	}
 	
 	/**
@@ -51,20 +95,8 @@ public class Connect4 implements Connect4Constants
 	 */
 	public int getLowestOpenRow(int column)
 	{
-		// Final indexed row of board
-		int finalRow = ROWS - 1;
-		int nextOpenRow = finalRow;
-		
-		// While the lowest row is filled, keep moving up
-		while(gameBoard[nextOpenRow][column] != " ")
-		{
-			nextOpenRow--;
-			
-			if(nextOpenRow == -1)
-				break;
-		}
-		
-		return nextOpenRow;
+		// Columns fill from the bottom, so count what is already there
+		return ROWS - 1 - getHeight(column);
 	}
 	
 	/**
@@ -94,18 +126,18 @@ public class Connect4 implements Connect4Constants
 	public int placeMarker(int column)
 	{
 		int openRow = getLowestOpenRow(column);
-		String lastMark = get_lastMarkerPlaced();
 		
-		if(lastMark.equals("O"))
-		{
-			gameBoard[openRow][column] = "X";
-			lastMarkerPlaced = "X";
-		}
+		if(openRow < 0)
+			throw new IllegalArgumentException("Column " + column + " is full");
+		
+		long cell = 1L << (openRow * COLUMNS + column);
+		
+		if(!xPlacedLast)
+			xCells |= cell;
 		else
-		{
-			gameBoard[openRow][column] = "O";
-			lastMarkerPlaced = "O";
-		}
+			oCells |= cell;
+		
+		xPlacedLast = !xPlacedLast;
 		
 		lastMoveMade = column;
 		turnCounter++;
@@ -114,15 +146,19 @@ public class Connect4 implements Connect4Constants
 	}
 	
 	/**
-	 * Removes a previously placed marker from the board.
+	 * Removes a previously placed marker from the board,
+	 * taking back the turn it used.
 	 * 
 	 * @param column column from which to remove marker
 	 */
 	public void removeMarker(int column)
 	{
 		int lastPlayedRow = getLowestOpenRow(column) + 1;
+		long cell = 1L << (lastPlayedRow * COLUMNS + column);
 		
-		gameBoard[lastPlayedRow][column] = " ";
+		xCells &= ~cell;
+		oCells &= ~cell;
+		turnCounter--;
 	}
 	
 	/**
@@ -135,22 +171,10 @@ public class Connect4 implements Connect4Constants
 	 */
 	public int findLastMove(int column)
 	{
-		// Begin at the very end
-		int lastRow = ROWS - 1;
-		int lastPossibleRowUsed = lastRow - 1;
+		// The top marker of the column, or the bottom row if it is empty
+		int height = getHeight(column);
 		
-		// Work way up the board
-		while(gameBoard[lastPossibleRowUsed][column] != " ")
-		{
-			lastPossibleRowUsed--;
-			
-			if(lastPossibleRowUsed == -1)
-				break;
-		}
-		
-		int lastRowUsed = lastPossibleRowUsed + 1;
-		
-		return lastRowUsed;
+		return (height == 0) ? ROWS - 1 : ROWS - height;
 	}
 	
 	/**
@@ -167,7 +191,7 @@ public class Connect4 implements Connect4Constants
 			int currRow, int consecCounter)
 	{
 		currRow++;
-		while(gameBoard[currRow][lastTurnColumn].equals(marker))
+		while(getCell(currRow, lastTurnColumn).equals(marker))
 		{				
 			consecCounter++;
 			currRow++;
@@ -203,7 +227,7 @@ public class Connect4 implements Connect4Constants
 			currColumn--;
 		
 			// Count consecutive markers going left
-			while(gameBoard[lastTurnRow][currColumn].equals(marker))
+			while(getCell(lastTurnRow, currColumn).equals(marker))
 			{
 				consecCounter++;
 				currColumn--;
@@ -225,7 +249,7 @@ public class Connect4 implements Connect4Constants
 		{
 			currColumn++;
 			
-			while(gameBoard[lastTurnRow][currColumn].equals(marker))
+			while(getCell(lastTurnRow, currColumn).equals(marker))
 			{
 				consecCounter++;
 				currColumn++;
@@ -267,7 +291,7 @@ public class Connect4 implements Connect4Constants
 			currRow++;
 			currColumn--;
 		
-			while(gameBoard[currRow][currColumn].equals(marker))
+			while(getCell(currRow, currColumn).equals(marker))
 			{
 				consecCounter++;
 				currColumn--;
@@ -289,7 +313,7 @@ public class Connect4 implements Connect4Constants
 			currRow--;
 			currColumn++;	
 		
-			while(gameBoard[currRow][currColumn].equals(marker))
+			while(getCell(currRow, currColumn).equals(marker))
 			{
 				consecCounter++;
 				currColumn++;
@@ -328,7 +352,7 @@ public class Connect4 implements Connect4Constants
 			currRow--;
 			currColumn--;
 		
-			while(gameBoard[currRow][currColumn].equals(marker))
+			while(getCell(currRow, currColumn).equals(marker))
 			{
 				consecCounter++;
 				currColumn--;
@@ -350,7 +374,7 @@ public class Connect4 implements Connect4Constants
 			currRow++;
 			currColumn++;	
 		
-			while(gameBoard[currRow][currColumn].equals(marker))
+			while(getCell(currRow, currColumn).equals(marker))
 			{
 				consecCounter++;
 				currColumn++;
@@ -380,51 +404,127 @@ public class Connect4 implements Connect4Constants
 		
 		// Find the exact location of previous piece entered
 		int lastTurnRow = findLastMove(lastTurnColumn);
-		String lastMarker = gameBoard[lastTurnRow][lastTurnColumn];
+		int bit = lastTurnRow * COLUMNS + lastTurnColumn;
+		long cells = ((xCells >>> bit & 1) != 0) ? xCells : ((oCells >>> bit & 1) != 0) ? oCells : 0;
 		
-		// Begin to track consecutive identical markers
-		int consecCounter = 1;
+		if(cells == 0)
+			return false;
 		
-		// Duplicate starting point values
-		int currRow = lastTurnRow;
-		int currColumn = lastTurnColumn;
+		/* Check for four in any direction at once */
+		if(hasFour(cells, 1, ACROSS_STARTS) || hasFour(cells, COLUMNS, DOWN_STARTS)
+				|| hasFour(cells, COLUMNS + 1, DOWN_RIGHT_STARTS)
+				|| hasFour(cells, COLUMNS - 1, DOWN_LEFT_STARTS))
+			return true;
 		
-		/* Begin by Checking for a Vertical Win*/
-		if(currRow < 4)
-		{
-			if(checkForVerticalWin(lastTurnColumn, lastTurnRow, lastMarker, currRow, consecCounter))
-				return true;
-		}
-		/* No Vertical Win Found */
+		/* No Win Found, so count the lines the computer looks for */
+		if(lastTurnRow < 4 && 1 + countRun(cells, lastTurnRow, lastTurnColumn, 1, 0) == 3)
+			canWinVert = true;
 		
-		// Reset
-		consecCounter = 1; 
+		int across = 1 + countRun(cells, lastTurnRow, lastTurnColumn, 0, -1)
+				+ countRun(cells, lastTurnRow, lastTurnColumn, 0, 1);
 		
-		/* Next check for a Horizontal Win */
-		if(checkForHorizontalWin(lastTurnColumn, lastTurnRow, lastMarker, currColumn, consecCounter))
-			return true;
-		/* No Horizontal Win Found */
+		if(across == 2)
+			horizIsClose = true;
+		else if(across == 3)
+			canWinHoriz = true;
 		
-		// Reset
-		consecCounter = 1; 
-		currColumn = lastTurnColumn;
-		currRow = lastTurnRow;
+		return false;
+	}
+	
+	/**
+	 * Returns whether a bitboard holds four in a row along one direction.
+	 * 
+	 * @param cells the bitboard of one player's markers
+	 * @param step the distance in bits from one cell of the line to the next
+	 * @param starts the cells a line in this direction may start from
+	 * @return boolean response based on presence of 4 consecutive tiles
+	 */
+	private static boolean hasFour(long cells, int step, long starts)
+	{
+		return (cells & (cells >>> step) & (cells >>> 2 * step) & (cells >>> 3 * step) & starts) != 0;
+	}
+	
+	/**
+	 * Counts the markers running on from a cell in one direction,
+	 * not counting the cell itself.
+	 * 
+	 * @param cells the bitboard of one player's markers
+	 * @param row the row int to start from
+	 * @param column the column int to start from
+	 * @param rowStep the change in row at each step
+	 * @param columnStep the change in column at each step
+	 * @return the number of consecutive markers found
+	 */
+	private static int countRun(long cells, int row, int column, int rowStep, int columnStep)
+	{
+		int count = 0;
 		
-		/* Next check for a Win in positive diagonal direction */
-		if(checkFirstDiagonal(lastTurnColumn, lastTurnRow, lastMarker, currColumn, currRow, consecCounter))
-			return true;
-		/* No Diagonal Win Found */
+		for(row += rowStep, column += columnStep; row >= 0 && row < ROWS && column >= 0
+				&& column < COLUMNS && (cells >>> (row * COLUMNS + column) & 1) != 0;
+				row += rowStep, column += columnStep)
+			count++;
 		
-		// Reset
-		consecCounter = 1;
-		currRow = lastTurnRow;
-		currColumn = lastTurnColumn;
+		return count;
+	}
+	
+	/**
+	 * Sets the board to a position, as a PositionCodec decodes it.
+	 * The number of turns taken and the marker placed last follow
+	 * from the cells, since "X" always moves first.
+	 * 
+	 * @param xCells the bitboard of "X" markers
+	 * @param oCells the bitboard of "O" markers
+	 * @param lastMove the column int played last
+	 * @throws IllegalArgumentException thrown if no game could reach the position
+	 */
+	void setPosition(long xCells, long oCells, int lastMove)
+	{
+		long occupied = xCells | oCells;
+		int xCount = Long.bitCount(xCells), oCount = Long.bitCount(oCells);
 		
-		/* Finally, check for a win in negative diagonal */
-		if(checkAltDiagonal(lastTurnColumn, lastTurnRow, lastMarker, currColumn, currRow, consecCounter))
-			return true;
+		if((xCells & oCells) != 0 || (occupied >>> MAXMOVES) != 0)
+			throw new IllegalArgumentException("Cells overlap or lie off the board");
 		
-		return false;
+		if(xCount - oCount != 0 && xCount - oCount != 1)
+			throw new IllegalArgumentException("Players have not taken turns");
+		
+		if(lastMove < 0 || lastMove >= COLUMNS)
+			throw new IllegalArgumentException("No such column " + lastMove);
+		
+		for(int column = 0; column < COLUMNS; column++)
+		{
+			long cells = occupied & COLUMN_CELLS[column];
+			
+			// Markers rest on one another, filling the column from the bottom
+			if(cells != (COLUMN_CELLS[column] & (-1L << (ROWS - Long.bitCount(cells)) * COLUMNS)))
+				throw new IllegalArgumentException("Column " + (column + 1) + " has a gap in it");
+		}
+		
+		// The column played last is topped by the marker placed last
+		int lastRow = ROWS - Long.bitCount(occupied & COLUMN_CELLS[lastMove]);
+		long lastCells = (xCount > oCount) ? xCells : oCells;
+		
+		if(occupied != 0 && (lastRow == ROWS || (lastCells >>> (lastRow * COLUMNS + lastMove) & 1) == 0))
+			throw new IllegalArgumentException("The column played last is not topped by the last marker placed");
+		
+		this.xCells = xCells;
+		this.oCells = oCells;
+		turnCounter = xCount + oCount;
+		xPlacedLast = xCount > oCount;
+		lastMoveMade = lastMove;
+		lastMoveComputerMade = -1;
+		canWinVert = canWinHoriz = horizIsClose = false;
+	}
+	
+	/**
+	 * Returns the number of markers in a column.
+	 * 
+	 * @param column the column int to count
+	 * @return the markers in the column
+	 */
+	private int getHeight(int column)
+	{
+		return Long.bitCount((xCells | oCells) & COLUMN_CELLS[column]);
 	}
 	
 	/**
@@ -449,7 +549,79 @@ public class Connect4 implements Connect4Constants
 		int lastTurnRow = findLastMove(lastTurnColumn);
 		
 		// Find marker at that location
-		return gameBoard[lastTurnRow][lastTurnColumn];
+		return getCell(lastTurnRow, lastTurnColumn);
+	}
+	
+	/**
+	 * Returns the marker in a cell of the board.
+	 * 
+	 * @param row the row int of the cell
+	 * @param column the column int of the cell
+	 * @return "X", "O", or " " if the cell is empty
+	 */
+	public String getCell(int row, int column)
+	{
+		int bit = row * COLUMNS + column;
+		
+		if((xCells >>> bit & 1) != 0)
+			return X;
+		
+		return ((oCells >>> bit & 1) != 0) ? O : EMPTY;
+	}
+	
+	/**
+	 * Returns a key for the position which it shares with its mirror
+	 * image: the lesser of its PositionCodec key and its mirror's.
+	 * Anything stored by this key holds both orientations in one
+	 * entry, and columns stored with it must pass through
+	 * canonicalColumn on the way in and on the way out.
+	 * 
+	 * @return the canonical key of the position
+	 */
+	public long getCanonicalKey()
+	{
+		long key = PositionCodec.key(this);
+		
+		return Math.min(key, PositionCodec.mirror(key));
+	}
+	
+	/**
+	 * Tells whether the canonical key stands for the mirror image
+	 * of this board rather than the board as it is. A position which
+	 * is its own mirror image is never mirrored.
+	 * 
+	 * @return true if the canonical orientation is the mirror image
+	 */
+	public boolean isMirrorCanonical()
+	{
+		long key = PositionCodec.key(this);
+		
+		return PositionCodec.mirror(key) < key;
+	}
+	
+	/**
+	 * Maps a column between this board and the orientation of its
+	 * canonical key. Mirroring is its own inverse, so the same call
+	 * maps a column to the canonical orientation and back again.
+	 * 
+	 * @param column the column int to map
+	 * @return the same column in the other orientation
+	 */
+	public int canonicalColumn(int column)
+	{
+		return isMirrorCanonical() ? COLUMNS - 1 - column : column;
+	}
+	
+	/**
+	 * Returns every cell holding one player's marker as a bitboard,
+	 * with cell (row, column) at bit row * COLUMNS + column.
+	 * 
+	 * @param marker the marker, "X" or "O"
+	 * @return the bitboard of that player's markers
+	 */
+	public long getCells(String marker)
+	{
+		return marker.equals(X) ? xCells : oCells;
 	}
 	
 	/**
@@ -497,16 +669,25 @@ public class Connect4 implements Connect4Constants
 	 */
 	public String get_lastMarkerPlaced()
 	{
-		return lastMarkerPlaced;
+		return xPlacedLast ? X : O;
 	}
 	
 	/**
-	 * Allows access to the logical gameBoard
+	 * Allows access to the logical gameBoard, as a copy built
+	 * on each call. Use getCell or getCells where possible.
 	 * 
 	 * @return the gameBoard currently being played on
 	 */
 	public String[][] get_gameBoard()
 	{
+		String[][] gameBoard = new String[ROWS][COLUMNS];
+		
+		for(int i = 0; i < ROWS; i++)
+		{
+			for(int j = 0; j < COLUMNS; j++)
+				gameBoard[i][j] = getCell(i, j);
+		}
+		
 		return gameBoard;
 	}
 	
@@ -548,6 +729,6 @@ public class Connect4 implements Connect4Constants
 	 */
 	public void set_lastMarkerPlaced(String marker)
 	{
-		lastMarkerPlaced = marker;
+		xPlacedLast = marker.equals(X);
 	}
 }
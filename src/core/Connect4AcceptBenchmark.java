@@ -0,0 +1,135 @@
+/**
+ * Measures how quickly the server accepts and hands off new
+ * connections as the number of acceptor shards grows. For each
+ * shard count it starts a server on loopback, then has several
+ * client threads repeatedly connect, request an AI game, wait
+ * for their player number and start signal, and disconnect, as
+ * happens during a reconnect storm.
+ *
+ * Usage:
+ *   java core.Connect4AcceptBenchmark --shards=1,2,4,8
+ *        --clients=16 --connections=20000 --warmup=2000
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Connect4AcceptBenchmark implements Connect4Constants
+{
+	/**
+	 * Runs the benchmark once per requested shard count.
+	 *
+	 * @param args the command line options
+	 * @throws Exception thrown if a server cannot be started
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Connect4Args options = new Connect4Args(args);
+		int clients = options.getInt("clients", 16);
+		int connections = options.getInt("connections", 20000);
+		int warmup = options.getInt("warmup", 2000);
+
+		System.out.println("shards  connections/s  p50(us)  p99(us)  p999(us)  errors");
+
+		for(String count : options.get("shards", "1,2,4,8").split(","))
+		{
+			int shards = Integer.parseInt(count.trim());
+			Connect4ServerEngine engine = new Connect4ServerEngine(0, shards,
+					new Connect4Metrics(), message -> { });
+			engine.start();
+
+			try
+			{
+				storm(engine.getPort(), clients, warmup, new LatencyHistogram(), new LongAdder());
+
+				LatencyHistogram latency = new LatencyHistogram();
+				LongAdder errors = new LongAdder();
+				long elapsed = storm(engine.getPort(), clients, connections, latency, errors);
+
+				System.out.printf("%6d  %13.0f  %7d  %7d  %8d  %6d%n", shards,
+						latency.getCount() / (elapsed / 1e9),
+						TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(50)),
+						TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99)),
+						TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99.9)),
+						errors.sum());
+			}
+			finally
+			{
+				engine.stop();
+			}
+		}
+	}
+
+	/**
+	 * Opens the given number of connections as fast as the client
+	 * threads allow, recording the time each took to be accepted
+	 * and started.
+	 *
+	 * @param port the port of the server on loopback
+	 * @param clients the number of concurrent client threads
+	 * @param connections the total number of connections to open
+	 * @param latency where to record each connection's latency
+	 * @param errors where to count failed connections
+	 * @return the wall clock time taken, in nanoseconds
+	 * @throws InterruptedException thrown if interrupted while waiting
+	 */
+	private static long storm(int port, int clients, int connections, LatencyHistogram latency,
+			LongAdder errors) throws InterruptedException
+	{
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		AtomicInteger remaining = new AtomicInteger(connections);
+		List<Thread> threads = new ArrayList<>();
+
+		long start = System.nanoTime();
+
+		for(int i = 0; i < clients; i++)
+		{
+			Thread thread = new Thread(() ->
+			{
+				while(remaining.getAndDecrement() > 0)
+				{
+					long connectStart = System.nanoTime();
+
+					try(Socket socket = new Socket())
+					{
+						socket.setSoTimeout(10000);
+						socket.connect(address, 10000);
+
+						DataInputStream fromServer = new DataInputStream(socket.getInputStream());
+						new DataOutputStream(socket.getOutputStream()).writeInt(AI_GAME);
+
+						// Player number, then the signal that the game has begun
+						fromServer.readInt();
+						fromServer.readInt();
+						latency.recordSince(connectStart);
+					}
+					catch(IOException ex)
+					{
+						errors.increment();
+					}
+				}
+			});
+
+			threads.add(thread);
+			thread.start();
+		}
+
+		for(Thread thread : threads)
+			thread.join();
+
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,416 @@
+/**
+ * A stateless HTTP service which answers "best move" queries
+ * for internal tools. Given the moves played so far, it replays
+ * them on a Connect4 board and asks Connect4ComputerPlayer for
+ * its move and that move's score.
+ *
+ * Results are shared through a PositionCache keyed by the
+ * position's canonical key rather than the move order, so
+ * transposed sequences share an answer, as do mirror images: an
+ * answer is stored in the canonical orientation and mapped back to
+ * the position asked about. A position may also be given directly,
+ * in PositionCodec's text form. Concurrent requests for a position which is
+ * still being analysed wait on that analysis instead of starting
+ * their own.
+ *
+ * Endpoints:
+ *   GET  /bestmove?moves=4453    (columns numbered 1 to 7)
+ *   GET  /bestmove?position=.../...+4   (a position in text form)
+ *   POST /bestmove               (the moves as the request body)
+ *   GET  /stats
+ *
+ * Usage:
+ *   java core.Connect4AnalysisService --port=8080 --threads=4
+ *        --cacheSize=1048576
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class Connect4AnalysisService implements Connect4Constants
+{
+	// Shared Results
+	private final PositionCache<Analysis> cache;
+	private final ConcurrentHashMap<Long, CompletableFuture<Analysis>> inFlight =
+			new ConcurrentHashMap<>();
+
+	// Statistics
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder computed = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	// Server
+	private final HttpServer server;
+	private final ExecutorService workers;
+
+	/**
+	 * Creates the service, bound but not yet started.
+	 *
+	 * @param args the parsed command line options
+	 * @throws IOException thrown if the port cannot be bound
+	 */
+	public Connect4AnalysisService(Connect4Args args) throws IOException
+	{
+		cache = new PositionCache<>(args.getInt("cacheSize", 1 << 20));
+
+		int threads = args.getInt("threads", Runtime.getRuntime().availableProcessors());
+		workers = Executors.newFixedThreadPool(threads);
+
+		server = HttpServer.create(new InetSocketAddress(args.getInt("port", 8080)), 1024);
+		server.setExecutor(workers);
+		server.createContext("/bestmove", this::handleBestMove);
+		server.createContext("/stats", this::handleStats);
+	}
+
+	/**
+	 * Runs the service until its process is stopped.
+	 *
+	 * @param args the command line options
+	 * @throws IOException thrown if the port cannot be bound
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Connect4AnalysisService service = new Connect4AnalysisService(new Connect4Args(args));
+		service.start();
+		System.out.println(new Date() + ": Analysis service started at port " + service.getPort());
+	}
+
+	/**
+	 * Starts answering requests.
+	 */
+	public void start()
+	{
+		server.start();
+	}
+
+	/**
+	 * Stops answering requests.
+	 */
+	public void stop()
+	{
+		server.stop(0);
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Returns the port the service is listening on.
+	 *
+	 * @return the bound port
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Finds the best move for a position, from the cache, from an
+	 * analysis already running for the same position, or by running
+	 * the computer player itself.
+	 *
+	 * @param game the position to analyse, which is left unchanged
+	 * @return the move, its score and where it came from
+	 */
+	public Analysis analyze(Connect4 game)
+	{
+		long key = game.getCanonicalKey();
+		boolean mirrored = game.isMirrorCanonical();
+		Analysis cached = cache.get(key);
+
+		if(cached != null)
+		{
+			cacheHits.increment();
+			return cached.from("cached", mirrored);
+		}
+
+		CompletableFuture<Analysis> mine = new CompletableFuture<>();
+		CompletableFuture<Analysis> running = inFlight.putIfAbsent(key, mine);
+
+		// Someone else is already working on this position
+		if(running != null)
+		{
+			coalesced.increment();
+
+			try
+			{
+				return running.join().from("coalesced", mirrored);
+			}
+			catch(CompletionException ex)
+			{
+				// Fail as the analysis which ran did, not wrapped
+				if(ex.getCause() instanceof RuntimeException)
+					throw (RuntimeException) ex.getCause();
+
+				throw ex;
+			}
+		}
+
+		try
+		{
+			// The computer's trial moves are made on a copy of the board
+			Connect4ComputerPlayer comp = new Connect4ComputerPlayer(new Connect4(game));
+			Analysis analysis = new Analysis(comp.makeMove(), comp.getLastScore(), "computed");
+			Analysis canonical = analysis.from("computed", mirrored);
+
+			computed.increment();
+			cache.put(key, canonical);
+			mine.complete(canonical);
+
+			return analysis;
+		}
+		catch(RuntimeException ex)
+		{
+			mine.completeExceptionally(ex);
+			throw ex;
+		}
+		finally
+		{
+			inFlight.remove(key, mine);
+		}
+	}
+
+	/**
+	 * Replays a sequence of moves onto a new board.
+	 *
+	 * @param moves the columns played, numbered 1 to 7
+	 * @return the resulting position
+	 * @throws IllegalArgumentException thrown if the moves are not a game in progress
+	 */
+	static Connect4 replay(String moves)
+	{
+		Connect4 game = new Connect4();
+
+		for(int i = 0; i < moves.length(); i++)
+		{
+			int column = moves.charAt(i) - '1';
+
+			if(column < 0 || column >= COLUMNS)
+				throw new IllegalArgumentException("Moves must be columns 1 to 7");
+
+			if(!game.isValidMove(column))
+				throw new IllegalArgumentException("Move " + (i + 1) + " is in a full column");
+
+			game.placeMarker(column);
+
+			if(game.checkForWin(column))
+				throw new IllegalArgumentException("The game was won on move " + (i + 1));
+		}
+
+		if(game.getTurnCounter() == MAXMOVES)
+			throw new IllegalArgumentException("The board is full");
+
+		return game;
+	}
+
+	/**
+	 * Sets up a position given in the codec's text form.
+	 *
+	 * @param text the position
+	 * @return the position on a new board
+	 * @throws IllegalArgumentException thrown if it is not a game in progress
+	 */
+	static Connect4 position(String text)
+	{
+		Connect4 game = new Connect4();
+		PositionCodec.fromText(text, game);
+
+		if(game.getTurnCounter() > 0 && game.checkForWin(game.get_lastMoveMade()))
+			throw new IllegalArgumentException("The game was already won");
+
+		if(game.getTurnCounter() == MAXMOVES)
+			throw new IllegalArgumentException("The board is full");
+
+		return game;
+	}
+
+	/**
+	 * Answers a best move query.
+	 *
+	 * @param exchange the request and its response
+	 * @throws IOException thrown if the response cannot be sent
+	 */
+	private void handleBestMove(HttpExchange exchange) throws IOException
+	{
+		requests.increment();
+
+		try
+		{
+			String moves, position = "";
+
+			if(exchange.getRequestMethod().equals("GET"))
+			{
+				moves = queryValue(exchange.getRequestURI().getRawQuery(), "moves");
+				position = queryValue(exchange.getRequestURI().getRawQuery(), "position");
+			}
+			else if(exchange.getRequestMethod().equals("POST"))
+				moves = readBody(exchange);
+			else
+			{
+				respond(exchange, 405, "{\"error\":\"Use GET or POST\"}");
+				return;
+			}
+
+			Connect4 game = position.isEmpty() ? replay(moves.trim()) : position(position);
+			Analysis analysis = analyze(game);
+
+			respond(exchange, 200, "{\"moves\":" + quote(moves.trim()) + ",\"position\":"
+					+ quote(PositionCodec.toText(game)) + ",\"move\":" + (analysis.move + 1)
+					+ ",\"score\":" + analysis.score + ",\"source\":" + quote(analysis.source) + "}");
+		}
+		catch(IllegalArgumentException ex)
+		{
+			rejected.increment();
+			respond(exchange, 400, "{\"error\":" + quote(ex.getMessage()) + "}");
+		}
+	}
+
+	/**
+	 * Reports how requests have been answered so far.
+	 *
+	 * @param exchange the request and its response
+	 * @throws IOException thrown if the response cannot be sent
+	 */
+	private void handleStats(HttpExchange exchange) throws IOException
+	{
+		respond(exchange, 200, "{\"requests\":" + requests.sum() + ",\"computed\":" + computed.sum()
+				+ ",\"cached\":" + cacheHits.sum() + ",\"coalesced\":" + coalesced.sum()
+				+ ",\"rejected\":" + rejected.sum() + "}");
+	}
+
+	/**
+	 * Finds a single value in a query string.
+	 *
+	 * @param query the raw query string, which may be null
+	 * @param name the name of the value
+	 * @return the decoded value, or an empty string if absent
+	 */
+	private static String queryValue(String query, String name)
+	{
+		if(query == null)
+			return "";
+
+		for(String pair : query.split("&"))
+		{
+			if(pair.startsWith(name + "="))
+				return URLDecoder.decode(pair.substring(name.length() + 1), StandardCharsets.UTF_8);
+		}
+
+		return "";
+	}
+
+	/**
+	 * Writes text as a JSON string, escaping whatever JSON does
+	 * not allow to appear as it is.
+	 *
+	 * @param text the text, which may be null
+	 * @return the quoted string, or null
+	 */
+	private static String quote(String text)
+	{
+		if(text == null)
+			return "null";
+
+		StringBuilder json = new StringBuilder(text.length() + 2).append('"');
+
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+
+			if(c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if(c < 0x20)
+				json.append(String.format("\\u%04x", (int) c));
+			else
+				json.append(c);
+		}
+
+		return json.append('"').toString();
+	}
+
+	/**
+	 * Reads the body of a request, which is expected to be small.
+	 *
+	 * @param exchange the request
+	 * @return the body as text
+	 * @throws IOException thrown if the body cannot be read
+	 */
+	private static String readBody(HttpExchange exchange) throws IOException
+	{
+		try(InputStream in = exchange.getRequestBody())
+		{
+			byte[] body = in.readNBytes(MAXMOVES + 64);
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Sends a JSON response and closes the exchange.
+	 *
+	 * @param exchange the request and its response
+	 * @param status the HTTP status code
+	 * @param json the body to send
+	 * @throws IOException thrown if the response cannot be sent
+	 */
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException
+	{
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+
+		try(OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+
+	/**
+	 * The answer for one position.
+	 */
+	public static class Analysis
+	{
+		public final int move;
+		public final int score;
+		public final String source;
+
+		Analysis(int move, int score, String source)
+		{
+			this.move = move;
+			this.score = score;
+			this.source = source;
+		}
+
+		/**
+		 * Returns the same answer, noting where it came from, with its
+		 * move mirrored if it is to cross between a position and its
+		 * mirror image.
+		 *
+		 * @param source how the answer was found
+		 * @param mirrored true if the move is to be mirrored
+		 * @return the relabelled answer
+		 */
+		Analysis from(String source, boolean mirrored)
+		{
+			return new Analysis(mirrored ? COLUMNS - 1 - move : move, score, source);
+		}
+	}
+}
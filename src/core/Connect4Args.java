@@ -0,0 +1,101 @@
+/**
+ * Reads "--name=value" command line options, the same form
+ * JavaFX uses for its named parameters, so the headless tools
+ * and the applications can be configured the same way.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class Connect4Args
+{
+	private final Map<String, String> named;
+
+	/**
+	 * Parses the given command line arguments. Arguments which are
+	 * not of the form "--name=value" are treated as "--name=true"
+	 * when they begin with "--", and are otherwise ignored.
+	 *
+	 * @param args the raw command line arguments
+	 */
+	public Connect4Args(String[] args)
+	{
+		named = new HashMap<>();
+
+		for(String arg : args)
+		{
+			if(!arg.startsWith("--"))
+				continue;
+
+			int split = arg.indexOf('=');
+
+			if(split == -1)
+				named.put(arg.substring(2), "true");
+			else
+				named.put(arg.substring(2, split), arg.substring(split + 1));
+		}
+	}
+
+	/**
+	 * Wraps options which have already been parsed, such as
+	 * the named parameters of a JavaFX application.
+	 *
+	 * @param named the options by name
+	 */
+	public Connect4Args(Map<String, String> named)
+	{
+		this.named = new HashMap<>(named);
+	}
+
+	/**
+	 * Returns a string option.
+	 *
+	 * @param name the name of the option
+	 * @param fallback the value to use if the option is absent
+	 * @return the value of the option
+	 */
+	public String get(String name, String fallback)
+	{
+		return named.getOrDefault(name, fallback);
+	}
+
+	/**
+	 * Returns an integer option.
+	 *
+	 * @param name the name of the option
+	 * @param fallback the value to use if the option is absent
+	 * @return the value of the option
+	 * @throws IllegalArgumentException thrown if the value is not an integer
+	 */
+	public int getInt(String name, int fallback)
+	{
+		String value = named.get(name);
+
+		if(value == null)
+			return fallback;
+
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch(NumberFormatException ex)
+		{
+			throw new IllegalArgumentException("--" + name + " must be a whole number: " + value);
+		}
+	}
+
+	/**
+	 * Returns whether an option was given at all.
+	 *
+	 * @param name the name of the option
+	 * @return true if the option is present
+	 */
+	public boolean has(String name)
+	{
+		return named.containsKey(name);
+	}
+}
@@ -1,10 +1,23 @@
 /**
  * Client for establishing and playing games of Connect4.
  * Establishes a connection to the server and makes necessary
- * updates during the course of the game.
+ * updates during the course of the game. All networking runs
+ * on a background thread, so the display never waits on it.
+ * 
+ * Offline games against the computer are hosted in-process
+ * instead, through the server's own session logic over a pair
+ * of MemoryPipes, and need no server or network at all.
+ * 
+ * Games on the server are resumable: if the connection drops,
+ * the client connects again with its resume token and carries
+ * on from the server's snapshot of the game. A player who runs
+ * out of time on the server's clock loses the game on time.
+ * 
+ * Options: --host=localhost --port=8000 --connectTimeout=3000
+ *          --retries=3
  * 
  * @author Jonathan (Jack) MacArthur
- * @version 1.0
+ * @version 1.3
  */
 package core;
 
@@ -13,8 +26,15 @@ import ui.Connect4GUI;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
@@ -31,19 +51,40 @@ public class Connect4Client extends Application implements Connect4Constants
 	private DataInputStream fromServer;
 	private DataOutputStream toServer;
 	
-	// Host name or ip
-	private String host = "localhost";
+	// Connection Settings
+	private static final int OFFLINE_PIPE_SIZE = 4096;
+	private static final long FIRST_BACKOFF = 250;
+	private static final long MAX_BACKOFF = 4000;
+	private String host;
+	private long resumeToken;
+	private int movesMade;
+	private int outOfTime;
+	private int port, connectTimeout, connectRetries;
+	
+	// Runs the connection and the game, off the JavaFX thread
+	private final ExecutorService network = Executors.newSingleThreadExecutor(r ->
+	{
+		Thread thread = new Thread(r, "connect4-network");
+		thread.setDaemon(true);
+		return thread;
+	});
 	
 	// GUI Elements
-	private Button pvp, ai;
+	private Button pvp, ai, offline;
+	private Text progress;
 	int gameType;
 	private Connect4GUI gui;
 	private Stage primaryStage;
 	
+	// Latest Display State, applied at most once per frame
+	private final AtomicReference<String> pendingStatus = new AtomicReference<>();
+	private final AtomicBoolean displayDirty = new AtomicBoolean();
+	private AnimationTimer frameTimer;
+	
 	/**
 	 * Launches the client display.
 	 * 
-	 * @param args unneeded
+	 * @param args optional --host, --port, --connectTimeout and --retries values
 	 */
 	public static void main(String[] args) 
 	{
@@ -60,31 +101,47 @@ public class Connect4Client extends Application implements Connect4Constants
 		// Note Stage - Sends to GUI Later
 		this.primaryStage = primaryStage;
 		
+		// Connection Settings
+		Connect4Args args = new Connect4Args(getParameters().getNamed());
+		host = args.get("host", "localhost");
+		port = args.getInt("port", DEFAULT_PORT);
+		connectTimeout = args.getInt("connectTimeout", 3000);
+		connectRetries = args.getInt("retries", 3);
+		
 		// All Elements Needed
 		pvp = new Button("PVP");
 		ai = new Button("AI");
+		offline = new Button("Offline AI");
 		Text instructions = new Text("Would you like to utilize "
 						+ "the PVP or Text Console?");
+		progress = new Text("");
 		
 		// Various Stylings
 		instructions.setStyle("-fx-font: 24 arial;");							
 		pvp.setStyle("-fx-font: 24 arial;");
 		ai.setStyle("-fx-font: 24 arial;");
+		offline.setStyle("-fx-font: 24 arial;");
+		progress.setStyle("-fx-font: 18 arial;");
 		
 		// AnchorPane For All Components
-		AnchorPane all = new AnchorPane(pvp, ai, instructions);
+		AnchorPane all = new AnchorPane(pvp, ai, offline, instructions, progress);
 		
 		// Placements
 		AnchorPane.setTopAnchor(pvp, 200.0);
 		AnchorPane.setTopAnchor(ai, 200.0);
-		AnchorPane.setRightAnchor(pvp, 400.0);
-		AnchorPane.setRightAnchor(ai, 200.0);
+		AnchorPane.setTopAnchor(offline, 200.0);
+		AnchorPane.setRightAnchor(pvp, 450.0);
+		AnchorPane.setRightAnchor(ai, 300.0);
+		AnchorPane.setRightAnchor(offline, 70.0);
 		AnchorPane.setTopAnchor(instructions, 100.0);
 		AnchorPane.setRightAnchor(instructions, 70.0);
+		AnchorPane.setTopAnchor(progress, 300.0);
+		AnchorPane.setLeftAnchor(progress, 70.0);
 									
 		// Button Handlers
 		pvp.setOnAction(buttonHandler);
 		ai.setOnAction(buttonHandler);
+		offline.setOnAction(buttonHandler);
 		
 		// Vital Elements
 		Scene scene = new Scene(all, 700, 400);
@@ -109,137 +166,348 @@ public class Connect4Client extends Application implements Connect4Constants
 			
 			if(source.equals(pvp))
 				gameType = 0;
-			else if(source.equals(ai))
+			else
 				gameType = 1;
 			
-			connectToServer(gameType);
+			// Only one attempt at a time
+			pvp.setDisable(true);
+			ai.setDisable(true);
+			offline.setDisable(true);
+			
+			int chosenType = gameType;
+			
+			if(source.equals(offline))
+				network.execute(() -> playOffline());
+			else
+				network.execute(() -> connectToServer(chosenType));
         }
     };
 	
     /**
      * Given the type of game (ai or pvp), attempts
      * to establish and begin a Connect4 game with the
-     * server.
+     * server. Runs on the network thread; if the server
+     * cannot be reached, the choice of game is offered again.
      * 
      * @param gameType the type (pvp = 0, ai = 1) of game desired
      */
 	private void connectToServer(int gameType) 
 	{
 		// Set Up Connection To Server
-		try 
+		Socket socket = connectWithRetry();
+		
+		if(socket == null)
+		{
+			offerChoiceAgain("Could not reach the server at " + host + ":" + port + ". Please try again.");
+			return;
+		}
+		
+		try
 		{
-			// Create a socket to connect to the server
-			@SuppressWarnings("resource")
-			Socket socket = new Socket(host, 8000);
-	
 			// Create an input stream to receive data from the server
 			fromServer = new DataInputStream(socket.getInputStream());
 	
 			// Create an output stream to send data to the server
 			toServer = new DataOutputStream(socket.getOutputStream());
 		}
-		catch (Exception ex) 
+		catch (IOException ex) 
 		{
 			ex.printStackTrace();
+			return;
 		}
-
-		// Begin A Different Thread For Game
-		new Thread(() -> 
+		
+		playGame(gameType, true);
+	}
+	
+	/**
+	 * Hosts a game against the computer in this process and plays
+	 * it. The session runs on its own thread exactly as it would on
+	 * the server, but reads and writes MemoryPipes in place of a socket.
+	 */
+	private void playOffline()
+	{
+		MemoryPipe toSession = new MemoryPipe(OFFLINE_PIPE_SIZE);
+		MemoryPipe fromSession = new MemoryPipe(OFFLINE_PIPE_SIZE);
+		
+		StreamTransport link = new StreamTransport(toSession.getInputStream(), 
+				fromSession.getOutputStream());
+		
+		Connect4 game = new Connect4();
+		BeginASession session = new BeginASession(link, new Connect4ComputerPlayer(game), game, 
+				new Connect4Metrics());
+		
+		Thread host = new Thread(() ->
 		{
-			try 
+			// Answer the handshake as the server would, then play
+			try
 			{
-				// Receive startup notification from the server
-				toServer.writeInt(gameType); // 2
-				int player = fromServer.readInt(); // 1
-		        boolean keepPlaying = true;
-				
-				gui = new Connect4GUI(toServer, player);
-				gui.initDisplay();
-
-				if(player == PLAYER1)
+				link.readInt();
+				link.writeInt(PLAYER1);
+				link.flush();
+			}
+			catch(IOException ex)
+			{
+				return;
+			}
+			
+			session.run();
+		}, "connect4-offline");
+		
+		host.setDaemon(true);
+		host.start();
+		
+		fromServer = new DataInputStream(fromSession.getInputStream());
+		toServer = new DataOutputStream(toSession.getOutputStream());
+		
+		playGame(AI_GAME, false);
+	}
+	
+	/**
+	 * Tries to connect to the server, waiting up to the connect 
+	 * timeout each time and backing off between attempts.
+	 * Progress is shown beneath the choice of game.
+	 * 
+	 * @return the connected socket, or null if every attempt failed
+	 */
+	private Socket connectWithRetry()
+	{
+		long backoff = FIRST_BACKOFF;
+		int attempts = connectRetries + 1;
+		
+		for(int attempt = 1; attempt <= attempts; attempt++)
+		{
+			int shownAttempt = attempt;
+			Platform.runLater(() -> progress.setText("Connecting to " + host + ":" + port 
+					+ " (attempt " + shownAttempt + " of " + attempts + ")..."));
+			
+			Socket socket = new Socket();
+			
+			try
+			{
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+				socket.setTcpNoDelay(true);
+				return socket;
+			}
+			catch(IOException ex)
+			{
+				try
 				{
-					repaint(waiting);
-					fromServer.readInt();
-					repaint(welcome);
+					socket.close();
 				}
-				else
-					repaint(welcome);
-				
-				int status = CONTINUE;
-				
-				String alternatePlayerMove = p1Turn;
-				if(gameType == 1)
-					alternatePlayerMove = p1TurnWithComp;
-				
-				// Continue to play, update status, check on game
-				while(keepPlaying)
+				catch(IOException closeEx)
 				{
-					if(player == PLAYER1)
-					{
-						receiveMove("X", player);
-						gui.setMyTurn(false);
-						repaint(p2Turn);
-						status = fromServer.readInt();
-						
-						if(status != CONTINUE)
-							break;
-						
-						receiveMove("O", player);
-						gui.setMyTurn(true);
-						repaint(alternatePlayerMove);
-						status = fromServer.readInt();
-						
-						if(status != CONTINUE)
-							break;
-					}
-					else if(player == PLAYER2)
+					// Never connected
+				}
+			}
+			
+			if(attempt == attempts)
+				break;
+			
+			// Back off, with jitter so many clients do not retry together
+			try
+			{
+				Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+			}
+			catch(InterruptedException ex)
+			{
+				return null;
+			}
+			
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Plays a game over the established connection, keeping
+	 * the display up to date until the game is over.
+	 * 
+	 * @param gameType the type (pvp = 0, ai = 1) of game desired
+	 * @param resumable true to ask for a resume token, and reconnect
+	 *        with it if the connection drops
+	 */
+	private void playGame(int gameType, boolean resumable)
+	{
+		try 
+		{
+			// Receive startup notification from the server
+			toServer.writeInt(resumable ? gameType | RESUMABLE : gameType); // 2
+			int player = fromServer.readInt(); // 1
+			
+			// The server turned the connection away
+			if(player == SERVER_BUSY)
+			{
+				toServer.close();
+				offerChoiceAgain(serverBusy);
+				return;
+			}
+			
+			gui = new Connect4GUI(toServer, player);
+			
+			// Build the game display on the JavaFX thread
+			Platform.runLater(() ->
+			{
+				gui.initDisplay();
+				startFrames();
+			});
+
+			if(player == PLAYER1)
+				repaint(waiting);
+			
+			// The token comes once the game begins
+			if(resumable)
+				resumeToken = fromServer.readLong();
+			
+			if(player == PLAYER1)
+				fromServer.readInt();
+			
+			repaint(welcome);
+			
+			int status = CONTINUE;
+			movesMade = 0;
+			
+			String alternatePlayerMove = p1Turn;
+			if(gameType == 1)
+				alternatePlayerMove = p1TurnWithComp;
+			
+			// Continue to play, update status, check on game
+			while(status == CONTINUE)
+			{
+				try
+				{
+					// Player One always plays X, and moves first
+					if(!receiveMove(movesMade % 2 == 0 ? "X" : "O", player))
 					{
-						receiveMove("X", player);
-						gui.setMyTurn(true);
-						repaint(p2Turn);
-						status = fromServer.readInt();
-						
-						if(status != CONTINUE)
-							break;
-						
-						receiveMove("O", player);
-						gui.setMyTurn(false);
-						repaint(p1Turn);
-						status = fromServer.readInt();
-						
-						if(status != CONTINUE)
-							break;
+						status = TIMEOUT;
+						break;
 					}
+					
+					movesMade++;
+					showTurn(player, alternatePlayerMove);
+					status = fromServer.readInt();
 				}
-				
-				// Victory updates
-				if(gameType == 0)
+				catch(IOException ex)
 				{
-					if(status == PLAYER1_WON)
-						repaint(p1Victory);
-					else if(status == PLAYER2_WON)
-						repaint(p2Victory);
-					else
-						repaint(draw);
+					if(resumeToken == 0)
+						throw ex;
+					
+					status = resume(player, alternatePlayerMove);
 				}
+			}
+			
+			// Victory updates
+			if(gameType == 0)
+			{
+				if(status == PLAYER1_WON)
+					repaint(p1Victory);
+				else if(status == PLAYER2_WON)
+					repaint(p2Victory);
+				else if(status == TIMEOUT)
+					repaint(outOfTime == PLAYER1 ? p1OutOfTime : p2OutOfTime);
 				else
-				{
-					if(status == PLAYER1_WON)
-						repaint(p1Victory);
-					else if(status == PLAYER2_WON)
-						repaint(computerVictory);
-					else
-						repaint(draw);
-				}
-				
-				// Game completed
-				gui.endGame();
-			}	
-			catch (Exception ex) 
+					repaint(draw);
+			}
+			else
 			{
-				ex.printStackTrace();
+				if(status == PLAYER1_WON)
+					repaint(p1Victory);
+				else if(status == PLAYER2_WON)
+					repaint(computerVictory);
+				else if(status == TIMEOUT)
+					repaint(p1OutOfTime);
+				else
+					repaint(draw);
 			}
-		}).start();
+			
+			// Game completed
+			Platform.runLater(() -> gui.endGame());
+		}	
+		catch (Exception ex) 
+		{
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Shows why no game began, and offers the choice of game again.
+	 * 
+	 * @param message what to show
+	 */
+	private void offerChoiceAgain(String message)
+	{
+		Platform.runLater(() ->
+		{
+			progress.setText(message);
+			pvp.setDisable(false);
+			ai.setDisable(false);
+			offline.setDisable(false);
+		});
+	}
+	
+	/**
+	 * Lets the player move if it is their turn, and says whose
+	 * turn it is.
+	 * 
+	 * @param player the player this client plays as
+	 * @param alternatePlayerMove the message for player one's turn
+	 */
+	private void showTurn(int player, String alternatePlayerMove)
+	{
+		boolean playerOneToMove = movesMade % 2 == 0;
+		gui.setMyTurn(playerOneToMove == (player == PLAYER1));
+		
+		if(!playerOneToMove)
+			repaint(p2Turn);
+		else if(player == PLAYER1)
+			repaint(alternatePlayerMove);
+		else
+			repaint(p1Turn);
+	}
+	
+	/**
+	 * Connects again after the connection dropped and returns to
+	 * the game with the resume token. The server answers with the
+	 * whole game at once, which replaces the board on display.
+	 * 
+	 * @param player the player this client plays as
+	 * @param alternatePlayerMove the message for player one's turn
+	 * @return the game's status
+	 * @throws IOException thrown if the game cannot be returned to
+	 */
+	private int resume(int player, String alternatePlayerMove) throws IOException
+	{
+		gui.setMyTurn(false);
+		repaint("Connection lost. Reconnecting...");
+		
+		Socket socket = connectWithRetry();
+		
+		if(socket == null)
+			throw new IOException("Could not reconnect to " + host + ":" + port);
+		
+		fromServer = new DataInputStream(socket.getInputStream());
+		toServer = new DataOutputStream(socket.getOutputStream());
+		
+		toServer.writeInt(RESUME_GAME);
+		toServer.writeLong(resumeToken);
+		
+		if(fromServer.readInt() != RESUMED)
+		{
+			socket.close();
+			throw new IOException("The game could not be resumed");
+		}
+		
+		// Player number, the position and the status
+		fromServer.readInt();
+		Connect4 position = new Connect4();
+		PositionCodec.read(fromServer, position);
+		movesMade = position.getTurnCounter();
+		int status = fromServer.readInt();
+		
+		gui.restore(position, toServer);
+		showTurn(player, alternatePlayerMove);
+		
+		return status;
 	}
 	
 	/**
@@ -248,9 +516,10 @@ public class Connect4Client extends Application implements Connect4Constants
 	 * 
 	 * @param marker the marker which was used to make the move
 	 * @param player the player who is receiving the move info
+	 * @return false if a player ran out of time instead
 	 * @throws IOException thrown if communication fails
 	 */
-	public void receiveMove(String marker, int player) throws IOException
+	public boolean receiveMove(String marker, int player) throws IOException
 	{
 		// Read in status
 		int success = fromServer.readInt();
@@ -258,6 +527,17 @@ public class Connect4Client extends Application implements Connect4Constants
 		// Wait for valid status
 		while(success != CONTINUE)
 		{
+			// The game is lost on time, by the player named next
+			if(success == TIMEOUT)
+			{
+				gui.rollbackMove();
+				outOfTime = fromServer.readInt();
+				return false;
+			}
+			
+			// Take back the move drawn ahead of the reply
+			gui.rollbackMove();
+			
 			if(player == PLAYER1)
 				repaint(error1);
 			else
@@ -266,34 +546,55 @@ public class Connect4Client extends Application implements Connect4Constants
 			success = fromServer.readInt();
 		}
 		
-		// Record and update GUI
+		// Record and update GUI, replacing any prediction
 		int column = fromServer.readInt();
 		int row = fromServer.readInt();
 		
-		String[][] visualBoard = gui.getVisualBoard();
-		visualBoard[row][column] = marker;
-		gui.setVisualBoard(visualBoard);
+		gui.confirmMove(column, row, marker);
+		return true;
 	}
 	
 	/**
 	 * Updates the GUI based off the most recent grid and a 
-	 * new string status to display.
+	 * new string status to display. The update is only recorded
+	 * here; the next frame applies whichever status and board are
+	 * newest, so several updates between frames cost one repaint.
 	 * 
 	 * @param message the message to display on the GUI.
 	 */
 	public void repaint(String message)
 	{
-		Platform.runLater(new Runnable()
+		pendingStatus.set(message);
+		displayDirty.set(true);
+	}
+	
+	/**
+	 * Begins applying display updates once per frame. Must be 
+	 * called on the JavaFX thread.
+	 */
+	private void startFrames()
+	{
+		frameTimer = new AnimationTimer()
 		{
 			@Override
-			public void run()
+			public void handle(long now)
 			{
-				gui.updateStatus(message);
+				// Nothing has changed since the last frame
+				if(!displayDirty.getAndSet(false))
+					return;
+				
+				gui.updateStatus(pendingStatus.get());
 				Scene scene = gui.updateDisplay();
-				primaryStage.setScene(scene);
-				primaryStage.show();
+				
+				if(primaryStage.getScene() != scene)
+				{
+					primaryStage.setScene(scene);
+					primaryStage.show();
+				}
 			}
-		});
+		};
+		
+		frameTimer.start();
 	}
 	
 	/**
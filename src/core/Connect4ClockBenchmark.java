@@ -0,0 +1,128 @@
+/**
+ * Measures the move clocks' timing wheel against a scheduled thread
+ * pool doing the same work. It sets a clock running for every game,
+ * then plays moves across them at random, each move cancelling the
+ * mover's deadline and scheduling the opponent's, and reports the
+ * cost of a move for both. Last, it lets a sample of deadlines fall
+ * due on the wheel and reports how late they ran.
+ *
+ * Usage:
+ *   java core.Connect4ClockBenchmark --clocks=100000 --moves=2000000
+ *        --sample=10000
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class Connect4ClockBenchmark
+{
+	// Deadlines are spread as a game's would be, well into the future
+	private static final long MAX_DELAY_MILLIS = 120_000;
+	private static final long MAX_SAMPLE_MILLIS = 3_000;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args the command line options
+	 * @throws InterruptedException thrown if interrupted while the sample runs
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		Connect4Args options = new Connect4Args(args);
+		int clockCount = options.getInt("clocks", 100_000);
+		int moveCount = options.getInt("moves", 2_000_000);
+		int sampleCount = options.getInt("sample", 10_000);
+		Runnable flag = () -> {};
+
+		// The timing wheel
+		TimingWheel wheel = new TimingWheel("benchmark-clock");
+		TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[clockCount];
+
+		long start = System.nanoTime();
+
+		for(int i = 0; i < clockCount; i++)
+			timeouts[i] = wheel.schedule(flag, randomDelay());
+
+		long wheelStartNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+
+		for(int move = 0; move < moveCount; move++)
+		{
+			int game = ThreadLocalRandom.current().nextInt(clockCount);
+			timeouts[game].cancel();
+			timeouts[game] = wheel.schedule(flag, randomDelay());
+		}
+
+		long wheelMoveNanos = System.nanoTime() - start;
+		int wheelPending = wheel.size();
+
+		// The scheduled thread pool, doing the same
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1);
+		pool.setRemoveOnCancelPolicy(true);
+		ScheduledFuture<?>[] futures = new ScheduledFuture<?>[clockCount];
+
+		start = System.nanoTime();
+
+		for(int i = 0; i < clockCount; i++)
+			futures[i] = pool.schedule(flag, randomDelay(), TimeUnit.MILLISECONDS);
+
+		long poolStartNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+
+		for(int move = 0; move < moveCount; move++)
+		{
+			int game = ThreadLocalRandom.current().nextInt(clockCount);
+			futures[game].cancel(false);
+			futures[game] = pool.schedule(flag, randomDelay(), TimeUnit.MILLISECONDS);
+		}
+
+		long poolMoveNanos = System.nanoTime() - start;
+		pool.shutdownNow();
+
+		System.out.println("clocks  timer                 start ns/clock   move ns");
+		System.out.printf("%6d  timing wheel          %14.0f  %8.0f%n", clockCount,
+				(double) wheelStartNanos / clockCount, (double) wheelMoveNanos / moveCount);
+		System.out.printf("%6d  scheduled thread pool %14.0f  %8.0f%n", clockCount,
+				(double) poolStartNanos / clockCount, (double) poolMoveNanos / moveCount);
+
+		// How late deadlines run, with every clock still pending
+		LatencyHistogram lateness = new LatencyHistogram();
+		CountDownLatch fired = new CountDownLatch(sampleCount);
+
+		for(int i = 0; i < sampleCount; i++)
+		{
+			long delay = ThreadLocalRandom.current().nextLong(MAX_SAMPLE_MILLIS);
+			long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+
+			wheel.schedule(() ->
+			{
+				lateness.recordSince(due);
+				fired.countDown();
+			}, delay);
+		}
+
+		fired.await();
+		wheel.close();
+
+		System.out.printf("%d deadlines with %d pending: late by p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+				sampleCount, wheelPending, lateness.getValueAtPercentile(50) / 1e6,
+				lateness.getValueAtPercentile(99) / 1e6, lateness.getMax() / 1e6);
+	}
+
+	/**
+	 * Picks how long a player has left on their clock.
+	 *
+	 * @return a delay in milliseconds
+	 */
+	private static long randomDelay()
+	{
+		return 1_000 + ThreadLocalRandom.current().nextLong(MAX_DELAY_MILLIS);
+	}
+}
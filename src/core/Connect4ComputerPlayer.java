@@ -2,15 +2,21 @@
  * Serves as the AI logic when playing against the computer.
  * 
  * @author Jonathan (Jack) MacArthur
- * @version 1.2
+ * @version 1.3
  */
 package core;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Connect4ComputerPlayer 
 {
+	// Scores for the kind of move chosen, from the computer's side
+	public static final int WIN_SCORE = 100;
+	public static final int BLOCK_SCORE = 50;
+	public static final int NEUTRAL_SCORE = 0;
+	
 	private Connect4 gameBoard;
+	private int lastScore = NEUTRAL_SCORE;
 	
 	/**
 	 * Constructor for a new ai player.
@@ -23,7 +29,8 @@ public class Connect4ComputerPlayer
 	}
 	
 	/**
-	 * Determines the computer's next move.
+	 * Determines the computer's next move. The kind of move
+	 * chosen is recorded, and can be read from getLastScore().
 	 * 
 	 * @return an integer with the computer's next move
 	 */
@@ -31,6 +38,14 @@ public class Connect4ComputerPlayer
 	{
 		// LOGIC TO DETERMINE COMPUTER MOVE
 		
+		// With nothing to respond to, take the center
+		if(gameBoard.getTurnCounter() == 0)
+		{
+			lastScore = NEUTRAL_SCORE;
+			gameBoard.set_lastMoveComputerMade(3);
+			return 3;
+		}
+		
 		int lastMovePlayed = gameBoard.get_lastMoveMade();
 		int rowOfLastMove = gameBoard.getLowestOpenRow(lastMovePlayed) + 1;
 		String lastMarker = gameBoard.get_lastMarkerPlaced();
@@ -47,6 +62,7 @@ public class Connect4ComputerPlayer
 				if(gameBoard.checkForWin(i))
 				{
 					gameBoard.removeMarker(i);
+					lastScore = WIN_SCORE;
 					return i;
 				}
 				else
@@ -63,8 +79,9 @@ public class Connect4ComputerPlayer
 		/*** BEGIN WITH BLOCKING ***/
 		/* VERTICAL BLOCKING */
 		
-		if(gameBoard.get_canWinVert())
+		if(gameBoard.get_canWinVert() && gameBoard.isValidMove(lastMovePlayed))
 		{
+			lastScore = BLOCK_SCORE;
 			gameBoard.set_lastMoveComputerMade(lastMovePlayed);
 			return lastMovePlayed;
 		}
@@ -86,26 +103,28 @@ public class Connect4ComputerPlayer
 			{
 				while(gameBoard.getLowestOpenRow(currentColumn) != rowOfLastMove)
 				{
-					if(gameBoard.get_gameBoard()[rowOfLastMove][currentColumn] != lastMarker)
+					if(gameBoard.getCell(rowOfLastMove, currentColumn) != lastMarker)
 					{
 						canBlockRight = false;
 						break;
 					}
 					
-					currentColumn++;
-					
+					// Stop at the edge rather than stepping off the board
 					if(currentColumn == 6)
 						break;
+					
+					currentColumn++;
 				}
 			
-				if(gameBoard.get_gameBoard()[rowOfLastMove][currentColumn] != lastMarker &&
-						gameBoard.get_gameBoard()[rowOfLastMove][currentColumn] != " ")
+				if(gameBoard.getCell(rowOfLastMove, currentColumn) != lastMarker &&
+						gameBoard.getCell(rowOfLastMove, currentColumn) != " ")
 				{
 					canBlockRight = false;
 				}
 				
-				if(currentColumn != 6 && canBlockRight)
+				if(currentColumn != 6 && canBlockRight && gameBoard.isValidMove(lastMovePlayed + 1))
 				{
+					lastScore = BLOCK_SCORE;
 					gameBoard.set_lastMoveComputerMade(lastMovePlayed + 1);
 					return lastMovePlayed + 1;
 				}
@@ -123,26 +142,31 @@ public class Connect4ComputerPlayer
 			{
 				while(gameBoard.getLowestOpenRow(currentColumn) != rowOfLastMove)
 				{
-					if(gameBoard.get_gameBoard()[rowOfLastMove][currentColumn] != lastMarker)
+					if(gameBoard.getCell(rowOfLastMove, currentColumn) != lastMarker)
 					{
 						canBlockLeft = false;
 						break;
 					}
-								
-					currentColumn--;
-								
+					
+					// Stop at the edge rather than stepping off the board
 					if(currentColumn == 0)
 						break;
+								
+					currentColumn--;
 				}
 						
-				if(gameBoard.get_gameBoard()[rowOfLastMove][currentColumn] != lastMarker &&
-						gameBoard.get_gameBoard()[rowOfLastMove][currentColumn] != " ")
+				if(gameBoard.getCell(rowOfLastMove, currentColumn) != lastMarker &&
+						gameBoard.getCell(rowOfLastMove, currentColumn) != " ")
 				{
 					canBlockLeft = false;
 				}
 				
-				gameBoard.set_lastMoveComputerMade(currentColumn);				
-				return currentColumn;
+				if(gameBoard.isValidMove(currentColumn))
+				{
+					lastScore = BLOCK_SCORE;
+					gameBoard.set_lastMoveComputerMade(currentColumn);				
+					return currentColumn;
+				}
 			}
 		}
 
@@ -155,14 +179,27 @@ public class Connect4ComputerPlayer
 		 * a random, valid move to make.
 		 */
 		
-		Random rand = new Random();
-		int defaultMove = rand.nextInt(6);
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int defaultMove = rand.nextInt(7);
 				
 		while(!gameBoard.isValidMove(defaultMove))
-			defaultMove = rand.nextInt(6); 
+			defaultMove = rand.nextInt(7); 
 			
+		lastScore = NEUTRAL_SCORE;
 		gameBoard.set_lastMoveComputerMade(defaultMove);
 		
 		return defaultMove;
 	}
+	
+	/**
+	 * Returns the score of the last move chosen, from the
+	 * computer's side: WIN_SCORE for a winning move, BLOCK_SCORE
+	 * for a block, or NEUTRAL_SCORE otherwise.
+	 * 
+	 * @return the score of the last move made
+	 */
+	public int getLastScore()
+	{
+		return lastScore;
+	}
 }
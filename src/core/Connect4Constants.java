@@ -23,6 +23,29 @@ public interface Connect4Constants
 	public static int DRAW = 30; 		// Indicate a draw
 	public static int CONTINUE = 40;	// Indicate to continue
 	public static int INVALID = 50; 	// Indicate to continue
+	public static int HEALTHY = 60;		// Indicate a server is accepting games
+	public static int OPPONENT_LEFT = 70;	// Indicate the other player has gone
+	public static int RESUMED = 80;		// Indicate a returning player's game state follows
+	public static int TIMEOUT = 90;		// Indicate a player ran out of time
+
+	// Game Type Information
+	public static int PVP_GAME = 0;		// Indicate a game between players
+	public static int AI_GAME = 1;		// Indicate a game against the computer
+	public static int HEALTH_CHECK = 2;	// Indicate a probe from a router
+	public static int MUX_GAME = 3;		// Indicate many games over one connection
+	public static int RESUME_GAME = 4;	// Indicate a player returning with a token
+	public static int SPECTATE = 5;		// Indicate a spectator wanting to watch a game
+	public static int RESUMABLE = 0x100;	// Added to a game type to be given a token
+	
+	// Multiplexed Frame Information
+	public static int MUX_OPEN = 100;	// Ask for a new game on a connection
+	public static int MUX_MOVE = 110;	// Play a move in one game of a connection
+	
+	// Admission Information
+	public static int SERVER_BUSY = 120;	// Indicate a connection was turned away
+	
+	// Connection Information
+	public static int DEFAULT_PORT = 8000;	// Port the server listens on
 	
 	// Output Displays
 	public static String waiting = "Waiting for Player 2 to Connect...";
@@ -34,6 +57,10 @@ public interface Connect4Constants
 	public static String p2Victory = "Player Two Wins!";
 	public static String computerVictory = "The Computer Wins!";
 	public static String draw = "The game ends in a draw";
+	public static String p1OutOfTime = "Player One Ran Out of Time.";
+	public static String p2OutOfTime = "Player Two Ran Out of Time.";
 	public static String error1 = "Invalid Move. Player 1 Please Try Again.";
 	public static String error2 = "Invalid Move. Player 2 Please Try Again.";
+	public static String columnFull = "That Column is Full. Please Choose Another.";
+	public static String serverBusy = "The Server is Busy. Please Try Again Later.";
 }	
@@ -0,0 +1,639 @@
+/**
+ * A headless load generator for the Connect4 server. It opens
+ * many concurrent connections which speak the same protocol as
+ * Connect4Client, plays complete PVP or AI games with random valid
+ * moves and a configurable think time, and reports connect
+ * latency, per-move latency percentiles and error rates.
+ *
+ * With --connections set, the clients instead share that many
+ * multiplexed connections through Connect4MuxClient, and play
+ * without a thread each. Connect latency is then the time taken
+ * for each game to begin.
+ *
+ * Every client connects from the same address, so the server under
+ * test should be run with --ipRate=0; otherwise most connections are
+ * turned away with SERVER_BUSY, and counted as busy.
+ *
+ * Usage:
+ *   java core.Connect4LoadTest --host=localhost --port=8000
+ *        --clients=1000 --games=5 --mode=pvp|ai|mixed
+ *        --think=none|fixed:MS|uniform:MIN:MAX|exp:MEAN
+ *        --ramp=MS --timeout=MS --connections=N
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.2
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class Connect4LoadTest implements Connect4Constants
+{
+	private static final long BOT_STACK_SIZE = 256 * 1024;
+	
+	// Settings
+	private final String host;
+	private final int port;
+	private final int clients;
+	private final int gamesPerClient;
+	private final String mode;
+	private final ThinkTime thinkTime;
+	private final int rampMillis;
+	private final int timeoutMillis;
+	private final int connections;
+
+	// Latencies, in nanoseconds
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram moveLatency = new LatencyHistogram();
+
+	// Outcomes
+	private final LongAdder gamesPlayed = new LongAdder();
+	private final LongAdder movesSent = new LongAdder();
+	private final LongAdder invalidReplies = new LongAdder();
+	private final LongAdder connectErrors = new LongAdder();
+	private final LongAdder busyReplies = new LongAdder();
+	private final LongAdder gameErrors = new LongAdder();
+
+	/**
+	 * Creates a load test from command line options.
+	 *
+	 * @param args the parsed command line options
+	 */
+	public Connect4LoadTest(Connect4Args args)
+	{
+		host = args.get("host", "localhost");
+		port = args.getInt("port", 8000);
+		clients = args.getInt("clients", 100);
+		gamesPerClient = args.getInt("games", 1);
+		mode = args.get("mode", "ai");
+		thinkTime = ThinkTime.parse(args.get("think", "none"));
+		rampMillis = args.getInt("ramp", 0);
+		timeoutMillis = args.getInt("timeout", 30000);
+		connections = args.getInt("connections", 0);
+
+		if(!mode.equals("pvp") && !mode.equals("ai") && !mode.equals("mixed"))
+			throw new IllegalArgumentException("--mode must be pvp, ai or mixed");
+	}
+
+	/**
+	 * Runs the load test and prints a report.
+	 *
+	 * @param args the command line options
+	 * @throws InterruptedException thrown if interrupted while waiting on clients
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		Connect4LoadTest test = new Connect4LoadTest(new Connect4Args(args));
+		long elapsed = test.run();
+		test.printReport(elapsed);
+	}
+
+	/**
+	 * Starts every client, then waits for all of them to finish.
+	 *
+	 * @return the wall clock time taken, in nanoseconds
+	 * @throws InterruptedException thrown if interrupted while waiting on clients
+	 */
+	public long run() throws InterruptedException
+	{
+		if(connections > 0)
+			return runMultiplexed();
+
+		CountDownLatch startGate = new CountDownLatch(1);
+		List<Thread> bots = new ArrayList<>(clients);
+
+		for(int i = 0; i < clients; i++)
+		{
+			int gameType = chooseGameType(i);
+			long delay = clients > 1 ? TimeUnit.MILLISECONDS.toNanos(rampMillis) * i / (clients - 1) : 0;
+
+			// Bots spend most of their time blocked, so small stacks will do
+			Thread bot = new Thread(null, () ->
+			{
+				try
+				{
+					startGate.await();
+				}
+				catch(InterruptedException ex)
+				{
+					return;
+				}
+
+				// Spread connections across the ramp period
+				if(delay > 0)
+					LockSupport.parkNanos(delay);
+
+				for(int game = 0; game < gamesPerClient; game++)
+					playGame(gameType);
+			}, "connect4-bot-" + i, BOT_STACK_SIZE);
+
+			bot.setDaemon(true);
+			bots.add(bot);
+			bot.start();
+		}
+
+		long start = System.nanoTime();
+		startGate.countDown();
+
+		for(Thread bot : bots)
+			bot.join();
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Runs every client over a few shared multiplexed connections.
+	 * Clients are driven by the connections' callbacks, with think
+	 * times served by a small scheduler, and wait for nothing else.
+	 *
+	 * @return the wall clock time taken, in nanoseconds
+	 * @throws InterruptedException thrown if interrupted while waiting on clients
+	 */
+	private long runMultiplexed() throws InterruptedException
+	{
+		List<Connect4MuxClient> links = new ArrayList<>(connections);
+
+		for(int i = 0; i < connections; i++)
+		{
+			try
+			{
+				links.add(Connect4MuxClient.connect(host, port, timeoutMillis));
+			}
+			catch(IOException ex)
+			{
+				connectErrors.increment();
+			}
+		}
+
+		if(links.isEmpty())
+			return 0;
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+				Runtime.getRuntime().availableProcessors(), r ->
+				{
+					Thread thread = new Thread(r, "connect4-bot-scheduler");
+					thread.setDaemon(true);
+					return thread;
+				});
+		CountDownLatch finished = new CountDownLatch(clients);
+
+		long start = System.nanoTime();
+
+		for(int i = 0; i < clients; i++)
+		{
+			MuxBot bot = new MuxBot(links.get(i % links.size()), chooseGameType(i), scheduler, finished);
+			long delay = clients > 1 ? TimeUnit.MILLISECONDS.toNanos(rampMillis) * i / (clients - 1) : 0;
+
+			scheduler.schedule(bot::nextGame, delay, TimeUnit.NANOSECONDS);
+		}
+
+		finished.await();
+		long elapsed = System.nanoTime() - start;
+
+		scheduler.shutdownNow();
+
+		for(Connect4MuxClient link : links)
+			link.close();
+
+		return elapsed;
+	}
+
+	/**
+	 * Picks the type of game a client plays.
+	 *
+	 * @param client the index of the client
+	 * @return the game type for that client
+	 */
+	private int chooseGameType(int client)
+	{
+		if(mode.equals("pvp"))
+			return PVP_GAME;
+		else if(mode.equals("ai"))
+			return AI_GAME;
+
+		// Mixed runs keep pairs of PVP clients together
+		return (client / 2) % 2 == 0 ? PVP_GAME : AI_GAME;
+	}
+
+	/**
+	 * Connects, plays a single game to completion and disconnects.
+	 * Any failure is counted as an error rather than thrown.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game to play
+	 */
+	private void playGame(int gameType)
+	{
+		Socket socket = new Socket();
+		DataInputStream fromServer;
+		DataOutputStream toServer;
+		int player;
+
+		// *** CONNECT AND HANDSHAKE *** //
+		long connectStart = System.nanoTime();
+
+		try
+		{
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeoutMillis);
+			socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+
+			fromServer = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			toServer = new DataOutputStream(socket.getOutputStream());
+
+			toServer.writeInt(gameType);
+			player = fromServer.readInt();
+			connectLatency.recordSince(connectStart);
+		}
+		catch(IOException ex)
+		{
+			connectErrors.increment();
+			closeQuietly(socket);
+			return;
+		}
+
+		// Turned away by admission control
+		if(player == SERVER_BUSY)
+		{
+			busyReplies.increment();
+			connectErrors.increment();
+			closeQuietly(socket);
+			return;
+		}
+
+		// *** PLAY THE GAME *** //
+		try
+		{
+			// Player one waits for the session to begin
+			if(player == PLAYER1)
+				fromServer.readInt();
+
+			Connect4 shadow = new Connect4();
+			int status = CONTINUE;
+
+			while(status == CONTINUE)
+			{
+				boolean myTurn = (shadow.getTurnCounter() % 2 == 0) == (player == PLAYER1);
+
+				if(myTurn)
+				{
+					thinkTime.pause();
+
+					long moveStart = System.nanoTime();
+					toServer.writeInt(randomValidColumn(shadow));
+					movesSent.increment();
+
+					// A shadow board should never produce an invalid move
+					while(fromServer.readInt() == INVALID)
+					{
+						invalidReplies.increment();
+						toServer.writeInt(randomValidColumn(shadow));
+					}
+
+					status = readMove(fromServer, shadow);
+					moveLatency.recordSince(moveStart);
+				}
+				else
+				{
+					if(fromServer.readInt() != CONTINUE)
+						throw new IOException("Unexpected status from server");
+
+					status = readMove(fromServer, shadow);
+				}
+			}
+
+			gamesPlayed.increment();
+		}
+		catch(IOException ex)
+		{
+			gameErrors.increment();
+		}
+		finally
+		{
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Reads the column, row and status of a move which the server
+	 * has accepted, and applies it to the shadow board.
+	 *
+	 * @param fromServer the stream from the server
+	 * @param shadow the local copy of the board
+	 * @return the status following the move
+	 * @throws IOException thrown if communication fails or the move disagrees
+	 */
+	private static int readMove(DataInputStream fromServer, Connect4 shadow) throws IOException
+	{
+		int column = fromServer.readInt();
+		int row = fromServer.readInt();
+
+		if(!shadow.isValidMove(column) || shadow.placeMarker(column) != row)
+			throw new IOException("Server move disagrees with shadow board");
+
+		return fromServer.readInt();
+	}
+
+	/**
+	 * Picks a random column which is not yet full.
+	 *
+	 * @param shadow the local copy of the board
+	 * @return a valid column
+	 */
+	private static int randomValidColumn(Connect4 shadow)
+	{
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int column = rand.nextInt(COLUMNS);
+
+		while(!shadow.isValidMove(column))
+			column = rand.nextInt(COLUMNS);
+
+		return column;
+	}
+
+	/**
+	 * Closes a socket, ignoring any failure to do so.
+	 *
+	 * @param socket the socket to close
+	 */
+	private static void closeQuietly(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch(IOException ex)
+		{
+			// Nothing left to clean up
+		}
+	}
+
+	/**
+	 * Prints the results of the run.
+	 *
+	 * @param elapsedNanos the wall clock time the run took
+	 */
+	public void printReport(long elapsedNanos)
+	{
+		double seconds = elapsedNanos / 1e9;
+		long games = gamesPlayed.sum();
+		long moves = movesSent.sum();
+		long attempts = (long) clients * gamesPerClient;
+
+		System.out.printf("Clients: %d  Games/client: %d  Mode: %s  Think: %s%s%n",
+				clients, gamesPerClient, mode, thinkTime,
+				connections > 0 ? "  Connections: " + connections : "");
+		System.out.printf("Elapsed: %.2f s%n", seconds);
+		System.out.printf("Games completed: %d of %d (%.1f games/s)%n", games, attempts, games / seconds);
+		System.out.printf("Moves sent: %d (%.1f moves/s)%n", moves, moves / seconds);
+		System.out.printf("Errors: connect %d (%d busy), in game %d, invalid replies %d (%.2f%% of games)%n",
+				connectErrors.sum(), busyReplies.sum(), gameErrors.sum(), invalidReplies.sum(),
+				attempts == 0 ? 0.0 : 100.0 * (connectErrors.sum() + gameErrors.sum()) / attempts);
+		printLatency("Connect latency", connectLatency);
+		printLatency("Move latency", moveLatency);
+	}
+
+	/**
+	 * Prints the percentiles of a latency histogram in microseconds.
+	 *
+	 * @param name the name of the measurement
+	 * @param histogram the recorded latencies
+	 */
+	private static void printLatency(String name, LatencyHistogram histogram)
+	{
+		System.out.printf("%s (us): n=%d p50=%d p99=%d p999=%d max=%d%n", name,
+				histogram.getCount(),
+				TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(50)),
+				TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99)),
+				TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99.9)),
+				TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+	}
+
+	/**
+	 * A distribution of simulated think times between a bot's moves.
+	 */
+	static class ThinkTime
+	{
+		private final String kind;
+		private final double first, second;
+
+		private ThinkTime(String kind, double first, double second)
+		{
+			this.kind = kind;
+			this.first = first;
+			this.second = second;
+		}
+
+		/**
+		 * Parses a distribution such as "fixed:50", "uniform:10:200"
+		 * or "exp:100", all in milliseconds.
+		 *
+		 * @param spec the distribution to parse
+		 * @return the parsed distribution
+		 */
+		static ThinkTime parse(String spec)
+		{
+			String[] parts = spec.split(":");
+
+			try
+			{
+				switch(parts[0])
+				{
+					case "none":
+						return new ThinkTime("none", 0, 0);
+					case "fixed":
+						return new ThinkTime("fixed", Double.parseDouble(parts[1]), 0);
+					case "uniform":
+						return new ThinkTime("uniform", Double.parseDouble(parts[1]),
+								Double.parseDouble(parts[2]));
+					case "exp":
+						return new ThinkTime("exp", Double.parseDouble(parts[1]), 0);
+					default:
+						break;
+				}
+			}
+			catch(ArrayIndexOutOfBoundsException | NumberFormatException ex)
+			{
+				// Fall through to the error below
+			}
+
+			throw new IllegalArgumentException("--think must be none, fixed:MS, "
+					+ "uniform:MIN:MAX or exp:MEAN, not " + spec);
+		}
+
+		/**
+		 * Sleeps for a think time drawn from this distribution.
+		 */
+		void pause()
+		{
+			long nanos = next();
+
+			if(nanos > 0)
+				LockSupport.parkNanos(nanos);
+		}
+
+		/**
+		 * Draws a think time from this distribution.
+		 *
+		 * @return the think time in nanoseconds, 0 for none
+		 */
+		long next()
+		{
+			ThreadLocalRandom rand = ThreadLocalRandom.current();
+			double millis;
+
+			if(kind.equals("fixed"))
+				millis = first;
+			else if(kind.equals("uniform"))
+				millis = first + rand.nextDouble() * (second - first);
+			else if(kind.equals("exp"))
+				millis = -first * Math.log(1.0 - rand.nextDouble());
+			else
+				return 0;
+
+			return (long) (millis * 1e6);
+		}
+
+		@Override
+		public String toString()
+		{
+			if(kind.equals("none"))
+				return kind;
+			else if(kind.equals("uniform"))
+				return kind + ":" + first + ":" + second;
+
+			return kind + ":" + first;
+		}
+	}
+
+	/**
+	 * A client playing its games over a shared multiplexed connection.
+	 * It acts only when the connection tells it something, so it
+	 * needs no thread of its own.
+	 */
+	private class MuxBot implements Connect4MuxClient.Listener
+	{
+		private final Connect4MuxClient link;
+		private final int gameType;
+		private final ScheduledExecutorService scheduler;
+		private final CountDownLatch finished;
+		private int gamesLeft = gamesPerClient;
+
+		// The game in progress
+		private Connect4 shadow;
+		private boolean disagreed;
+		private long moveStart;
+
+		MuxBot(Connect4MuxClient link, int gameType, ScheduledExecutorService scheduler,
+				CountDownLatch finished)
+		{
+			this.link = link;
+			this.gameType = gameType;
+			this.scheduler = scheduler;
+			this.finished = finished;
+		}
+
+		/**
+		 * Opens the next game, or reports the bot finished.
+		 */
+		void nextGame()
+		{
+			if(gamesLeft-- == 0)
+			{
+				finished.countDown();
+				return;
+			}
+
+			shadow = new Connect4();
+			disagreed = false;
+			long openStart = System.nanoTime();
+
+			link.openGame(gameType, this).whenComplete((game, ex) ->
+			{
+				if(ex != null)
+				{
+					connectErrors.increment();
+					nextGame();
+					return;
+				}
+
+				connectLatency.recordSince(openStart);
+				game.getResult().whenComplete((result, failure) ->
+				{
+					if(failure != null || result == OPPONENT_LEFT || disagreed)
+						gameErrors.increment();
+					else
+						gamesPlayed.increment();
+
+					nextGame();
+				});
+
+				if(game.isMyTurn())
+					takeTurn(game);
+			});
+		}
+
+		@Override
+		public void moveMade(Connect4MuxClient.Game game, int column, int row, int status)
+		{
+			boolean mine = (shadow.getTurnCounter() % 2 == 0) == (game.getPlayer() == PLAYER1);
+
+			// A shadow board should never disagree with the server
+			if(!shadow.isValidMove(column) || shadow.placeMarker(column) != row)
+				disagreed = true;
+
+			if(mine)
+				moveLatency.recordSince(moveStart);
+
+			if(status == CONTINUE && !mine)
+				takeTurn(game);
+		}
+
+		@Override
+		public void moveRefused(Connect4MuxClient.Game game, int column)
+		{
+			invalidReplies.increment();
+			play(game);
+		}
+
+		/**
+		 * Plays after a think time, or at once if there is none.
+		 *
+		 * @param game the game to move in
+		 */
+		private void takeTurn(Connect4MuxClient.Game game)
+		{
+			long think = thinkTime.next();
+
+			if(think == 0)
+				play(game);
+			else
+				scheduler.schedule(() -> play(game), think, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Sends a random valid move.
+		 *
+		 * @param game the game to move in
+		 */
+		private void play(Connect4MuxClient.Game game)
+		{
+			moveStart = System.nanoTime();
+			movesSent.increment();
+			game.play(randomValidColumn(shadow));
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Starts a whole cluster on one machine for testing: several
+ * Connect4ServerEngine processes on consecutive loopback ports,
+ * and a Connect4Router in front of them on the usual port.
+ * Clients and Connect4LoadTest connect to the router exactly as
+ * they would to a single server. Stopping this process stops
+ * every node it started.
+ *
+ * Usage:
+ *   java core.Connect4LocalCluster --nodes=3 --port=8000
+ *        --basePort=8001 --shards=2
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Connect4LocalCluster implements Connect4Constants
+{
+	/**
+	 * Launches the node processes, then runs the router in this one.
+	 *
+	 * @param args the command line options
+	 * @throws IOException thrown if a process or the router cannot start
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Connect4Args options = new Connect4Args(args);
+		int nodeCount = options.getInt("nodes", 3);
+		int basePort = options.getInt("basePort", DEFAULT_PORT + 1);
+		int shards = options.getInt("shards", 2);
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classPath = System.getProperty("java.class.path");
+
+		List<Process> processes = new ArrayList<>();
+		StringBuilder nodes = new StringBuilder();
+
+		for(int i = 0; i < nodeCount; i++)
+		{
+			int port = basePort + i;
+
+			// Every client reaches a node from the router's address, so the router limits rates
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath,
+					Connect4ServerEngine.class.getName(), "--port=" + port, "--shards=" + shards,
+					"--metricsFile=connect4-metrics-" + port + ".txt", "--ipRate=0");
+			builder.inheritIO();
+			processes.add(builder.start());
+
+			if(i > 0)
+				nodes.append(',');
+
+			nodes.append("localhost:").append(port);
+		}
+
+		// Take the nodes down with the cluster
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			for(Process process : processes)
+				process.destroy();
+		}));
+
+		new Connect4Router(new Connect4Args(new String[] {
+				"--port=" + options.getInt("port", DEFAULT_PORT),
+				"--nodes=" + nodes,
+				"--healthInterval=" + options.getInt("healthInterval", 1000) })).run();
+	}
+}
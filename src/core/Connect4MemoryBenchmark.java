@@ -0,0 +1,270 @@
+/**
+ * Measures what an idle game costs the server to hold. It starts a
+ * server in this JVM, then has a second JVM open games against it
+ * and leave each waiting on its first move, as a player thinking
+ * would. Once every game is live it reports the heap each one holds
+ * and the threads each one keeps, for games played over their own
+ * connection and for games multiplexed many to a connection. It
+ * first reports the heap held by a board alone.
+ *
+ * Sessions over their own connection each keep a thread, whose
+ * stack lives outside the heap; multiplexed games keep none, and
+ * are the way to hold a very large number of idle games.
+ *
+ * Usage:
+ *   java core.Connect4MemoryBenchmark --mode=board,mux,socket
+ *        --boards=100000 --muxGames=100000 --muxConnections=100
+ *        --socketGames=2000
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Connect4MemoryBenchmark implements Connect4Constants
+{
+	// Moves made on each board measured, as in a game under way
+	private static final int BOARD_MOVES = 12;
+
+	/**
+	 * Runs the benchmark, or the half of it which opens the games.
+	 *
+	 * @param args the command line options
+	 * @throws Exception thrown if the server or the clients fail
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Connect4Args options = new Connect4Args(args);
+
+		if(options.has("clientsOf"))
+		{
+			openGames(options);
+			return;
+		}
+
+		System.out.println("kind            count  heap bytes/game  threads/game");
+
+		for(String mode : options.get("mode", "board,mux,socket").split(","))
+		{
+			switch(mode.trim())
+			{
+				case "board":
+					measureBoards(options.getInt("boards", 100_000));
+					break;
+				case "mux":
+					measureSessions("mux", options.getInt("muxGames", 100_000),
+							options.getInt("muxConnections", 100));
+					break;
+				case "socket":
+					measureSessions("socket", options.getInt("socketGames", 2000), 0);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown mode " + mode);
+			}
+		}
+	}
+
+	/**
+	 * Reports the heap held by boards part way through a game.
+	 *
+	 * @param count the number of boards to hold
+	 */
+	private static void measureBoards(int count)
+	{
+		Connect4[] boards = new Connect4[count];
+		long before = usedHeap();
+
+		for(int i = 0; i < count; i++)
+		{
+			Connect4 board = new Connect4();
+
+			while(board.getTurnCounter() < BOARD_MOVES)
+			{
+				int column = ThreadLocalRandom.current().nextInt(COLUMNS);
+
+				if(board.isValidMove(column))
+					board.placeMarker(column);
+			}
+
+			boards[i] = board;
+		}
+
+		long held = usedHeap() - before;
+		report("board", count, held, 0);
+
+		// Keep the boards reachable until they have been measured
+		if(boards[count - 1].getTurnCounter() != BOARD_MOVES)
+			throw new IllegalStateException();
+	}
+
+	/**
+	 * Reports the heap and threads held by idle games, opened by a
+	 * second JVM so none of the clients' own costs are counted.
+	 *
+	 * @param mode "mux" or "socket"
+	 * @param games the number of games to open
+	 * @param connections the connections multiplexed games share
+	 * @throws Exception thrown if the server or the clients fail
+	 */
+	private static void measureSessions(String mode, int games, int connections) throws Exception
+	{
+		Connect4Metrics metrics = new Connect4Metrics();
+		Connect4ServerEngine engine = new Connect4ServerEngine(new Connect4Args(new String[] {
+				"--port=0", "--shards=1", "--archive=none", "--wal=none", "--clock=none",
+				"--maxSessions=0", "--maxHandshakes=0", "--ipRate=0" }), metrics, message -> { });
+		engine.start();
+
+		Process clients = null;
+
+		try
+		{
+			long heapBefore = usedHeap();
+			int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			clients = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					Connect4MemoryBenchmark.class.getName(), "--clientsOf=" + engine.getPort(),
+					"--mode=" + mode, "--games=" + games, "--connections=" + connections)
+					.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+			BufferedReader status = new BufferedReader(new InputStreamReader(clients.getInputStream()));
+
+			if(!"ready".equals(status.readLine()))
+				throw new IOException("The clients could not open their games");
+
+			// The last games may still be starting on the server's side
+			while(metrics.getLiveSessions() < games)
+				Thread.sleep(10);
+
+			long held = usedHeap() - heapBefore;
+			int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+			report(mode + " session", games, held, threads);
+		}
+		finally
+		{
+			if(clients != null)
+			{
+				clients.getOutputStream().close();
+				clients.waitFor();
+			}
+
+			engine.stop();
+		}
+	}
+
+	/**
+	 * Opens games against the server and leaves them waiting, saying
+	 * "ready" once all are open and exiting once told to by standard
+	 * input closing. Runs in the second JVM.
+	 *
+	 * @param options the port, mode, number of games and connections
+	 * @throws Exception thrown if a game cannot be opened
+	 */
+	private static void openGames(Connect4Args options) throws Exception
+	{
+		int port = options.getInt("clientsOf", 8000);
+		int games = options.getInt("games", 1000);
+		String host = InetAddress.getLoopbackAddress().getHostAddress();
+		List<AutoCloseable> links = new ArrayList<>();
+
+		if(options.get("mode", "mux").equals("mux"))
+		{
+			Connect4MuxClient.Listener ignore = new Connect4MuxClient.Listener()
+			{
+				@Override
+				public void moveMade(Connect4MuxClient.Game game, int column, int row, int status)
+				{
+				}
+
+				@Override
+				public void moveRefused(Connect4MuxClient.Game game, int column)
+				{
+				}
+			};
+
+			int connections = Math.max(1, options.getInt("connections", 100));
+			List<CompletableFuture<Connect4MuxClient.Game>> opened = new ArrayList<>(games);
+
+			for(int i = 0; i < connections; i++)
+			{
+				Connect4MuxClient client = Connect4MuxClient.connect(host, port, 3000);
+				links.add(client);
+
+				for(int game = i; game < games; game += connections)
+					opened.add(client.openGame(AI_GAME, ignore));
+			}
+
+			for(CompletableFuture<Connect4MuxClient.Game> game : opened)
+				game.join();
+		}
+		else
+		{
+			for(int i = 0; i < games; i++)
+			{
+				Socket socket = new Socket(host, port);
+				links.add(socket);
+
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeInt(AI_GAME);
+				out.flush();
+
+				// The player number, then the signal to begin
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				in.readInt();
+				in.readInt();
+			}
+		}
+
+		System.out.println("ready");
+		System.out.flush();
+
+		while(System.in.read() >= 0)
+		{
+			// Hold every game open until the server has been measured
+		}
+
+		for(AutoCloseable link : links)
+			link.close();
+	}
+
+	/**
+	 * Returns the heap in use once garbage has been collected.
+	 *
+	 * @return the bytes of heap in use
+	 */
+	private static long usedHeap()
+	{
+		for(int i = 0; i < 3; i++)
+			System.gc();
+
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Prints one line of the report.
+	 *
+	 * @param kind what was measured
+	 * @param count how many were held
+	 * @param heap the heap they held, in bytes
+	 * @param threads the threads they kept
+	 */
+	private static void report(String kind, int count, long heap, int threads)
+	{
+		System.out.printf("%-14s  %6d  %15.0f  %12.2f%n", kind, count, (double) heap / count,
+				(double) threads / count);
+	}
+}
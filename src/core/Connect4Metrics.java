@@ -0,0 +1,474 @@
+/**
+ * Collects counters, gauges and latency histograms for the
+ * server's accept and session paths. Every recording method
+ * is lock-free, and the collected values are exposed both over
+ * JMX and as a plain-text scrape file which is rewritten on
+ * a fixed interval.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Connect4Metrics implements Connect4MetricsMBean, Connect4Constants
+{
+	// Default Export Settings
+	public static final String OBJECT_NAME = "core:type=Connect4Metrics";
+	public static final String SCRAPE_FILE = "connect4-metrics.txt";
+	public static final int SCRAPE_SECONDS = 5;
+
+	// Counters
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder connectionsRejectedBusy = new LongAdder();
+	private final LongAdder connectionsRejectedRate = new LongAdder();
+	private final LongAdder pvpGamesStarted = new LongAdder();
+	private final LongAdder aiGamesStarted = new LongAdder();
+	private final LongAdder pvpGamesFinished = new LongAdder();
+	private final LongAdder aiGamesFinished = new LongAdder();
+	private final LongAdder player1Wins = new LongAdder();
+	private final LongAdder player2Wins = new LongAdder();
+	private final LongAdder draws = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder invalidMoves = new LongAdder();
+	private final LongAdder movesPlayed = new LongAdder();
+	private final LongAdder slowClientsDropped = new LongAdder();
+
+	// Gauges
+	private final LongAdder liveSessions = new LongAdder();
+	private final LongAdder pendingMatchmaking = new LongAdder();
+
+	// Histograms, in nanoseconds
+	private final LatencyHistogram moveLatency = new LatencyHistogram();
+	private final LatencyHistogram aiThinkTime = new LatencyHistogram();
+
+	// Scrape File Writer
+	private ScheduledExecutorService scraper;
+
+	/**
+	 * Records a newly accepted connection.
+	 */
+	public void connectionAccepted()
+	{
+		connectionsAccepted.increment();
+	}
+
+	/**
+	 * Records the start of a game, which also opens a live session.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game started
+	 */
+	public void gameStarted(int gameType)
+	{
+		if(gameType == PVP_GAME)
+			pvpGamesStarted.increment();
+		else
+			aiGamesStarted.increment();
+
+		liveSessions.increment();
+	}
+
+	/**
+	 * Records the end of a game, which also closes its live session.
+	 * Games abandoned part way through are counted as finished with
+	 * a result of CONTINUE, and are not counted as a win or draw.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game finished
+	 * @param result the final status of the game
+	 */
+	public void gameFinished(int gameType, int result)
+	{
+		if(gameType == PVP_GAME)
+			pvpGamesFinished.increment();
+		else
+			aiGamesFinished.increment();
+
+		if(result == PLAYER1_WON)
+			player1Wins.increment();
+		else if(result == PLAYER2_WON)
+			player2Wins.increment();
+		else if(result == DRAW)
+			draws.increment();
+		else if(result == TIMEOUT)
+			timeouts.increment();
+
+		liveSessions.decrement();
+	}
+
+	/**
+	 * Records a move rejected by the server.
+	 */
+	public void invalidMove()
+	{
+		invalidMoves.increment();
+	}
+
+	/**
+	 * Records a move accepted by the server, along with the time
+	 * taken from reading it to reporting it to every player.
+	 *
+	 * @param startNanos the nano time at which the move was read
+	 */
+	public void movePlayed(long startNanos)
+	{
+		movesPlayed.increment();
+		moveLatency.recordSince(startNanos);
+	}
+
+	/**
+	 * Records a connection turned away on accept.
+	 *
+	 * @param rateLimited true if its address was over its rate, false if the server was busy
+	 */
+	public void connectionRejected(boolean rateLimited)
+	{
+		if(rateLimited)
+			connectionsRejectedRate.increment();
+		else
+			connectionsRejectedBusy.increment();
+	}
+
+	/**
+	 * Records a client disconnected for not reading what it was sent.
+	 */
+	public void slowClientDropped()
+	{
+		slowClientsDropped.increment();
+	}
+
+	/**
+	 * Records the time the computer took to pick a move.
+	 *
+	 * @param startNanos the nano time at which the computer began
+	 */
+	public void aiMoveMade(long startNanos)
+	{
+		aiThinkTime.recordSince(startNanos);
+	}
+
+	/**
+	 * Records a player beginning or ending a wait for a partner.
+	 *
+	 * @param delta 1 when a player starts waiting, -1 once they are paired
+	 */
+	public void matchmakingChanged(int delta)
+	{
+		pendingMatchmaking.add(delta);
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server.
+	 *
+	 * @throws JMException thrown if registration fails
+	 */
+	public void register() throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+
+		// Replace any copy left behind by an earlier server
+		if(server.isRegistered(name))
+			server.unregisterMBean(name);
+
+		server.registerMBean(this, name);
+	}
+
+	/**
+	 * Begins rewriting the scrape file on a fixed interval. The file
+	 * is written beside the target and moved into place, so readers
+	 * never see a partial file.
+	 *
+	 * @param file the path of the scrape file
+	 * @param seconds the interval between writes
+	 */
+	public synchronized void startScrapeFile(Path file, int seconds)
+	{
+		if(scraper != null)
+			return;
+
+		scraper = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "connect4-metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		scraper.scheduleAtFixedRate(() ->
+		{
+			try
+			{
+				Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+				Files.write(temp, getScrapeText().getBytes(StandardCharsets.UTF_8));
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch(IOException ex)
+			{
+				ex.printStackTrace();
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops rewriting the scrape file.
+	 */
+	public synchronized void stopScrapeFile()
+	{
+		if(scraper != null)
+		{
+			scraper.shutdownNow();
+			scraper = null;
+		}
+	}
+
+	/**
+	 * Allows access to the move latency histogram.
+	 *
+	 * @return the histogram of move latencies, in nanoseconds
+	 */
+	public LatencyHistogram getMoveLatency()
+	{
+		return moveLatency;
+	}
+
+	/**
+	 * Allows access to the computer's think time histogram.
+	 *
+	 * @return the histogram of think times, in nanoseconds
+	 */
+	public LatencyHistogram getAiThinkTime()
+	{
+		return aiThinkTime;
+	}
+
+	/**
+	 * Renders every metric as one "name value" pair per line.
+	 *
+	 * @return the plain-text form of all metrics
+	 */
+	@Override
+	public String getScrapeText()
+	{
+		StringBuilder out = new StringBuilder();
+
+		line(out, "connect4_connections_accepted_total", getConnectionsAccepted());
+		line(out, "connect4_connections_rejected_total{reason=\"busy\"}", getConnectionsRejectedBusy());
+		line(out, "connect4_connections_rejected_total{reason=\"rate\"}", getConnectionsRejectedRate());
+		line(out, "connect4_games_started_total{type=\"pvp\"}", getPvpGamesStarted());
+		line(out, "connect4_games_started_total{type=\"ai\"}", getAiGamesStarted());
+		line(out, "connect4_games_finished_total{type=\"pvp\"}", getPvpGamesFinished());
+		line(out, "connect4_games_finished_total{type=\"ai\"}", getAiGamesFinished());
+		line(out, "connect4_results_total{result=\"player1\"}", getPlayer1Wins());
+		line(out, "connect4_results_total{result=\"player2\"}", getPlayer2Wins());
+		line(out, "connect4_results_total{result=\"draw\"}", getDraws());
+		line(out, "connect4_results_total{result=\"timeout\"}", getTimeouts());
+		line(out, "connect4_invalid_moves_total", getInvalidMoves());
+		line(out, "connect4_moves_total", getMovesPlayed());
+		line(out, "connect4_slow_clients_dropped_total", getSlowClientsDropped());
+		line(out, "connect4_live_sessions", getLiveSessions());
+		line(out, "connect4_pending_matchmaking", getPendingMatchmaking());
+		histogram(out, "connect4_move_latency_micros", moveLatency);
+		histogram(out, "connect4_ai_think_micros", aiThinkTime);
+
+		return out.toString();
+	}
+
+	/**
+	 * Appends a single metric line.
+	 *
+	 * @param out the builder to append to
+	 * @param name the name of the metric
+	 * @param value the value of the metric
+	 */
+	private static void line(StringBuilder out, String name, long value)
+	{
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends the count and key percentiles of a histogram.
+	 *
+	 * @param out the builder to append to
+	 * @param name the base name of the metric
+	 * @param histogram the histogram to render
+	 */
+	private static void histogram(StringBuilder out, String name, LatencyHistogram histogram)
+	{
+		line(out, name + "_count", histogram.getCount());
+		line(out, name + "{quantile=\"0.5\"}", micros(histogram.getValueAtPercentile(50)));
+		line(out, name + "{quantile=\"0.99\"}", micros(histogram.getValueAtPercentile(99)));
+		line(out, name + "{quantile=\"0.999\"}", micros(histogram.getValueAtPercentile(99.9)));
+		line(out, name + "_max", micros(histogram.getMax()));
+	}
+
+	/**
+	 * Converts nanoseconds to whole microseconds.
+	 *
+	 * @param nanos the nanoseconds to convert
+	 * @return the equivalent microseconds
+	 */
+	private static long micros(long nanos)
+	{
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	/* JMX ATTRIBUTES */
+
+	@Override
+	public long getConnectionsAccepted()
+	{
+		return connectionsAccepted.sum();
+	}
+
+	@Override
+	public long getConnectionsRejectedBusy()
+	{
+		return connectionsRejectedBusy.sum();
+	}
+
+	@Override
+	public long getConnectionsRejectedRate()
+	{
+		return connectionsRejectedRate.sum();
+	}
+
+	@Override
+	public long getPvpGamesStarted()
+	{
+		return pvpGamesStarted.sum();
+	}
+
+	@Override
+	public long getAiGamesStarted()
+	{
+		return aiGamesStarted.sum();
+	}
+
+	@Override
+	public long getPvpGamesFinished()
+	{
+		return pvpGamesFinished.sum();
+	}
+
+	@Override
+	public long getAiGamesFinished()
+	{
+		return aiGamesFinished.sum();
+	}
+
+	@Override
+	public long getPlayer1Wins()
+	{
+		return player1Wins.sum();
+	}
+
+	@Override
+	public long getPlayer2Wins()
+	{
+		return player2Wins.sum();
+	}
+
+	@Override
+	public long getDraws()
+	{
+		return draws.sum();
+	}
+
+	@Override
+	public long getTimeouts()
+	{
+		return timeouts.sum();
+	}
+
+	@Override
+	public long getInvalidMoves()
+	{
+		return invalidMoves.sum();
+	}
+
+	@Override
+	public long getMovesPlayed()
+	{
+		return movesPlayed.sum();
+	}
+
+	@Override
+	public long getSlowClientsDropped()
+	{
+		return slowClientsDropped.sum();
+	}
+
+	@Override
+	public long getLiveSessions()
+	{
+		return liveSessions.sum();
+	}
+
+	@Override
+	public long getPendingMatchmaking()
+	{
+		return pendingMatchmaking.sum();
+	}
+
+	@Override
+	public long getMoveLatencyP50Micros()
+	{
+		return micros(moveLatency.getValueAtPercentile(50));
+	}
+
+	@Override
+	public long getMoveLatencyP99Micros()
+	{
+		return micros(moveLatency.getValueAtPercentile(99));
+	}
+
+	@Override
+	public long getMoveLatencyP999Micros()
+	{
+		return micros(moveLatency.getValueAtPercentile(99.9));
+	}
+
+	@Override
+	public long getMoveLatencyMaxMicros()
+	{
+		return micros(moveLatency.getMax());
+	}
+
+	@Override
+	public long getAiThinkP50Micros()
+	{
+		return micros(aiThinkTime.getValueAtPercentile(50));
+	}
+
+	@Override
+	public long getAiThinkP99Micros()
+	{
+		return micros(aiThinkTime.getValueAtPercentile(99));
+	}
+
+	@Override
+	public long getAiThinkP999Micros()
+	{
+		return micros(aiThinkTime.getValueAtPercentile(99.9));
+	}
+
+	@Override
+	public long getAiThinkMaxMicros()
+	{
+		return micros(aiThinkTime.getMax());
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * The management interface through which the server's
+ * metrics are exposed over JMX.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+public interface Connect4MetricsMBean
+{
+	// Counters
+	public long getConnectionsAccepted();
+	public long getConnectionsRejectedBusy();
+	public long getConnectionsRejectedRate();
+	public long getPvpGamesStarted();
+	public long getAiGamesStarted();
+	public long getPvpGamesFinished();
+	public long getAiGamesFinished();
+	public long getPlayer1Wins();
+	public long getPlayer2Wins();
+	public long getDraws();
+	public long getTimeouts();
+	public long getInvalidMoves();
+	public long getMovesPlayed();
+	public long getSlowClientsDropped();
+
+	// Gauges
+	public long getLiveSessions();
+	public long getPendingMatchmaking();
+
+	// Latencies, in microseconds
+	public long getMoveLatencyP50Micros();
+	public long getMoveLatencyP99Micros();
+	public long getMoveLatencyP999Micros();
+	public long getMoveLatencyMaxMicros();
+	public long getAiThinkP50Micros();
+	public long getAiThinkP99Micros();
+	public long getAiThinkP999Micros();
+	public long getAiThinkMaxMicros();
+
+	// Scrape Output
+	public String getScrapeText();
+}
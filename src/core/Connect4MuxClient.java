@@ -0,0 +1,375 @@
+/**
+ * A client library for automated players, which plays any number
+ * of concurrent games over a single connection to the server. It
+ * has no display, and needs no thread per game: one reader thread
+ * per connection delivers every event, and games are opened and
+ * finished through futures. See MuxConnection for the frames used.
+ *
+ * Usage:
+ *   Connect4MuxClient client = Connect4MuxClient.connect("localhost", 8000, 3000);
+ *   client.openGame(AI_GAME, listener).thenAccept(game -> game.play(3));
+ *
+ * Listener callbacks and completions of the futures run on the
+ * reader thread, so they should never block.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Connect4MuxClient implements Closeable, Connect4Constants
+{
+	// Connection Needs
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final Thread reader;
+
+	// Games opened on this connection, by id
+	private final Map<Integer, Game> games = new ConcurrentHashMap<>();
+	private final AtomicInteger nextGameId = new AtomicInteger(1);
+	private volatile boolean closed;
+
+	/**
+	 * Wraps a connected socket, asks the server for a multiplexed
+	 * session and starts reading.
+	 *
+	 * @param socket the connected socket
+	 * @throws IOException thrown if the session cannot be requested
+	 */
+	private Connect4MuxClient(Socket socket) throws IOException
+	{
+		this.socket = socket;
+
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		out.writeInt(MUX_GAME);
+		out.flush();
+
+		reader = new Thread(this::readFrames, "connect4-mux-" + socket.getLocalPort());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param host the host name or address of the server
+	 * @param port the port of the server
+	 * @param timeoutMillis how long to wait for the connection
+	 * @return the connected client
+	 * @throws IOException thrown if the server cannot be reached
+	 */
+	public static Connect4MuxClient connect(String host, int port, int timeoutMillis) throws IOException
+	{
+		Socket socket = new Socket();
+
+		try
+		{
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+			return new Connect4MuxClient(socket);
+		}
+		catch(IOException ex)
+		{
+			socket.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Asks for a new game. The future completes once the game has
+	 * begun, which for a PVP game means once a partner has been found.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game wanted
+	 * @param listener told of every move made in the game
+	 * @return the game, once it has begun
+	 */
+	public CompletableFuture<Game> openGame(int gameType, Listener listener)
+	{
+		Game game = new Game(nextGameId.getAndIncrement(), listener);
+		games.put(game.id, game);
+
+		if(closed)
+			game.fail(new IOException("Connection is closed"));
+		else
+			send(game.id, MUX_OPEN, gameType);
+
+		return game.begun;
+	}
+
+	/**
+	 * Returns the number of games open on this connection.
+	 *
+	 * @return the games still waiting to begin or in progress
+	 */
+	public int getOpenGames()
+	{
+		return games.size();
+	}
+
+	/**
+	 * Closes the connection, failing every game still open.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+
+		try
+		{
+			socket.close();
+		}
+		catch(IOException ex)
+		{
+			// Already closed
+		}
+	}
+
+	/**
+	 * Reads frames until the connection closes, passing each one
+	 * to its game.
+	 */
+	private void readFrames()
+	{
+		IOException failure = new IOException("Connection closed by the server");
+
+		try
+		{
+			while(true)
+			{
+				int gameId = in.readInt();
+				int code = in.readInt();
+				int first = in.readInt();
+				int second = in.readInt();
+
+				Game game = games.get(gameId);
+
+				if(game != null)
+					game.receive(code, first, second);
+
+				// Send a whole burst of replies with one write
+				if(in.available() == 0)
+					flush();
+			}
+		}
+		catch(IOException ex)
+		{
+			if(!closed)
+				failure = ex;
+		}
+		finally
+		{
+			closed = true;
+
+			for(Game game : new ArrayList<>(games.values()))
+				game.fail(failure);
+
+			close();
+		}
+	}
+
+	/**
+	 * Sends a frame to the server. Frames sent from a callback wait
+	 * for the end of the burst being read; any other thread's are
+	 * flushed at once.
+	 *
+	 * @param gameId the id of the game
+	 * @param code what the frame asks for
+	 * @param value the game type or column
+	 */
+	private synchronized void send(int gameId, int code, int value)
+	{
+		try
+		{
+			out.writeInt(gameId);
+			out.writeInt(code);
+			out.writeInt(value);
+			out.writeInt(0);
+
+			if(Thread.currentThread() != reader)
+				out.flush();
+		}
+		catch(IOException ex)
+		{
+			// The reader sees the failure and fails every game
+			close();
+		}
+	}
+
+	/**
+	 * Sends any frames still buffered.
+	 */
+	private synchronized void flush()
+	{
+		try
+		{
+			out.flush();
+		}
+		catch(IOException ex)
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Receives the moves of a game as they are made.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called for every move made, by either player.
+		 *
+		 * @param game the game moved in
+		 * @param column the column played
+		 * @param row the row the move landed in
+		 * @param status CONTINUE, or how the move ended the game
+		 */
+		void moveMade(Game game, int column, int row, int status);
+
+		/**
+		 * Called when the server refuses one of this player's moves.
+		 * The player may then try another.
+		 *
+		 * @param game the game moved in
+		 * @param column the column refused
+		 */
+		void moveRefused(Game game, int column);
+	}
+
+	/**
+	 * One game on the connection.
+	 */
+	public class Game
+	{
+		private final int id;
+		private final Listener listener;
+		private final CompletableFuture<Game> begun = new CompletableFuture<>();
+		private final CompletableFuture<Integer> result = new CompletableFuture<>();
+		private volatile int player;
+		private volatile int movesMade;
+
+		private Game(int id, Listener listener)
+		{
+			this.id = id;
+			this.listener = listener;
+		}
+
+		/**
+		 * Plays a move. The outcome arrives through the listener.
+		 *
+		 * @param column the column to play in
+		 */
+		public void play(int column)
+		{
+			send(id, MUX_MOVE, column);
+		}
+
+		/**
+		 * Returns whether it is this player's turn.
+		 *
+		 * @return true if the next move is this player's
+		 */
+		public boolean isMyTurn()
+		{
+			return player != 0 && !result.isDone()
+					&& (movesMade % 2 == 0) == (player == PLAYER1);
+		}
+
+		/**
+		 * Returns which player this is.
+		 *
+		 * @return PLAYER1 or PLAYER2, or 0 before the game begins
+		 */
+		public int getPlayer()
+		{
+			return player;
+		}
+
+		/**
+		 * Returns how the game ended, once it has. The result is
+		 * PLAYER1_WON, PLAYER2_WON, DRAW or OPPONENT_LEFT; it fails
+		 * if the connection is lost first.
+		 *
+		 * @return the result of the game
+		 */
+		public CompletableFuture<Integer> getResult()
+		{
+			return result;
+		}
+
+		/**
+		 * Acts on a frame from the server.
+		 *
+		 * @param code what the frame reports
+		 * @param first the first value
+		 * @param second the second value
+		 */
+		private void receive(int code, int first, int second)
+		{
+			if(code == PLAYER1 || code == PLAYER2)
+			{
+				player = code;
+				begun.complete(this);
+			}
+			else if(code == INVALID)
+			{
+				// An open is refused with column -1, before the game begins
+				if(player == 0)
+					fail(new IllegalArgumentException("The server refused the game"));
+				else
+					listener.moveRefused(this, first);
+			}
+			else if(code == OPPONENT_LEFT)
+			{
+				end(OPPONENT_LEFT);
+			}
+			else
+			{
+				movesMade++;
+				listener.moveMade(this, first, second, code);
+
+				if(code != CONTINUE)
+					end(code);
+			}
+		}
+
+		/**
+		 * Finishes the game with a result.
+		 *
+		 * @param status how the game ended
+		 */
+		private void end(int status)
+		{
+			games.remove(id);
+			result.complete(status);
+		}
+
+		/**
+		 * Finishes the game with a failure.
+		 *
+		 * @param cause why the game could not go on
+		 */
+		private void fail(Throwable cause)
+		{
+			games.remove(id);
+			begun.completeExceptionally(cause);
+			result.completeExceptionally(cause);
+		}
+	}
+}
@@ -0,0 +1,387 @@
+/**
+ * Counts every position reachable from a starting position, ply by
+ * ply, along with the games won and drawn at each ply, in the manner
+ * of a chess "perft". The counts depend on nothing but the rules, so
+ * they check move generation and win detection against figures known
+ * in advance, and the time taken measures raw nodes per second.
+ *
+ * The tree is split into tasks on a ForkJoinPool, each of which walks
+ * its own copy of the board by making and taking back moves. With
+ * --dedup=key a position reached by more than one order of moves is
+ * counted and searched only once; --dedup=canonical also counts a
+ * position and its mirror image as one. From the empty board,
+ * --dedup=key counts 1, 7, 49, 238, 1120, 4263, 16422, 54859 ...
+ * With --verify every win found on the bitboards is checked against
+ * the original cell by cell scans as well.
+ *
+ * Usage:
+ *   java core.Connect4Perft --depth=9 --threads=1,2,4
+ *        --position=.../...+4 --dedup=none|key|canonical --verify
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class Connect4Perft implements Connect4Constants
+{
+	// Plies left below which a task walks its subtree alone
+	private static final int SEQUENTIAL_PLIES = 5;
+
+	// The part of a codec key which holds the cells, without the last column
+	private static final long CELLS_KEY = (1L << PositionCodec.KEY_LAST_SHIFT) - 1;
+
+	// Settings
+	private final Connect4 root;
+	private final int depth;
+	private final String dedup;
+	private final boolean verify;
+
+	// Positions already counted, when deduplicating
+	private Set<Long> seen;
+
+	/**
+	 * Creates a count of the tree below a position.
+	 *
+	 * @param root the starting position, which is left unchanged
+	 * @param depth the number of plies to search
+	 * @param dedup none, key or canonical
+	 * @param verify true to check each win against the cell scans
+	 */
+	Connect4Perft(Connect4 root, int depth, String dedup, boolean verify)
+	{
+		if(!dedup.equals("none") && !dedup.equals("key") && !dedup.equals("canonical"))
+			throw new IllegalArgumentException("--dedup must be none, key or canonical");
+
+		if(root.getTurnCounter() == MAXMOVES
+				|| (root.getTurnCounter() > 0 && root.checkForWin(root.get_lastMoveMade())))
+			throw new IllegalArgumentException("The game is already over");
+
+		this.root = root;
+		this.depth = depth;
+		this.dedup = dedup;
+		this.verify = verify;
+	}
+
+	/**
+	 * Counts the tree once per requested thread count, printing the
+	 * counts of the first run and the speed of every run.
+	 *
+	 * @param args the command line options
+	 */
+	public static void main(String[] args)
+	{
+		Connect4Args options = new Connect4Args(args);
+		Connect4 root = new Connect4();
+		int depth = options.getInt("depth", 9);
+
+		if(options.has("position"))
+			PositionCodec.fromText(options.get("position", ""), root);
+
+		Connect4Perft perft = new Connect4Perft(root, depth, options.get("dedup", "none"),
+				options.has("verify"));
+		Tally first = null;
+
+		for(String threads : options.get("threads",
+				"1," + Runtime.getRuntime().availableProcessors()).split(","))
+		{
+			int count = Integer.parseInt(threads.trim());
+			long start = System.nanoTime();
+			Tally tally = perft.run(count);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			if(first == null)
+			{
+				first = tally;
+				first.print();
+				System.out.println();
+				System.out.println("threads        nodes      seconds      nodes/s");
+			}
+			else if(!tally.matches(first))
+				throw new IllegalStateException("Counts differ with " + count + " threads");
+
+			System.out.printf("%7d  %11d  %11.3f  %11.0f%n", count, tally.total(), seconds,
+					tally.total() / seconds);
+		}
+	}
+
+	/**
+	 * Counts the tree on a pool of the given size.
+	 *
+	 * @param threads the number of threads to count with
+	 * @return the counts at every ply
+	 */
+	Tally run(int threads)
+	{
+		seen = dedup.equals("none") ? null : ConcurrentHashMap.newKeySet();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try
+		{
+			return pool.invoke(new Subtree(copy(root), 0));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Makes a move on a board, counting the position it leads to and
+	 * telling whether the game goes on from there. A position which
+	 * has been counted before goes no further. The move is left for
+	 * the caller to take back either way.
+	 *
+	 * @param board the board to move on
+	 * @param column the column int to play
+	 * @param ply the ply of the move, counting the first as 1
+	 * @param tally where to count the position
+	 * @return true if the move stands and the game goes on
+	 */
+	private boolean make(Connect4 board, int column, int ply, Tally tally)
+	{
+		int row = board.getLowestOpenRow(column);
+
+		if(board.placeMarker(column) != row)
+			throw new IllegalStateException("Marker landed outside row " + row + " of column " + column);
+
+		String marker = board.get_lastMarkerPlaced();
+
+		if(seen != null && !seen.add(key(board)))
+			return false;
+
+		tally.nodes[ply]++;
+		boolean won = board.checkForWin(column);
+
+		if(verify && won != scanForWin(board, column, row, marker))
+			throw new IllegalStateException("Win detection disagrees after column " + (column + 1)
+					+ " in " + PositionCodec.toText(board));
+
+		if(won)
+		{
+			if(marker.equals("X"))
+				tally.xWins[ply]++;
+			else
+				tally.oWins[ply]++;
+
+			return false;
+		}
+
+		if(board.getTurnCounter() == MAXMOVES)
+		{
+			tally.draws[ply]++;
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Takes back a move, leaving the other player to move again.
+	 *
+	 * @param board the board to take the move back on
+	 * @param column the column int which was played
+	 * @param marker the marker which was placed
+	 */
+	private static void unmake(Connect4 board, int column, String marker)
+	{
+		board.removeMarker(column);
+		board.set_lastMarkerPlaced(marker.equals("X") ? "O" : "X");
+	}
+
+	/**
+	 * Walks a subtree on the calling thread alone.
+	 *
+	 * @param board the position to walk below, which is left unchanged
+	 * @param ply the ply the position was reached at
+	 * @param tally where to count the positions found
+	 */
+	private void walk(Connect4 board, int ply, Tally tally)
+	{
+		for(int column = 0; column < COLUMNS; column++)
+		{
+			if(!board.isValidMove(column))
+				continue;
+
+			String marker = board.get_lastMarkerPlaced().equals("X") ? "O" : "X";
+
+			if(make(board, column, ply + 1, tally) && ply + 1 < depth)
+				walk(board, ply + 1, tally);
+
+			unmake(board, column, marker);
+		}
+	}
+
+	/**
+	 * Returns the key a position is deduplicated by.
+	 *
+	 * @param board the position
+	 * @return its cells, or the lesser of its cells' and its mirror's
+	 */
+	private long key(Connect4 board)
+	{
+		long key = PositionCodec.key(board) & CELLS_KEY;
+
+		if(dedup.equals("canonical"))
+			key = Math.min(key, PositionCodec.mirror(key) & CELLS_KEY);
+
+		return key;
+	}
+
+	/**
+	 * Finds a win through the last marker placed with the original
+	 * scans, which look at one cell at a time.
+	 *
+	 * @param board the board, with the marker placed
+	 * @param column the column int of the marker
+	 * @param row the row int of the marker
+	 * @param marker the marker placed
+	 * @return true if the scans find four in a row
+	 */
+	private static boolean scanForWin(Connect4 board, int column, int row, String marker)
+	{
+		return (row < 4 && board.checkForVerticalWin(column, row, marker, row, 1))
+				|| board.checkForHorizontalWin(column, row, marker, column, 1)
+				|| board.checkFirstDiagonal(column, row, marker, column, row, 1)
+				|| board.checkAltDiagonal(column, row, marker, column, row, 1);
+	}
+
+	/**
+	 * Copies a board through its cells and last move.
+	 *
+	 * @param board the board to copy
+	 * @return a board of its own in the same position
+	 */
+	private static Connect4 copy(Connect4 board)
+	{
+		Connect4 copy = new Connect4();
+		copy.setPosition(board.getCells("X"), board.getCells("O"), board.get_lastMoveMade());
+		return copy;
+	}
+
+	/**
+	 * The subtree below one position, split into a task per move
+	 * until few enough plies are left to walk alone.
+	 */
+	private class Subtree extends RecursiveTask<Tally>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Connect4 board;
+		private final int ply;
+
+		Subtree(Connect4 board, int ply)
+		{
+			this.board = board;
+			this.ply = ply;
+		}
+
+		@Override
+		protected Tally compute()
+		{
+			Tally tally = new Tally(depth);
+
+			if(depth - ply <= SEQUENTIAL_PLIES)
+			{
+				walk(board, ply, tally);
+				return tally;
+			}
+
+			List<Subtree> children = new ArrayList<>(COLUMNS);
+
+			for(int column = 0; column < COLUMNS; column++)
+			{
+				if(!board.isValidMove(column))
+					continue;
+
+				String marker = board.get_lastMarkerPlaced().equals("X") ? "O" : "X";
+
+				// The copy is taken while the move just made is still the last
+				if(make(board, column, ply + 1, tally))
+					children.add(new Subtree(copy(board), ply + 1));
+
+				unmake(board, column, marker);
+			}
+
+			for(Subtree child : invokeAll(children))
+				tally.add(child.join());
+
+			return tally;
+		}
+	}
+
+	/**
+	 * The positions counted at each ply, and how many of them ended
+	 * the game.
+	 */
+	static class Tally
+	{
+		final long[] nodes, xWins, oWins, draws;
+
+		Tally(int depth)
+		{
+			nodes = new long[depth + 1];
+			xWins = new long[depth + 1];
+			oWins = new long[depth + 1];
+			draws = new long[depth + 1];
+		}
+
+		/**
+		 * Adds the counts of a subtree to these.
+		 *
+		 * @param other the counts to add
+		 */
+		void add(Tally other)
+		{
+			for(int ply = 0; ply < nodes.length; ply++)
+			{
+				nodes[ply] += other.nodes[ply];
+				xWins[ply] += other.xWins[ply];
+				oWins[ply] += other.oWins[ply];
+				draws[ply] += other.draws[ply];
+			}
+		}
+
+		/**
+		 * Tells whether another count of the same tree agrees with this one.
+		 *
+		 * @param other the counts to compare
+		 * @return true if every count is the same
+		 */
+		boolean matches(Tally other)
+		{
+			return Arrays.equals(nodes, other.nodes) && Arrays.equals(xWins, other.xWins)
+					&& Arrays.equals(oWins, other.oWins) && Arrays.equals(draws, other.draws);
+		}
+
+		/**
+		 * Returns the positions counted at every ply together.
+		 *
+		 * @return the total number of nodes
+		 */
+		long total()
+		{
+			return Arrays.stream(nodes).sum();
+		}
+
+		/**
+		 * Prints the counts, one ply to a line.
+		 */
+		void print()
+		{
+			System.out.println("ply      positions       X wins       O wins    draws");
+
+			for(int ply = 1; ply < nodes.length; ply++)
+				System.out.printf("%3d  %13d  %11d  %11d  %7d%n", ply, nodes[ply], xWins[ply],
+						oWins[ply], draws[ply]);
+		}
+	}
+}
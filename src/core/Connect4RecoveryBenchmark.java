@@ -0,0 +1,149 @@
+/**
+ * Measures the move log: what logging a move costs, and how long
+ * rebuilding the live games takes once the process has died. It
+ * starts a number of games, plays random valid moves across all of
+ * them, then abandons the log without ending a single game, just as
+ * a crash would, and opens it again. Each recovered board is checked
+ * against the board the game was actually played on.
+ *
+ * Usage:
+ *   java core.Connect4RecoveryBenchmark --dir=connect4-wal-bench
+ *        --games=100000 --moves=20
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+public class Connect4RecoveryBenchmark implements Connect4Constants
+{
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args the command line options
+	 * @throws IOException thrown if the log cannot be written or read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Connect4Args options = new Connect4Args(args);
+		Path dir = Paths.get(options.get("dir", "connect4-wal-bench"));
+		int gameCount = options.getInt("games", 100_000);
+		int moveCount = Math.min(options.getInt("moves", 20), MAXMOVES - 1);
+
+		deleteLog(dir);
+
+		// Play every game in step, a move at a time
+		Map<Long, Connect4> played = new HashMap<>();
+		long[] ids = new long[gameCount];
+		long moves = 0, loggingNanos = 0;
+		MoveLog log = new MoveLog(dir, MoveLog.SEGMENT_SIZE);
+
+		for(int i = 0; i < gameCount; i++)
+		{
+			ids[i] = log.start(i % 2 == 0 ? PVP_GAME : AI_GAME);
+			played.put(ids[i], new Connect4());
+		}
+
+		for(int move = 0; move < moveCount; move++)
+		{
+			for(long id : ids)
+			{
+				Connect4 game = played.get(id);
+				int column = randomMove(game);
+				game.placeMarker(column);
+
+				long start = System.nanoTime();
+				log.move(id, column);
+				loggingNanos += System.nanoTime() - start;
+				moves++;
+			}
+		}
+
+		// Abandon the log rather than ending its games, as a crash would
+		log.close();
+
+		long recoveryStart = System.nanoTime();
+		MoveLog recovered = new MoveLog(dir, MoveLog.SEGMENT_SIZE);
+		long recoveryNanos = System.nanoTime() - recoveryStart;
+
+		int mismatched = 0;
+
+		for(MoveLog.LiveGame game : recovered.getRecovered())
+		{
+			Connect4 original = played.remove(game.sessionId);
+
+			if(original == null || !sameBoard(original, game.replay()))
+				mismatched++;
+		}
+
+		recovered.close();
+		deleteLog(dir);
+
+		System.out.printf("Logged %d moves across %d games: %.0f ns a move%n", moves, gameCount,
+				(double) loggingNanos / moves);
+		System.out.printf("Recovered %d games in %d ms, %d missing, %d mismatched%n",
+				recovered.getRecovered().size(), recoveryNanos / 1_000_000, played.size(), mismatched);
+	}
+
+	/**
+	 * Picks a random column which is not full.
+	 *
+	 * @param game the board to move on
+	 * @return a valid column
+	 */
+	private static int randomMove(Connect4 game)
+	{
+		int column;
+
+		do
+		{
+			column = ThreadLocalRandom.current().nextInt(COLUMNS);
+		}
+		while(!game.isValidMove(column));
+
+		return column;
+	}
+
+	/**
+	 * Compares two boards cell by cell.
+	 *
+	 * @param a one board
+	 * @param b the other board
+	 * @return true if every cell and the turn counter match
+	 */
+	private static boolean sameBoard(Connect4 a, Connect4 b)
+	{
+		if(a.getTurnCounter() != b.getTurnCounter())
+			return false;
+
+		return a.getCells("X") == b.getCells("X") && a.getCells("O") == b.getCells("O");
+	}
+
+	/**
+	 * Removes a log left by an earlier run.
+	 *
+	 * @param dir the log's directory
+	 * @throws IOException thrown if it cannot be removed
+	 */
+	private static void deleteLog(Path dir) throws IOException
+	{
+		if(!Files.exists(dir))
+			return;
+
+		try(Stream<Path> files = Files.walk(dir))
+		{
+			for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,649 @@
+/**
+ * A lightweight router which lets several server processes
+ * act as one. Clients connect to the router as though it were
+ * a server; it reads the game type they want, places the new
+ * session on a server node by consistent hashing, and then
+ * relays bytes between the two for the life of the session.
+ *
+ * Nodes are probed on a fixed interval and skipped while they
+ * are unhealthy. PVP players are placed in pairs: the first of a
+ * pair is held as waiting until it has been placed, and the
+ * second follows it to the same node, where the two are matched.
+ * Other clients are placed by address, and keep returning to the
+ * same node while it stays healthy. A player returning with a
+ * resume token, or a spectator, is offered to each healthy node in
+ * turn until one holding the game they want takes them; session
+ * numbers belong to a node, so a spectator gets the first node
+ * running theirs.
+ *
+ * Only the router sees each client's own address, so it is the
+ * router which limits how fast each address may connect, taking
+ * the --ipRate, --ipBurst, --maxHandshakes and --handshakeTimeout
+ * options of AdmissionControl. A client turned away is sent
+ * SERVER_BUSY and closed, as a node would.
+ *
+ * Usage:
+ *   java core.Connect4Router --port=8000
+ *        --nodes=localhost:8001,localhost:8002 --vnodes=64
+ *        --healthInterval=1000 --affinityMinutes=30 --ipRate=50
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Connect4Router implements Connect4Constants
+{
+	// Relay threads only ever block on small reads and writes
+	private static final long RELAY_STACK_SIZE = 256 * 1024;
+	private static final int PROBE_TIMEOUT = 500;
+
+	// Settings
+	private final int port;
+	private final List<Node> nodes = new ArrayList<>();
+	private final int healthInterval;
+	private final long affinityMillis;
+	private final AdmissionControl admission;
+
+	// Placement
+	private final TreeMap<Long, Node> ring = new TreeMap<>();
+	private final Map<String, Affinity> affinities = new ConcurrentHashMap<>();
+	private final AtomicLong pvpPairs = new AtomicLong();
+
+	// The node the PVP player waiting for a partner is placed on, once known
+	private final Object pairing = new Object();
+	private CompletableFuture<Node> waitingPvp;
+
+	// Threads
+	private final ExecutorService relays;
+	private final ScheduledExecutorService checker;
+	private ServerSocket serverSocket;
+
+	/**
+	 * Creates a router from command line options.
+	 *
+	 * @param args the parsed options
+	 */
+	public Connect4Router(Connect4Args args)
+	{
+		port = args.getInt("port", DEFAULT_PORT);
+		healthInterval = args.getInt("healthInterval", 1000);
+		affinityMillis = TimeUnit.MINUTES.toMillis(args.getInt("affinityMinutes", 30));
+		int virtualNodes = args.getInt("vnodes", 64);
+		admission = new AdmissionControl(args);
+
+		for(String address : args.get("nodes", "localhost:8001,localhost:8002").split(","))
+		{
+			Node node = new Node(address.trim());
+			nodes.add(node);
+
+			// Spread each node around the ring so load evens out
+			for(int i = 0; i < virtualNodes; i++)
+				ring.put(hash(node.name + "#" + i), node);
+		}
+
+		AtomicInteger threadNo = new AtomicInteger(1);
+		relays = Executors.newCachedThreadPool(r ->
+		{
+			Thread thread = new Thread(null, r, "connect4-relay-" + threadNo.getAndIncrement(),
+					RELAY_STACK_SIZE);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		checker = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "connect4-health");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Runs the router until its process is stopped.
+	 *
+	 * @param args the command line options
+	 * @throws IOException thrown if the port cannot be bound
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		new Connect4Router(new Connect4Args(args)).run();
+	}
+
+	/**
+	 * Starts probing the nodes, then accepts clients until closed.
+	 *
+	 * @throws IOException thrown if the port cannot be bound
+	 */
+	public void run() throws IOException
+	{
+		serverSocket = new ServerSocket(port, 1024);
+		log("Router started at socket " + serverSocket.getLocalPort() + " for " + nodes.size() + " nodes");
+
+		// Probe once before taking clients, then on an interval
+		checkHealth();
+		checker.scheduleWithFixedDelay(this::checkHealth, healthInterval, healthInterval,
+				TimeUnit.MILLISECONDS);
+
+		while(!serverSocket.isClosed())
+		{
+			Socket client;
+
+			try
+			{
+				client = serverSocket.accept();
+
+				if(admission.admit(client.getInetAddress(), 0) != AdmissionControl.ADMITTED)
+				{
+					turnAway(client);
+					continue;
+				}
+
+				client.setTcpNoDelay(true);
+			}
+			catch(IOException ex)
+			{
+				if(serverSocket.isClosed())
+					break;
+
+				continue;
+			}
+
+			relays.execute(() -> route(client));
+		}
+	}
+
+	/**
+	 * Stops accepting clients and ends every relay.
+	 */
+	public void close()
+	{
+		try
+		{
+			if(serverSocket != null)
+				serverSocket.close();
+		}
+		catch(IOException ex)
+		{
+			// Already closed
+		}
+
+		checker.shutdownNow();
+		relays.shutdownNow();
+	}
+
+	/**
+	 * Reads a new client's game type, places them on a node and
+	 * relays their session. If the chosen node cannot be reached
+	 * it is marked unhealthy and the next one is tried. The whole
+	 * handshake, any token or session number included, is read
+	 * under the handshake timeout.
+	 *
+	 * @param client the newly connected client
+	 */
+	private void route(Socket client)
+	{
+		try
+		{
+			int gameType;
+			int[] arguments;
+
+			try
+			{
+				client.setSoTimeout(admission.getHandshakeTimeout());
+				DataInputStream fromClient = new DataInputStream(client.getInputStream());
+				gameType = fromClient.readInt();
+
+				// A returning player follows with their token, a spectator with the session
+				arguments = new int[(gameType == RESUME_GAME) ? 2 : (gameType == SPECTATE) ? 1 : 0];
+
+				for(int i = 0; i < arguments.length; i++)
+					arguments[i] = fromClient.readInt();
+
+				client.setSoTimeout(0);
+			}
+			finally
+			{
+				admission.handshakeDone();
+			}
+
+			if(gameType == RESUME_GAME || gameType == SPECTATE)
+			{
+				routeToGame(client, gameType, arguments);
+				return;
+			}
+
+			CompletableFuture<Node> waiting = null;
+			Node partnerNode = null;
+
+			// The second of a pair follows the first; the first waits to be followed
+			while((gameType & ~RESUMABLE) == PVP_GAME)
+			{
+				CompletableFuture<Node> partner;
+
+				synchronized(pairing)
+				{
+					partner = waitingPvp;
+					waitingPvp = (partner == null) ? (waiting = new CompletableFuture<>()) : null;
+				}
+
+				if(partner == null || (partnerNode = partner.join()) != null)
+					break;
+			}
+
+			String key = placementKey(client, gameType);
+			Node placed = null;
+			Socket server = null;
+
+			try
+			{
+				for(int attempt = 0; attempt < nodes.size() && placed == null; attempt++)
+				{
+					Node node = (partnerNode != null && partnerNode.healthy) ? partnerNode : choose(key);
+					partnerNode = null;
+
+					if(node == null)
+						break;
+
+					server = new Socket();
+
+					try
+					{
+						server.setTcpNoDelay(true);
+						server.connect(node.address, PROBE_TIMEOUT);
+						new DataOutputStream(server.getOutputStream()).writeInt(gameType);
+						placed = node;
+					}
+					catch(IOException ex)
+					{
+						server.close();
+						markHealth(node, false);
+					}
+				}
+			}
+			finally
+			{
+				// A partner whose first could not be placed waits for one of its own
+				if(waiting != null)
+					waiting.complete(placed);
+			}
+
+			if(placed == null)
+			{
+				log("No healthy node for " + client.getInetAddress().getHostAddress());
+				client.close();
+				return;
+			}
+
+			relay(client, server, placed);
+		}
+		catch(IOException ex)
+		{
+			// The client left before being placed
+			closeQuietly(client);
+		}
+	}
+
+	/**
+	 * Finds the node holding the game a client wants by offering
+	 * their request to each healthy node, then relays to the one which
+	 * takes it, answering with the game's snapshot. The client is
+	 * answered INVALID if none does.
+	 *
+	 * @param client the returning player's or spectator's connection
+	 * @param gameType RESUME_GAME or SPECTATE
+	 * @param arguments the ints which followed the game type
+	 * @throws IOException thrown if the client cannot be answered
+	 */
+	private void routeToGame(Socket client, int gameType, int[] arguments) throws IOException
+	{
+		for(Node node : nodes)
+		{
+			if(!node.healthy)
+				continue;
+
+			Socket server = new Socket();
+
+			try
+			{
+				server.setTcpNoDelay(true);
+				server.connect(node.address, PROBE_TIMEOUT);
+
+				DataOutputStream toNode = new DataOutputStream(server.getOutputStream());
+				toNode.writeInt(gameType);
+
+				for(int argument : arguments)
+					toNode.writeInt(argument);
+
+				// A node without the game answers at once, and closes
+				server.setSoTimeout(PROBE_TIMEOUT);
+				int reply = new DataInputStream(server.getInputStream()).readInt();
+				server.setSoTimeout(0);
+
+				if(reply == RESUMED)
+				{
+					new DataOutputStream(client.getOutputStream()).writeInt(RESUMED);
+					relay(client, server, node);
+					return;
+				}
+			}
+			catch(IOException ex)
+			{
+				// Not this node
+			}
+
+			server.close();
+		}
+
+		new DataOutputStream(client.getOutputStream()).writeInt(INVALID);
+		client.close();
+	}
+
+	/**
+	 * Works out the key a session is placed by. Each PVP pair has a
+	 * key of its own, spreading pairs around the ring; any other
+	 * client is keyed by their address.
+	 *
+	 * @param client the client being placed
+	 * @param gameType the type of game the client wants
+	 * @return the placement key
+	 */
+	private String placementKey(Socket client, int gameType)
+	{
+		if((gameType & ~RESUMABLE) == PVP_GAME)
+			return "pvp#" + pvpPairs.getAndIncrement();
+
+		return client.getInetAddress().getHostAddress();
+	}
+
+	/**
+	 * Chooses the node for a key: the node it was last placed on if
+	 * that node is still healthy, otherwise the first healthy node at
+	 * or after the key's position on the ring.
+	 *
+	 * @param key the placement key
+	 * @return the chosen node, or null if none are healthy
+	 */
+	Node choose(String key)
+	{
+		long now = System.currentTimeMillis();
+		Affinity affinity = affinities.get(key);
+
+		if(affinity != null && affinity.node.healthy && now - affinity.lastUsed < affinityMillis)
+		{
+			affinity.lastUsed = now;
+			return affinity.node;
+		}
+
+		Node chosen = null;
+		long position = hash(key);
+
+		// Walk clockwise, wrapping once, until a healthy node is found
+		for(Node node : ring.tailMap(position).values())
+		{
+			if(node.healthy)
+			{
+				chosen = node;
+				break;
+			}
+		}
+
+		if(chosen == null)
+		{
+			for(Node node : ring.headMap(position).values())
+			{
+				if(node.healthy)
+				{
+					chosen = node;
+					break;
+				}
+			}
+		}
+
+		// Only client addresses are worth remembering
+		if(chosen != null && !key.startsWith("pvp#"))
+			affinities.put(key, new Affinity(chosen, now));
+
+		return chosen;
+	}
+
+	/**
+	 * Copies bytes in both directions between a client and its node
+	 * until either side closes.
+	 *
+	 * @param client the client's connection
+	 * @param server the node's connection
+	 * @param node the node being relayed to
+	 */
+	private void relay(Socket client, Socket server, Node node)
+	{
+		node.sessions.incrementAndGet();
+
+		relays.execute(() -> pump(server, client));
+		pump(client, server);
+
+		node.sessions.decrementAndGet();
+	}
+
+	/**
+	 * Copies bytes from one socket to another, closing both once the
+	 * source reaches its end or either side fails.
+	 *
+	 * @param from the socket to read from
+	 * @param to the socket to write to
+	 */
+	private static void pump(Socket from, Socket to)
+	{
+		byte[] buffer = new byte[512];
+
+		try
+		{
+			InputStream in = from.getInputStream();
+			OutputStream out = to.getOutputStream();
+			int read;
+
+			while((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		}
+		catch(IOException ex)
+		{
+			// One side has gone away
+		}
+		finally
+		{
+			closeQuietly(from);
+			closeQuietly(to);
+		}
+	}
+
+	/**
+	 * Probes every node, and forgets affinities which have expired.
+	 */
+	private void checkHealth()
+	{
+		for(Node node : nodes)
+			markHealth(node, probe(node));
+
+		long now = System.currentTimeMillis();
+		affinities.values().removeIf(affinity -> now - affinity.lastUsed >= affinityMillis);
+	}
+
+	/**
+	 * Asks a node whether it is accepting games.
+	 *
+	 * @param node the node to probe
+	 * @return true if the node answered that it is healthy
+	 */
+	private static boolean probe(Node node)
+	{
+		try(Socket socket = new Socket())
+		{
+			socket.setSoTimeout(PROBE_TIMEOUT);
+			socket.connect(node.address, PROBE_TIMEOUT);
+			new DataOutputStream(socket.getOutputStream()).writeInt(HEALTH_CHECK);
+
+			DataInputStream fromNode = new DataInputStream(socket.getInputStream());
+
+			if(fromNode.readInt() != HEALTHY)
+				return false;
+
+			node.reportedSessions = fromNode.readInt();
+			return true;
+		}
+		catch(IOException ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Records a node's health, logging any change.
+	 *
+	 * @param node the node probed
+	 * @param healthy whether the node is healthy
+	 */
+	private void markHealth(Node node, boolean healthy)
+	{
+		if(node.healthy != healthy)
+		{
+			node.healthy = healthy;
+			log("Node " + node.name + (healthy ? " is healthy with " + node.reportedSessions
+					+ " sessions" : " is unhealthy") + ", relaying " + node.sessions.get());
+		}
+	}
+
+	/**
+	 * Hashes a key onto the ring with 64-bit FNV-1a, followed by a
+	 * final mix so that similar keys spread out.
+	 *
+	 * @param key the key to hash
+	 * @return its position on the ring
+	 */
+	static long hash(String key)
+	{
+		long hash = 0xcbf29ce484222325L;
+
+		for(byte b : key.getBytes(StandardCharsets.UTF_8))
+		{
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+
+		return hash;
+	}
+
+	/**
+	 * Prints a status message.
+	 *
+	 * @param message the message to print
+	 */
+	private static void log(String message)
+	{
+		System.out.println(new Date() + ": " + message);
+	}
+
+	/**
+	 * Sends a client SERVER_BUSY and closes them, reading off what
+	 * they have already sent so the close does not reset the
+	 * connection before they can read why.
+	 *
+	 * @param client the client to turn away
+	 */
+	private static void turnAway(Socket client)
+	{
+		try
+		{
+			new DataOutputStream(client.getOutputStream()).writeInt(SERVER_BUSY);
+			client.getInputStream().skip(client.getInputStream().available());
+		}
+		catch(IOException ex)
+		{
+			// It is being turned away anyway
+		}
+
+		closeQuietly(client);
+	}
+
+	/**
+	 * Closes a socket, ignoring any failure to do so.
+	 *
+	 * @param socket the socket to close
+	 */
+	private static void closeQuietly(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch(IOException ex)
+		{
+			// Nothing left to clean up
+		}
+	}
+
+	/**
+	 * A server process the router places sessions on.
+	 */
+	static class Node
+	{
+		final String name;
+		final InetSocketAddress address;
+		final AtomicInteger sessions = new AtomicInteger();
+		volatile boolean healthy;
+		volatile int reportedSessions;
+
+		Node(String name)
+		{
+			int split = name.lastIndexOf(':');
+
+			if(split == -1)
+				throw new IllegalArgumentException("Nodes must be host:port, not " + name);
+
+			this.name = name;
+			address = new InetSocketAddress(name.substring(0, split),
+					Integer.parseInt(name.substring(split + 1)));
+		}
+	}
+
+	/**
+	 * The node a client was last placed on.
+	 */
+	static class Affinity
+	{
+		final Node node;
+		volatile long lastUsed;
+
+		Affinity(Node node, long lastUsed)
+		{
+			this.node = node;
+			this.lastUsed = lastUsed;
+		}
+	}
+}
@@ -0,0 +1,346 @@
+/**
+ * Plays the computer against itself and writes every position of
+ * every game as training data for tuning the evaluation offline.
+ * Each position is stored with the side to move, the score the
+ * computer gave the move it chose there, and how the game ended.
+ *
+ * Generator threads each play their own games on their own boards,
+ * gathering records into large batches. A full batch is handed to
+ * the writer of one shard through a bounded queue, and each shard's
+ * writer alone appends to that shard's file, so generators share
+ * nothing but the queues and never wait on the disk unless the
+ * writers have fallen a whole queue behind. Time spent waiting on a
+ * full queue is reported as stalls.
+ *
+ * Each shard file starts with an eight byte header, the magic and
+ * version, followed by fixed-size records, big-endian:
+ *   bytes the position, in PositionCodec's binary form
+ *   byte  the side to move, 1 or 2
+ *   byte  the score of the move chosen, from the side to move
+ *   byte  the result of the game: PLAYER1_WON, PLAYER2_WON or DRAW
+ *
+ * Usage:
+ *   java core.Connect4SelfPlay --games=100000 --threads=4
+ *        --shards=4 --out=connect4-selfplay --queue=64
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Connect4SelfPlay implements Connect4Constants
+{
+	// File Format
+	static final int MAGIC = 0x43345444;	// "C4TD"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	public static final int RECORD_SIZE = PositionCodec.SIZE + 3;
+
+	// Batches handed from generators to writers
+	private static final int BATCH_SIZE = 64 * 1024;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	// Settings
+	private final Path prefix;
+	private final int shardCount;
+	private final BufferPool batches;
+	private final List<BlockingQueue<ByteBuffer>> queues = new ArrayList<>();
+
+	// Progress
+	private final AtomicInteger gamesLeft = new AtomicInteger();
+	private final LongAdder games = new LongAdder();
+	private final LongAdder records = new LongAdder();
+	private final LongAdder stallNanos = new LongAdder();
+
+	/**
+	 * Creates an exporter writing to shard files named after a prefix.
+	 *
+	 * @param prefix the path the shard files are named after
+	 * @param shardCount the number of shard files, each with its own writer
+	 * @param queueBatches the batches each writer's queue holds
+	 */
+	Connect4SelfPlay(Path prefix, int shardCount, int queueBatches)
+	{
+		this.prefix = prefix;
+		this.shardCount = Math.max(1, shardCount);
+
+		for(int i = 0; i < this.shardCount; i++)
+			queues.add(new ArrayBlockingQueue<>(Math.max(1, queueBatches)));
+
+		// Enough for every queue to be full with a batch still in each hand
+		batches = new BufferPool(BATCH_SIZE, this.shardCount * (queueBatches + 2));
+	}
+
+	/**
+	 * Generates the requested games and reports the rate achieved.
+	 *
+	 * @param args the command line options
+	 * @throws Exception thrown if a shard cannot be written
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Connect4Args options = new Connect4Args(args);
+		int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+
+		Connect4SelfPlay export = new Connect4SelfPlay(Paths.get(options.get("out", "connect4-selfplay")),
+				options.getInt("shards", threads), options.getInt("queue", 64));
+
+		long start = System.nanoTime();
+		export.run(options.getInt("games", 100_000), threads);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println("threads  shards     games    records    games/s  stalled ms");
+		System.out.printf("%7d  %6d  %8d  %9d  %9.0f  %10d%n", threads, export.shardCount,
+				export.games.sum(), export.records.sum(), export.games.sum() / seconds,
+				export.stallNanos.sum() / 1_000_000);
+	}
+
+	/**
+	 * Plays the games across the generator threads and waits until
+	 * every shard has been written.
+	 *
+	 * @param gameCount the number of games to play
+	 * @param threads the number of generator threads
+	 * @throws Exception thrown if a generator or writer fails
+	 */
+	void run(int gameCount, int threads) throws Exception
+	{
+		gamesLeft.set(gameCount);
+		List<Thread> generators = new ArrayList<>(threads);
+		List<Writer> writers = new ArrayList<>(shardCount);
+
+		for(int i = 0; i < shardCount; i++)
+		{
+			Writer writer = new Writer(shardPath(i), queues.get(i));
+			writers.add(writer);
+			writer.start();
+		}
+
+		for(int i = 0; i < threads; i++)
+		{
+			BlockingQueue<ByteBuffer> queue = queues.get(i % shardCount);
+			Thread generator = new Thread(() -> generate(queue), "selfplay-" + i);
+			generators.add(generator);
+			generator.start();
+		}
+
+		for(Thread generator : generators)
+			generator.join();
+
+		for(BlockingQueue<ByteBuffer> queue : queues)
+			queue.put(END);
+
+		for(Writer writer : writers)
+			writer.finish();
+	}
+
+	/**
+	 * Plays games until none are left, handing each full batch of
+	 * records to a shard's writer.
+	 *
+	 * @param queue the queue of this generator's shard
+	 */
+	private void generate(BlockingQueue<ByteBuffer> queue)
+	{
+		ByteBuffer game = ByteBuffer.allocate(MAXMOVES * RECORD_SIZE);
+		ByteBuffer batch = batches.take();
+
+		try
+		{
+			while(gamesLeft.getAndDecrement() > 0)
+			{
+				game.clear();
+				playGame(game);
+				game.flip();
+
+				if(batch.remaining() < game.remaining())
+				{
+					hand(batch, queue);
+					batch = batches.take();
+				}
+
+				batch.put(game);
+				games.increment();
+				records.add(game.limit() / RECORD_SIZE);
+			}
+
+			hand(batch, queue);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Plays one game of the computer against itself, recording each
+	 * position before its move is made.
+	 *
+	 * @param out where to record the game's positions
+	 */
+	private static void playGame(ByteBuffer out)
+	{
+		Connect4 board = new Connect4();
+		Connect4ComputerPlayer[] players = { new Connect4ComputerPlayer(board),
+				new Connect4ComputerPlayer(board) };
+		int result = DRAW;
+
+		while(board.getTurnCounter() < MAXMOVES)
+		{
+			int side = board.getTurnCounter() % 2;
+			PositionCodec.encode(board, out);
+
+			int column = players[side].makeMove();
+
+			if(!board.isValidMove(column))
+				throw new IllegalStateException("The computer chose full column " + column + " in "
+						+ PositionCodec.toText(board));
+
+			// The result is filled in once the game is over
+			out.put((byte) (side + 1)).put((byte) players[side].getLastScore()).put((byte) 0);
+
+			board.placeMarker(column);
+
+			if(board.checkForWin(column))
+			{
+				result = (side == 0) ? PLAYER1_WON : PLAYER2_WON;
+				break;
+			}
+		}
+
+		for(int end = RECORD_SIZE; end <= out.position(); end += RECORD_SIZE)
+			out.put(end - 1, (byte) result);
+	}
+
+	/**
+	 * Hands a batch to a writer, counting any wait for room.
+	 *
+	 * @param batch the batch of records
+	 * @param queue the writer's queue
+	 * @throws InterruptedException thrown if interrupted while waiting for room
+	 */
+	private void hand(ByteBuffer batch, BlockingQueue<ByteBuffer> queue) throws InterruptedException
+	{
+		batch.flip();
+
+		if(!batch.hasRemaining())
+		{
+			batches.give(batch);
+			return;
+		}
+
+		if(!queue.offer(batch))
+		{
+			long start = System.nanoTime();
+			queue.put(batch);
+			stallNanos.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the file of one shard.
+	 *
+	 * @param shard the number of the shard
+	 * @return the path of its file
+	 */
+	Path shardPath(int shard)
+	{
+		return Paths.get(prefix + "-" + shard + ".c4t");
+	}
+
+	/**
+	 * The writer of one shard, which alone appends to its file.
+	 */
+	private class Writer extends Thread
+	{
+		private final Path path;
+		private final BlockingQueue<ByteBuffer> queue;
+		private IOException failure;
+
+		Writer(Path path, BlockingQueue<ByteBuffer> queue)
+		{
+			super("selfplay-writer-" + path.getFileName());
+			this.path = path;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run()
+		{
+			try(FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+			{
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+				header.flip();
+				write(file, header);
+
+				for(ByteBuffer batch = queue.take(); batch != END; batch = queue.take())
+				{
+					write(file, batch);
+					batches.give(batch);
+				}
+			}
+			catch(IOException ex)
+			{
+				failure = ex;
+
+				// Keep taking batches so no generator waits forever
+				try
+				{
+					while(queue.take() != END)
+					{
+						// Dropped, since the shard cannot be written
+					}
+				}
+				catch(InterruptedException stop)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Writes the whole of a buffer.
+		 *
+		 * @param file the shard's file
+		 * @param buffer the bytes to write
+		 * @throws IOException thrown if the write fails
+		 */
+		private void write(FileChannel file, ByteBuffer buffer) throws IOException
+		{
+			while(buffer.hasRemaining())
+				file.write(buffer);
+		}
+
+		/**
+		 * Waits for the shard to be written in full.
+		 *
+		 * @throws IOException thrown if the shard could not be written
+		 * @throws InterruptedException thrown if interrupted while waiting
+		 */
+		void finish() throws IOException, InterruptedException
+		{
+			join();
+
+			if(failure != null)
+				throw new IOException("Shard " + path + " could not be written", failure);
+		}
+	}
+}
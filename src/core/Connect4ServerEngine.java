@@ -0,0 +1,712 @@
+/**
+ * The headless core of the Connect4 server. It binds the
+ * listening port, runs a configurable number of acceptor
+ * shards, matches players into PVP or AI games and starts
+ * their sessions. Connect4Server wraps it in a display, and
+ * it can also be run on its own.
+ *
+ * Usage:
+ *   java core.Connect4ServerEngine --port=8000 --shards=4
+ *        --metricsFile=connect4-metrics.txt --archive=connect4-games.c4a
+ *        --wal=connect4-wal --clock=600 --increment=5 --moveLimit=120
+ *
+ * Every finished game is added to the archive; --archive=none
+ * turns archiving off. Every move of a running session is written
+ * ahead to the move log in the --wal directory, and the games it
+ * still holds as live on start-up are rebuilt; --wal=none turns
+ * the log off. Players who ask for it are given a resume token,
+ * with which they can return to their game after a dropped
+ * connection, or after a restart while the move log is on.
+ * Spectators may watch any running session by its number.
+ *
+ * Players are on the clock: each has --clock seconds for the whole
+ * game, gains --increment seconds with every move, and may take no
+ * more than --moveLimit seconds over any one move. A player who runs
+ * out loses on time. --clock=none turns the clocks off.
+ *
+ * Connections are admitted as AdmissionControl allows, taking its
+ * --maxSessions, --maxHandshakes, --ipRate, --ipBurst and
+ * --handshakeTimeout options. One turned away is sent SERVER_BUSY
+ * and closed at once by the acceptor. A node behind a router sees
+ * every client at the router's address, so should run with
+ * --ipRate=0 and leave rate limiting to the router.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+
+public class Connect4ServerEngine implements Connect4Constants
+{
+	// Settings
+	private final int port;
+	private final int shardCount;
+	private final Connect4Metrics metrics;
+	private final Consumer<String> log;
+	private String archivePath;
+	private String walPath;
+	private long clockMillis, incrementMillis, moveLimitMillis;
+	private AdmissionControl admission = new AdmissionControl();
+
+	// Running State
+	private final List<Connect4ServerShard> shards = new ArrayList<>();
+	private final AtomicInteger sessionNo = new AtomicInteger(1);
+	private volatile int boundPort = -1;
+	private GameArchive archive;
+	private MoveLog moveLog;
+
+	// Seats players may return to, including games rebuilt from the move log
+	private SessionRegistry registry;
+	private static final int RECOVERY_HOLD_MINUTES = 10;
+	private static final String RESUME_KEY_FILE = "resume.key";
+
+	// Writes every session's moves to its spectators
+	private SpectatorHub spectators;
+
+	// Keeps every session's move clock and every handshake's deadline
+	private TimingWheel clocks;
+
+	// Matchmaking, shared by every shard
+	private final Object matchLock = new Object();
+	private Socket waitingPlayer;
+	private boolean waitingResumable;
+	private MuxGame waitingMuxGame;
+
+	/**
+	 * Creates a server which has not yet started listening.
+	 *
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param shardCount the number of acceptor shards to run
+	 * @param metrics the metrics to record activity in
+	 * @param log where to send status messages
+	 */
+	public Connect4ServerEngine(int port, int shardCount, Connect4Metrics metrics, Consumer<String> log)
+	{
+		if(shardCount < 1)
+			throw new IllegalArgumentException("At least one shard is needed");
+
+		this.port = port;
+		this.shardCount = shardCount;
+		this.metrics = metrics;
+		this.log = log;
+	}
+
+	/**
+	 * Creates a server from command line options.
+	 *
+	 * @param args the parsed options
+	 * @param metrics the metrics to record activity in
+	 * @param log where to send status messages
+	 */
+	public Connect4ServerEngine(Connect4Args args, Connect4Metrics metrics, Consumer<String> log)
+	{
+		this(args.getInt("port", DEFAULT_PORT),
+				args.getInt("shards", Runtime.getRuntime().availableProcessors()),
+				metrics, log);
+
+		archivePath = args.get("archive", GameArchive.ARCHIVE_FILE);
+
+		if(archivePath.equals("none"))
+			archivePath = null;
+
+		walPath = args.get("wal", MoveLog.LOG_DIRECTORY);
+
+		if(walPath.equals("none"))
+			walPath = null;
+
+		admission = new AdmissionControl(args);
+
+		if(!args.get("clock", "").equals("none"))
+		{
+			clockMillis = TimeUnit.SECONDS.toMillis(args.getInt("clock", 600));
+			incrementMillis = TimeUnit.SECONDS.toMillis(args.getInt("increment", 5));
+			moveLimitMillis = TimeUnit.SECONDS.toMillis(args.getInt("moveLimit", 120));
+		}
+	}
+
+	/**
+	 * Runs the server without a display, logging to standard out.
+	 * Besides --port and --shards, --metricsFile names the scrape file
+	 * so several servers can share a working directory.
+	 *
+	 * @param args the command line options
+	 * @throws IOException thrown if the port cannot be bound
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Connect4Metrics metrics = new Connect4Metrics();
+
+		try
+		{
+			metrics.register();
+		}
+		catch(JMException ex)
+		{
+			ex.printStackTrace();
+		}
+
+		Connect4Args options = new Connect4Args(args);
+		metrics.startScrapeFile(Paths.get(options.get("metricsFile", Connect4Metrics.SCRAPE_FILE)),
+				Connect4Metrics.SCRAPE_SECONDS);
+
+		new Connect4ServerEngine(options, metrics,
+				message -> System.out.println(new Date() + ": " + message)).start();
+	}
+
+	/**
+	 * Binds the port and starts every shard. Where the platform
+	 * supports SO_REUSEPORT each shard gets its own listening socket,
+	 * so the kernel spreads new connections across them; otherwise
+	 * the shards share a single listening socket.
+	 *
+	 * @throws IOException thrown if the port cannot be bound
+	 */
+	public synchronized void start() throws IOException
+	{
+		if(archivePath != null)
+		{
+			archive = new GameArchive(Paths.get(archivePath));
+			log("Archiving games to " + archivePath + ", holding " + archive.size());
+		}
+
+		if(walPath != null)
+		{
+			recover();
+		}
+		else
+		{
+			registry = new SessionRegistry();
+		}
+
+		spectators = new SpectatorHub();
+
+		clocks = new TimingWheel("connect4-clock");
+
+		ServerSocketChannel first = ServerSocketChannel.open();
+		boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+		if(reusePort && shardCount > 1)
+			first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+
+		first.bind(new InetSocketAddress(port), 1024);
+		boundPort = first.socket().getLocalPort();
+
+		for(int i = 0; i < shardCount; i++)
+		{
+			ServerSocketChannel channel = first;
+
+			if(i > 0 && reusePort)
+			{
+				channel = ServerSocketChannel.open();
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channel.bind(new InetSocketAddress(boundPort), 1024);
+			}
+
+			Connect4ServerShard shard = new Connect4ServerShard(i, channel, this);
+			shards.add(shard);
+
+			// Acceptors keep a headless server alive until it is stopped
+			new Thread(shard, "connect4-acceptor-" + i).start();
+		}
+
+		log("Server started at socket " + boundPort + " with " + shardCount
+				+ (shardCount == 1 ? " shard" : " shards")
+				+ (reusePort || shardCount == 1 ? "" : " sharing one listener"));
+	}
+
+	/**
+	 * Stops accepting connections and ends every running session.
+	 */
+	public synchronized void stop()
+	{
+		for(Connect4ServerShard shard : shards)
+			shard.close();
+
+		shards.clear();
+
+		if(spectators != null)
+			spectators.close();
+
+		spectators = null;
+
+		if(clocks != null)
+			clocks.close();
+
+		clocks = null;
+
+		try
+		{
+			if(archive != null)
+				archive.close();
+		}
+		catch(IOException ex)
+		{
+			log("Failed to close the game archive: " + ex.getMessage());
+		}
+
+		archive = null;
+
+		if(moveLog != null)
+			moveLog.close();
+
+		moveLog = null;
+	}
+
+	/**
+	 * Opens the move log and rebuilds the games it holds as live.
+	 * Their players' connections died with the last process, so the
+	 * games are held for the players to return to with their resume
+	 * tokens, and those nobody returns to are ended in the log.
+	 *
+	 * @throws IOException thrown if the log cannot be read or written
+	 */
+	private void recover() throws IOException
+	{
+		long recoveryStart = System.nanoTime();
+		moveLog = new MoveLog(Paths.get(walPath), MoveLog.SEGMENT_SIZE);
+		registry = new SessionRegistry(Paths.get(walPath).resolve(RESUME_KEY_FILE));
+
+		int held = 0;
+
+		for(MoveLog.LiveGame game : moveLog.getRecovered())
+		{
+			int moveCount = game.getMoveCount();
+
+			// The last move may have finished the game before its end was logged
+			if(moveCount == MAXMOVES
+					|| (moveCount > 0 && game.replay().checkForWin(game.getMove(moveCount - 1))))
+			{
+				moveLog.end(game.sessionId, CONTINUE);
+				continue;
+			}
+
+			registry.hold(game);
+			held++;
+		}
+
+		log("Logging moves to " + walPath + ", recovered " + held + " live games in "
+				+ (System.nanoTime() - recoveryStart) / 1_000_000 + " ms");
+
+		if(held == 0)
+			return;
+
+		MoveLog wal = moveLog;
+		SessionRegistry seats = registry;
+		CompletableFuture.runAsync(() ->
+				log("Released " + seats.releaseRecovered(wal) + " recovered games nobody returned to"),
+				CompletableFuture.delayedExecutor(RECOVERY_HOLD_MINUTES, TimeUnit.MINUTES));
+	}
+
+	/**
+	 * Reads the game type a newly connected player wants, and
+	 * either starts their game or holds them until a partner joins.
+	 * Runs on the session pool of the shard which accepted them.
+	 *
+	 * @param player the newly connected player
+	 * @param shard the shard which accepted the player
+	 */
+	void handshake(Socket player, Connect4ServerShard shard)
+	{
+		int gameType;
+		long token = 0;
+		int watched = 0;
+
+		// A connection which never says all it wants is let go, by a
+		// deadline on the wheel rather than a socket timeout, so the
+		// reads stay plain blocking ones
+		TimingWheel.Timeout deadline = (admission.getHandshakeTimeout() > 0)
+				? clocks.schedule(() -> closeQuietly(player), admission.getHandshakeTimeout()) : null;
+
+		try
+		{
+			DataInputStream fromPlayer = new DataInputStream(player.getInputStream());
+			gameType = fromPlayer.readInt();
+
+			// Returning players and spectators say which game they want too
+			if(gameType == RESUME_GAME)
+				token = (long) fromPlayer.readInt() << 32 | (fromPlayer.readInt() & 0xffffffffL);
+			else if(gameType == SPECTATE)
+				watched = fromPlayer.readInt();
+		}
+		catch(IOException ex)
+		{
+			closeQuietly(player);
+			return;
+		}
+		finally
+		{
+			if(deadline != null)
+				deadline.cancel();
+
+			admission.handshakeDone();
+		}
+
+		try
+		{
+			boolean resumable = (gameType & RESUMABLE) != 0;
+			gameType &= ~RESUMABLE;
+
+			if(gameType == HEALTH_CHECK)
+				answerHealthCheck(player);
+			else if(gameType == PVP_GAME)
+				matchPlayer(player, shard, resumable);
+			else if(gameType == MUX_GAME)
+				serveMux(player, shard);
+			else if(gameType == RESUME_GAME)
+				resumePlayer(player, shard, token);
+			else if(gameType == SPECTATE)
+				addSpectator(player, watched);
+			else
+				startAiGame(player, shard, resumable);
+		}
+		catch(IOException ex)
+		{
+			// The player left before their game began
+			closeQuietly(player);
+		}
+	}
+
+	/**
+	 * Decides whether to take on a newly accepted connection. One
+	 * turned away is sent SERVER_BUSY and closed on the spot; its
+	 * send buffer is empty, so the write cannot block the acceptor.
+	 * Whatever it has already sent is read off first, since closing
+	 * with unread bytes would reset the connection before the client
+	 * could read why.
+	 *
+	 * @param player the newly accepted connection
+	 * @return true if it was admitted
+	 */
+	boolean admit(Socket player)
+	{
+		int verdict = admission.admit(player.getInetAddress(), metrics.getLiveSessions());
+
+		if(verdict == AdmissionControl.ADMITTED)
+			return true;
+
+		metrics.connectionRejected(verdict == AdmissionControl.RATE_LIMITED);
+
+		try
+		{
+			new DataOutputStream(player.getOutputStream()).writeInt(SERVER_BUSY);
+			player.getInputStream().skip(player.getInputStream().available());
+		}
+		catch(IOException ex)
+		{
+			// It is being turned away anyway
+		}
+
+		closeQuietly(player);
+		return false;
+	}
+
+	/**
+	 * Answers a router's health probe with the number of live
+	 * sessions, then closes the probe's connection.
+	 *
+	 * @param probe the connection of the probe
+	 * @throws IOException thrown if the probe cannot be answered
+	 */
+	private void answerHealthCheck(Socket probe) throws IOException
+	{
+		DataOutputStream toProbe = new DataOutputStream(probe.getOutputStream());
+		toProbe.writeInt(HEALTHY);
+		toProbe.writeInt((int) metrics.getLiveSessions());
+		probe.close();
+	}
+
+	/**
+	 * Pairs a player wanting a PVP game with the player already
+	 * waiting, or makes them the one waiting if there is none.
+	 *
+	 * @param player the player wanting a PVP game
+	 * @param shard the shard which accepted the player
+	 * @param resumable true if the player wants a resume token
+	 * @throws IOException thrown if the player cannot be told their number
+	 */
+	private void matchPlayer(Socket player, Connect4ServerShard shard, boolean resumable) throws IOException
+	{
+		Socket partner;
+		boolean partnerResumable;
+
+		synchronized(matchLock)
+		{
+			partner = waitingPlayer;
+			partnerResumable = waitingResumable;
+
+			// A fresh socket's send buffer is empty, so this write cannot block
+			if(partner == null)
+			{
+				new DataOutputStream(player.getOutputStream()).writeInt(PLAYER1);
+				waitingPlayer = player;
+				waitingResumable = resumable;
+				metrics.matchmakingChanged(1);
+			}
+			else
+			{
+				waitingPlayer = null;
+				metrics.matchmakingChanged(-1);
+			}
+		}
+
+		if(partner == null)
+		{
+			log("Player 1 joined the PVP queue from " + player.getInetAddress().getHostAddress());
+			return;
+		}
+
+		new DataOutputStream(player.getOutputStream()).writeInt(PLAYER2);
+
+		int session = sessionNo.getAndIncrement();
+		log("Player 2 joined from " + player.getInetAddress().getHostAddress()
+				+ ". Start session " + session + " on shard " + shard.getIndex());
+
+		BeginASession newSession = new BeginASession(shard.link(partner), shard.link(player),
+				new Connect4(), metrics);
+		newSession.setArchive(archive);
+		newSession.setMoveLog(moveLog);
+		newSession.setResumable(registry, partnerResumable, resumable);
+		newSession.setFeed(spectators.open(session));
+		newSession.setClock(newClock());
+		shard.startSession(newSession);
+	}
+
+	/**
+	 * Starts a game between a player and the computer.
+	 *
+	 * @param player the player wanting an AI game
+	 * @param shard the shard which accepted the player
+	 * @param resumable true if the player wants a resume token
+	 * @throws IOException thrown if the player cannot be told their number
+	 */
+	private void startAiGame(Socket player, Connect4ServerShard shard, boolean resumable) throws IOException
+	{
+		new DataOutputStream(player.getOutputStream()).writeInt(PLAYER1);
+
+		int session = sessionNo.getAndIncrement();
+		log("Start session " + session + " on shard " + shard.getIndex()
+				+ ", player1 from " + player.getInetAddress().getHostAddress() + " faces the computer");
+
+		Connect4 game = new Connect4();
+		Connect4ComputerPlayer comp = new Connect4ComputerPlayer(game);
+		BeginASession newSession = new BeginASession(shard.link(player), comp, game, metrics);
+		newSession.setArchive(archive);
+		newSession.setMoveLog(moveLog);
+		newSession.setResumable(registry, resumable, false);
+		newSession.setFeed(spectators.open(session));
+		newSession.setClock(newClock());
+		shard.startSession(newSession);
+	}
+
+	/**
+	 * Returns a player to the game their token belongs to, starting
+	 * its session first if it was rebuilt from the move log. An
+	 * unknown token, or one whose game is over, is answered INVALID.
+	 *
+	 * @param player the returning player
+	 * @param shard the shard which accepted the player
+	 * @param token the resume token the player sent
+	 * @throws IOException thrown if the player cannot be answered
+	 */
+	private void resumePlayer(Socket player, Connect4ServerShard shard, long token) throws IOException
+	{
+		SessionRegistry.Seat seat = registry.find(token);
+		BeginASession session = (seat == null) ? null : seat.game.claim(recovered ->
+		{
+			BeginASession carried = new BeginASession(recovered, metrics, moveLog, registry);
+			carried.setArchive(archive);
+			carried.setClock(newClock());
+			shard.startSession(carried);
+			return carried;
+		});
+
+		Connect4Transport link = shard.link(player);
+
+		if(session != null && session.resume(seat.seat, link))
+		{
+			log("Player " + (seat.seat + 1) + " returned to their game from "
+					+ player.getInetAddress().getHostAddress());
+			return;
+		}
+
+		link.writeInt(INVALID);
+		link.flush();
+		link.close();
+	}
+
+	/**
+	 * Creates the clocks for a new session. A game rebuilt from the
+	 * move log starts again on full clocks, as its time was not logged.
+	 *
+	 * @return the session's clocks, or null if clocks are off
+	 */
+	private MoveClock newClock()
+	{
+		return (clockMillis == 0) ? null : new MoveClock(clocks, clockMillis, incrementMillis, moveLimitMillis);
+	}
+
+	/**
+	 * Hands a spectator to the spectator hub, which writes them the
+	 * session they asked for until it ends. A session which is not
+	 * running is answered INVALID.
+	 *
+	 * @param spectator the spectator's connection
+	 * @param session the id of the session asked for
+	 * @throws IOException thrown if the spectator cannot be answered
+	 */
+	private void addSpectator(Socket spectator, int session) throws IOException
+	{
+		if(spectators.watch(spectator.getChannel(), session))
+			return;
+
+		new DataOutputStream(spectator.getOutputStream()).writeInt(INVALID);
+		spectator.close();
+	}
+
+	/**
+	 * Serves a multiplexed connection on the current thread until
+	 * the client disconnects. Its games are logged by connection
+	 * rather than one by one.
+	 *
+	 * @param player the client wanting many games over one connection
+	 * @param shard the shard which accepted the client
+	 * @throws IOException thrown if the connection's streams cannot be opened
+	 */
+	private void serveMux(Socket player, Connect4ServerShard shard) throws IOException
+	{
+		MuxConnection connection = new MuxConnection(player, this);
+		log("Multiplexed client joined from " + connection.getAddress() + " on shard " + shard.getIndex());
+
+		connection.run();
+	}
+
+	/**
+	 * Seats a game newly opened on a multiplexed connection. AI games
+	 * begin at once. A PVP game joins the multiplexed game already
+	 * waiting, or becomes the one waiting if there is none.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game wanted
+	 * @param connection the connection which opened it
+	 * @param gameId the connection's id for the game
+	 * @return the game the connection now plays under that id
+	 */
+	MuxGame openMuxGame(int gameType, MuxConnection connection, int gameId)
+	{
+		if(gameType == AI_GAME)
+		{
+			MuxGame game = new MuxGame(AI_GAME, metrics, archive);
+			game.seatFirst(connection, gameId);
+			game.begin();
+			return game;
+		}
+
+		while(true)
+		{
+			MuxGame partner;
+
+			synchronized(matchLock)
+			{
+				partner = waitingMuxGame;
+
+				if(partner == null)
+				{
+					MuxGame game = new MuxGame(PVP_GAME, metrics, archive);
+					game.seatFirst(connection, gameId);
+					waitingMuxGame = game;
+					metrics.matchmakingChanged(1);
+					return game;
+				}
+
+				waitingMuxGame = null;
+				metrics.matchmakingChanged(-1);
+			}
+
+			// The waiting player may have left meanwhile; if so, look again
+			if(partner.join(connection, gameId))
+				return partner;
+		}
+	}
+
+	/**
+	 * Takes a multiplexed game out of matchmaking if it is still
+	 * waiting for a partner.
+	 *
+	 * @param game the game whose player has left
+	 */
+	void cancelMuxGame(MuxGame game)
+	{
+		synchronized(matchLock)
+		{
+			if(waitingMuxGame == game)
+			{
+				waitingMuxGame = null;
+				metrics.matchmakingChanged(-1);
+			}
+		}
+	}
+
+	/**
+	 * Returns the port the server is listening on.
+	 *
+	 * @return the bound port, or -1 if not yet started
+	 */
+	public int getPort()
+	{
+		return boundPort;
+	}
+
+	/**
+	 * Allows access to the server's metrics.
+	 *
+	 * @return the metrics of this server
+	 */
+	public Connect4Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Sends a status message to the server's log.
+	 *
+	 * @param message the message to log
+	 */
+	void log(String message)
+	{
+		log.accept(message);
+	}
+
+	/**
+	 * Closes a socket, ignoring any failure to do so.
+	 *
+	 * @param socket the socket to close
+	 */
+	private static void closeQuietly(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch(IOException ex)
+		{
+			// Nothing left to clean up
+		}
+	}
+}
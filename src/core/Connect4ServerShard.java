@@ -0,0 +1,145 @@
+/**
+ * A single acceptor shard of the server. Each shard runs its
+ * own accept thread and its own pool of session threads, and
+ * every session it starts stays on that pool for its lifetime.
+ * Its sessions reach their players through links served by the
+ * shard's own ChannelPoller.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class Connect4ServerShard implements Runnable
+{
+	// Session threads only ever block on small reads and writes
+	private static final long SESSION_STACK_SIZE = 256 * 1024;
+
+	// Shard Needs
+	private final int index;
+	private final ServerSocketChannel channel;
+	private final Connect4ServerEngine engine;
+	private final ExecutorService sessions;
+	private final ChannelPoller poller;
+	private final AtomicInteger threadNo = new AtomicInteger(1);
+
+	/**
+	 * Creates a shard which accepts from the given channel.
+	 *
+	 * @param index the number of this shard
+	 * @param channel the bound channel to accept connections from
+	 * @param engine the server this shard belongs to
+	 * @throws IOException thrown if the shard's poller cannot be opened
+	 */
+	Connect4ServerShard(int index, ServerSocketChannel channel, Connect4ServerEngine engine) throws IOException
+	{
+		this.index = index;
+		this.channel = channel;
+		this.engine = engine;
+
+		sessions = Executors.newCachedThreadPool(r ->
+		{
+			Thread thread = new Thread(null, r, "connect4-shard-" + index + "-"
+					+ threadNo.getAndIncrement(), SESSION_STACK_SIZE);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		poller = new ChannelPoller("connect4-io-" + index, engine.getMetrics());
+	}
+
+	/**
+	 * Accepts connections until the channel is closed, handing each
+	 * one admitted to this shard's session pool for its handshake so
+	 * that the accept thread never blocks on a client.
+	 */
+	@Override
+	public void run()
+	{
+		while(channel.isOpen())
+		{
+			try
+			{
+				SocketChannel client = channel.accept();
+				Socket player = client.socket();
+				engine.getMetrics().connectionAccepted();
+
+				// Connections turned away never reach the session pool
+				if(!engine.admit(player))
+					continue;
+
+				player.setTcpNoDelay(true);
+				sessions.execute(() -> engine.handshake(player, this));
+			}
+			catch(ClosedChannelException ex)
+			{
+				// The server was stopped
+				break;
+			}
+			catch(IOException ex)
+			{
+				engine.log("Shard " + index + " failed to accept: " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Runs a session on this shard's pool.
+	 *
+	 * @param session the session to run
+	 */
+	void startSession(BeginASession session)
+	{
+		sessions.execute(session);
+	}
+
+	/**
+	 * Wraps a player's connection in a link served by this shard's
+	 * poller, over which nothing the session sends can block.
+	 *
+	 * @param player the player's connection
+	 * @return the link to the player
+	 * @throws IOException thrown if the connection cannot be made non-blocking
+	 */
+	Connect4Transport link(Socket player) throws IOException
+	{
+		return new ChannelTransport(player.getChannel(), poller);
+	}
+
+	/**
+	 * Returns the number of this shard.
+	 *
+	 * @return the shard index
+	 */
+	int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Stops accepting and stops every session thread of this shard.
+	 */
+	void close()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch(IOException ex)
+		{
+			// Already closed
+		}
+
+		sessions.shutdownNow();
+		poller.close();
+	}
+}
@@ -0,0 +1,379 @@
+/**
+ * Measures how many moves per second complete sessions sustain
+ * over each kind of transport. Every lane plays whole games back
+ * to back: a real BeginASession on one side, and bots playing
+ * random valid moves against a shadow board on the other. The
+ * queue and pipe transports never touch the kernel, so comparing
+ * them with the socket transport separates the cost of the
+ * protocol and session from the cost of the network. The channel
+ * transport is the server's: the session's end is non-blocking,
+ * and its reads wait on a ChannelPoller. The inline
+ * transport goes further and makes each bot the transport itself,
+ * so a whole game runs on one thread with no hand-off at all.
+ *
+ * Usage:
+ *   java core.Connect4SessionBenchmark --transport=inline,queue,pipe,socket,channel
+ *        --lanes=8 --games=5000 --warmup=500 --mode=pvp|ai
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Connect4SessionBenchmark implements Connect4Constants
+{
+	private static final int QUEUE_CAPACITY = 64;
+	private static final int PIPE_CAPACITY = 256;
+
+	// Settings
+	private final String transport;
+	private final boolean pvp;
+	private final Connect4Metrics metrics = new Connect4Metrics();
+	private ServerSocket listener;
+	private ChannelPoller poller;
+
+	// Sessions and second players run here
+	private final ExecutorService pool = Executors.newCachedThreadPool(r ->
+	{
+		Thread thread = new Thread(r);
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Creates a benchmark of one transport.
+	 *
+	 * @param transport inline, queue, pipe, socket or channel
+	 * @param pvp true to play bots against each other, false against the computer
+	 */
+	Connect4SessionBenchmark(String transport, boolean pvp)
+	{
+		this.transport = transport;
+		this.pvp = pvp;
+	}
+
+	/**
+	 * Runs the benchmark once per requested transport.
+	 *
+	 * @param args the command line options
+	 * @throws Exception thrown if a lane fails
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Connect4Args options = new Connect4Args(args);
+		int lanes = options.getInt("lanes", Runtime.getRuntime().availableProcessors());
+		int games = options.getInt("games", 5000);
+		int warmup = options.getInt("warmup", 500);
+		String mode = options.get("mode", "pvp");
+
+		if(!mode.equals("pvp") && !mode.equals("ai"))
+			throw new IllegalArgumentException("--mode must be pvp or ai");
+
+		System.out.println("transport  lanes     games    games/s      moves/s");
+
+		for(String name : options.get("transport", "inline,queue,pipe,socket,channel").split(","))
+		{
+			Connect4SessionBenchmark benchmark = new Connect4SessionBenchmark(name.trim(), mode.equals("pvp"));
+
+			try
+			{
+				benchmark.run(lanes, warmup, new LongAdder());
+
+				LongAdder moves = new LongAdder();
+				long elapsed = benchmark.run(lanes, games, moves);
+				double seconds = elapsed / 1e9;
+
+				System.out.printf("%-9s  %5d  %8d  %9.0f  %11.0f%n", name.trim(), lanes,
+						(long) lanes * games, lanes * games / seconds, moves.sum() / seconds);
+			}
+			finally
+			{
+				benchmark.close();
+			}
+		}
+	}
+
+	/**
+	 * Plays the given number of games on every lane at once.
+	 *
+	 * @param lanes the number of concurrent lanes
+	 * @param games the games each lane plays
+	 * @param moves where to count the moves played
+	 * @return the wall clock time taken, in nanoseconds
+	 * @throws Exception thrown if a lane fails
+	 */
+	long run(int lanes, int games, LongAdder moves) throws Exception
+	{
+		List<Future<?>> running = new ArrayList<>(lanes);
+		long start = System.nanoTime();
+
+		for(int i = 0; i < lanes; i++)
+		{
+			running.add(pool.submit(() ->
+			{
+				for(int game = 0; game < games; game++)
+					moves.add(playGame());
+
+				return null;
+			}));
+		}
+
+		for(Future<?> lane : running)
+			lane.get();
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Plays one complete game through a real session.
+	 *
+	 * @return the number of moves made
+	 * @throws IOException thrown if the session or a bot fails
+	 * @throws InterruptedException thrown if interrupted while waiting on the second bot
+	 * @throws ExecutionException thrown if the second bot fails
+	 */
+	private int playGame() throws IOException, InterruptedException, ExecutionException
+	{
+		Connect4 game = new Connect4();
+
+		if(transport.equals("inline"))
+		{
+			InlineBot bot = new InlineBot(true);
+
+			if(pvp)
+				new BeginASession(bot, new InlineBot(false), game, metrics).run();
+			else
+				new BeginASession(bot, new Connect4ComputerPlayer(game), game, metrics).run();
+
+			return bot.finish();
+		}
+
+		Connect4Transport[] first = link();
+
+		if(!pvp)
+		{
+			pool.execute(new BeginASession(first[1], new Connect4ComputerPlayer(game), game, metrics));
+			return playBot(first[0], true);
+		}
+
+		Connect4Transport[] second = link();
+		pool.execute(new BeginASession(first[1], second[1], game, metrics));
+
+		Future<Integer> opponent = pool.submit(() -> playBot(second[0], false));
+		int moves = playBot(first[0], true);
+		opponent.get();
+
+		return moves;
+	}
+
+	/**
+	 * Creates both ends of a link over this benchmark's transport.
+	 *
+	 * @return the player's end, then the session's end
+	 * @throws IOException thrown if a socket cannot be connected
+	 */
+	private Connect4Transport[] link() throws IOException
+	{
+		if(transport.equals("queue"))
+			return QueueTransport.pair(QUEUE_CAPACITY);
+		else if(transport.equals("pipe"))
+			return StreamTransport.pipePair(PIPE_CAPACITY);
+		else if(!transport.equals("socket") && !transport.equals("channel"))
+			throw new IllegalArgumentException("--transport must be inline, queue, pipe, socket or channel");
+
+		synchronized(this)
+		{
+			if(listener == null)
+			{
+				// Accepted sockets then have channels, for the channel transport
+				listener = ServerSocketChannel.open().socket();
+				listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+			}
+
+			Socket player = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+			Socket session = listener.accept();
+
+			player.setTcpNoDelay(true);
+			session.setTcpNoDelay(true);
+
+			if(transport.equals("socket"))
+				return new Connect4Transport[] { new SocketTransport(player), new SocketTransport(session) };
+
+			if(poller == null)
+				poller = new ChannelPoller("benchmark-io", metrics);
+
+			return new Connect4Transport[] { new SocketTransport(player),
+					new ChannelTransport(session.getChannel(), poller) };
+		}
+	}
+
+	/**
+	 * Plays random valid moves until the game ends, checking every
+	 * move the session reports against a shadow board.
+	 *
+	 * @param link the player's end of the link
+	 * @param first true for player one
+	 * @return the number of moves made by both sides
+	 * @throws IOException thrown if the session disagrees or the link fails
+	 */
+	private static int playBot(Connect4Transport link, boolean first) throws IOException
+	{
+		try
+		{
+			// Player one waits for the session to begin
+			if(first)
+				link.readInt();
+
+			Connect4 shadow = new Connect4();
+			ThreadLocalRandom rand = ThreadLocalRandom.current();
+			int status = CONTINUE;
+
+			while(status == CONTINUE)
+			{
+				if((shadow.getTurnCounter() % 2 == 0) == first)
+				{
+					int column = rand.nextInt(COLUMNS);
+
+					while(!shadow.isValidMove(column))
+						column = rand.nextInt(COLUMNS);
+
+					link.writeInt(column);
+					link.flush();
+				}
+
+				if(link.readInt() != CONTINUE)
+					throw new IOException("Unexpected status from session");
+
+				int column = link.readInt();
+				int row = link.readInt();
+
+				if(!shadow.isValidMove(column) || shadow.placeMarker(column) != row)
+					throw new IOException("Session move disagrees with shadow board");
+
+				status = link.readInt();
+			}
+
+			return shadow.getTurnCounter();
+		}
+		finally
+		{
+			link.close();
+		}
+	}
+
+	/**
+	 * Stops the benchmark's threads and listener.
+	 *
+	 * @throws IOException thrown if the listener cannot be closed
+	 */
+	void close() throws IOException
+	{
+		pool.shutdownNow();
+
+		if(listener != null)
+			listener.close();
+
+		if(poller != null)
+			poller.close();
+	}
+
+	/**
+	 * A bot which is itself the session's transport. What the session
+	 * writes is checked against the bot's shadow board, and each read
+	 * returns the bot's next move, so the game needs no other thread.
+	 */
+	private static class InlineBot implements Connect4Transport
+	{
+		private final Connect4 shadow = new Connect4();
+		private final int[] report = new int[4];
+		private int reported;
+		private boolean awaitingStart;
+		private int status = CONTINUE;
+
+		InlineBot(boolean first)
+		{
+			awaitingStart = first;
+		}
+
+		@Override
+		public int readInt() throws IOException
+		{
+			if(status != CONTINUE)
+				throw new EOFException("Game is over");
+
+			ThreadLocalRandom rand = ThreadLocalRandom.current();
+			int column = rand.nextInt(COLUMNS);
+
+			while(!shadow.isValidMove(column))
+				column = rand.nextInt(COLUMNS);
+
+			return column;
+		}
+
+		@Override
+		public void writeInt(int value) throws IOException
+		{
+			// Player one is told when the session begins
+			if(awaitingStart)
+			{
+				awaitingStart = false;
+				return;
+			}
+
+			report[reported++] = value;
+
+			if(reported < report.length)
+				return;
+
+			reported = 0;
+
+			if(report[0] != CONTINUE || !shadow.isValidMove(report[1])
+					|| shadow.placeMarker(report[1]) != report[2])
+				throw new IOException("Session move disagrees with shadow board");
+
+			status = report[3];
+		}
+
+		@Override
+		public void flush()
+		{
+			// Every write has already been applied
+		}
+
+		@Override
+		public void close()
+		{
+			// Nothing to release
+		}
+
+		/**
+		 * Returns the moves played, once the session has ended.
+		 *
+		 * @return the number of moves made by both sides
+		 * @throws IOException thrown if the session ended before the game
+		 */
+		int finish() throws IOException
+		{
+			if(status == CONTINUE)
+				throw new IOException("Session ended before the game was over");
+
+			return shadow.getTurnCounter();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * A console spectator. It asks the server to watch a session,
+ * prints the board as it stands, then prints it again after every
+ * move until the game is over.
+ *
+ * Usage:
+ *   java core.Connect4Spectator --host=localhost --port=8000 --session=0
+ *
+ * Session 0 watches the most recently started game.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+public class Connect4Spectator implements Connect4Constants
+{
+	/**
+	 * Watches a session until it ends.
+	 *
+	 * @param args the command line options
+	 * @throws IOException thrown if the server cannot be reached
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Connect4Args options = new Connect4Args(args);
+
+		try(Socket socket = new Socket(options.get("host", "localhost"), options.getInt("port", DEFAULT_PORT)))
+		{
+			DataOutputStream toServer = new DataOutputStream(socket.getOutputStream());
+			DataInputStream fromServer = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			toServer.writeInt(SPECTATE);
+			toServer.writeInt(options.getInt("session", 0));
+
+			if(fromServer.readInt() != RESUMED)
+			{
+				System.out.println("That game is not running");
+				return;
+			}
+
+			// The board as it stands, from the snapshot
+			fromServer.readInt();
+			Connect4 board = new Connect4();
+			PositionCodec.read(fromServer, board);
+			int status = fromServer.readInt();
+
+			print(board, status);
+
+			try
+			{
+				while(status == CONTINUE)
+				{
+					int frame = fromServer.readInt();
+
+					// Frames which skip ahead carry a fresh snapshot
+					if(frame == RESUMED)
+					{
+						fromServer.readInt();
+						PositionCodec.read(fromServer, board);
+						status = fromServer.readInt();
+					}
+					else if(frame == TIMEOUT)
+					{
+						// The player who ran out is the one who was to move
+						fromServer.readInt();
+						status = TIMEOUT;
+					}
+					else
+					{
+						int column = fromServer.readInt();
+						fromServer.readInt();
+						status = fromServer.readInt();
+
+						board.placeMarker(column);
+					}
+
+					print(board, status);
+				}
+			}
+			catch(EOFException ex)
+			{
+				System.out.println("The game was abandoned");
+			}
+		}
+	}
+
+	/**
+	 * Prints the board and the state of the game.
+	 *
+	 * @param board the board as it stands
+	 * @param status the game's status
+	 */
+	private static void print(Connect4 board, int status)
+	{
+		StringBuilder text = new StringBuilder();
+
+		for(int row = 0; row < ROWS; row++)
+		{
+			text.append('|');
+
+			for(int column = 0; column < COLUMNS; column++)
+				text.append(board.getCell(row, column)).append('|');
+
+			text.append(System.lineSeparator());
+		}
+
+		if(status == PLAYER1_WON)
+			text.append(p1Victory);
+		else if(status == PLAYER2_WON)
+			text.append(p2Victory);
+		else if(status == DRAW)
+			text.append(draw);
+		else if(status == TIMEOUT)
+			text.append(board.getTurnCounter() % 2 == 0 ? p1OutOfTime : p2OutOfTime);
+		else
+			text.append("Moves made: ").append(board.getTurnCounter());
+
+		System.out.println(text);
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * A two-way link to one player, over which the session protocol
+ * is spoken one int at a time. Sessions are written against this
+ * rather than against sockets, so the same game logic runs over
+ * the network, over in-memory pipes, or over plain queues of ints
+ * when the whole game is played in one process.
+ *
+ * Writes may be held back until flush is called, and every
+ * implementation flushes nothing on its own; whoever writes must
+ * flush before waiting on a reply.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface Connect4Transport extends Closeable
+{
+	/**
+	 * Reads the next int, waiting until one arrives.
+	 *
+	 * @return the int read
+	 * @throws IOException thrown if the link fails, or EOFException once it is closed
+	 */
+	int readInt() throws IOException;
+
+	/**
+	 * Writes an int, which may be held back until the next flush.
+	 *
+	 * @param value the int to write
+	 * @throws IOException thrown if the link fails or is closed
+	 */
+	void writeInt(int value) throws IOException;
+
+	/**
+	 * Sends every int written so far.
+	 *
+	 * @throws IOException thrown if the link fails or is closed
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Closes the link. The other end reads to the end of what was
+	 * sent, then fails.
+	 */
+	@Override
+	void close();
+}
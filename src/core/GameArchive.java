@@ -0,0 +1,404 @@
+/**
+ * An append-only archive of finished games. Each record is packed
+ * into at most 31 bytes: the number of moves, the game type, the
+ * result, the start time, the duration and then every column played
+ * at three bits a move. Records are gathered in memory and written
+ * to the file in large batches through a FileChannel, alongside an
+ * index of each record's offset for random access.
+ *
+ * Record layout, big-endian:
+ *   byte  number of moves (0 to 42)
+ *   byte  game type
+ *   byte  result
+ *   long  start time, in milliseconds since the epoch
+ *   int   duration, in milliseconds
+ *   bytes the columns played, three bits each, first move lowest
+ *
+ * The data file starts with an eight byte header. The index file,
+ * named after the data file with ".idx" added, holds one long
+ * offset per record. A crash can lose at most the last unwritten
+ * batch: on opening, a torn record at the end is cut off and any
+ * records the index missed are indexed again.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class GameArchive implements Closeable, Connect4Constants
+{
+	// File Format
+	static final int MAGIC = 0x43344152;	// "C4AR"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 15;
+	static final int MAX_RECORD_SIZE = recordSize(MAXMOVES);
+
+	// Default Settings
+	public static final String ARCHIVE_FILE = "connect4-games.c4a";
+	private static final int BATCH_SIZE = 64 * 1024;
+	private static final int FLUSH_MILLIS = 1000;
+
+	// Files
+	private final FileChannel data;
+	private final FileChannel index;
+	private long nextOffset;
+	private long records, dropped;
+
+	// Batches waiting to be written
+	private final ByteBuffer dataBatch = ByteBuffer.allocateDirect(BATCH_SIZE);
+	private final ByteBuffer indexBatch = ByteBuffer.allocateDirect(BATCH_SIZE / MAX_RECORD_SIZE * 8 + 8);
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * Opens an archive for appending, creating it if needed and
+	 * repairing it if the last run ended mid-write.
+	 *
+	 * @param path the data file of the archive
+	 * @throws IOException thrown if the archive cannot be opened or is not an archive
+	 */
+	public GameArchive(Path path) throws IOException
+	{
+		data = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		index = FileChannel.open(indexPath(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		try
+		{
+			recover();
+		}
+		catch(IOException ex)
+		{
+			data.close();
+			index.close();
+			throw ex;
+		}
+
+		flusher = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "connect4-archive");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_MILLIS, FLUSH_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a finished game to the archive. The record reaches the
+	 * file with the next batch. Should the file stop accepting
+	 * writes and the batch fill up, the game is dropped instead.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game
+	 * @param result how the game ended
+	 * @param startMillis when the game began
+	 * @param endMillis when the game ended
+	 * @param moves the columns played, in order
+	 * @param moveCount the number of moves played
+	 */
+	public synchronized void append(int gameType, int result, long startMillis, long endMillis,
+			byte[] moves, int moveCount)
+	{
+		if(dataBatch.remaining() < MAX_RECORD_SIZE || indexBatch.remaining() < 8)
+		{
+			flushQuietly();
+
+			if(dataBatch.remaining() < MAX_RECORD_SIZE || indexBatch.remaining() < 8)
+			{
+				dropped++;
+				return;
+			}
+		}
+
+		int start = dataBatch.position();
+		encode(dataBatch, gameType, result, startMillis, endMillis, moves, moveCount);
+
+		indexBatch.putLong(nextOffset);
+		nextOffset += dataBatch.position() - start;
+		records++;
+	}
+
+	/**
+	 * Returns the number of games in the archive, written or not.
+	 *
+	 * @return the number of records
+	 */
+	public synchronized long size()
+	{
+		return records;
+	}
+
+	/**
+	 * Returns the number of games dropped because the archive
+	 * could not be written.
+	 *
+	 * @return the number of games lost
+	 */
+	public synchronized long getDropped()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Writes every batched record to the files. Whatever could not
+	 * be written stays batched for the next attempt.
+	 *
+	 * @throws IOException thrown if the files cannot be written
+	 */
+	public synchronized void flush() throws IOException
+	{
+		dataBatch.flip();
+
+		try
+		{
+			while(dataBatch.hasRemaining())
+				data.write(dataBatch);
+		}
+		finally
+		{
+			dataBatch.compact();
+		}
+
+		indexBatch.flip();
+
+		try
+		{
+			while(indexBatch.hasRemaining())
+				index.write(indexBatch);
+		}
+		finally
+		{
+			indexBatch.compact();
+		}
+	}
+
+	/**
+	 * Writes what remains, forces it to disk and closes the files.
+	 *
+	 * @throws IOException thrown if the files cannot be written
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		flusher.shutdownNow();
+
+		try
+		{
+			flush();
+			data.force(false);
+			index.force(false);
+		}
+		finally
+		{
+			data.close();
+			index.close();
+		}
+	}
+
+	/**
+	 * Flushes on a timer, or when a batch is full. A failure is
+	 * reported rather than thrown, so the server carries on.
+	 */
+	private synchronized void flushQuietly()
+	{
+		try
+		{
+			flush();
+		}
+		catch(IOException ex)
+		{
+			System.err.println("Game archive write failed: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Brings the index up to date with the data file. Index entries
+	 * past the end of the data are dropped, a torn record at the end
+	 * of the data is cut off, and complete records the index missed
+	 * are indexed again.
+	 *
+	 * @throws IOException thrown if the files cannot be read or repaired
+	 */
+	private void recover() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		if(data.size() < HEADER_SIZE)
+		{
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			data.truncate(0);
+			data.write(header, 0);
+			index.truncate(0);
+		}
+		else
+		{
+			data.read(header, 0);
+			header.flip();
+
+			if(header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IOException("Not a game archive");
+		}
+
+		long dataSize = data.size();
+		long entries = index.size() / 8;
+		long offset = HEADER_SIZE;
+		ByteBuffer entry = ByteBuffer.allocate(8);
+
+		// Walk back past entries the data never fully received, or
+		// which do not follow on from the entry before them
+		while(entries > 0)
+		{
+			long last = entryAt(entries - 1);
+			long previous = (entries > 1) ? entryAt(entries - 2) : HEADER_SIZE - 1;
+
+			int moveCount = (last > previous && last < dataSize) ? moveCountAt(last) : -1;
+
+			if(moveCount != -1)
+			{
+				long end = last + recordSize(moveCount);
+
+				if(end <= dataSize)
+				{
+					offset = end;
+					break;
+				}
+			}
+
+			entries--;
+		}
+
+		index.truncate(entries * 8);
+		index.position(entries * 8);
+
+		// Index whatever complete records follow, and cut off a torn one
+		while(offset < dataSize)
+		{
+			int moveCount = moveCountAt(offset);
+
+			if(moveCount == -1 || offset + recordSize(moveCount) > dataSize)
+				break;
+
+			int size = recordSize(moveCount);
+
+			entry.clear();
+			entry.putLong(offset).flip();
+			index.write(entry);
+
+			offset += size;
+			entries++;
+		}
+
+		data.truncate(offset);
+		data.position(offset);
+
+		nextOffset = offset;
+		records = entries;
+	}
+
+	/**
+	 * Reads one entry of the index.
+	 *
+	 * @param number the number of the entry
+	 * @return the offset the entry holds
+	 * @throws IOException thrown if the index cannot be read
+	 */
+	private long entryAt(long number) throws IOException
+	{
+		ByteBuffer entry = ByteBuffer.allocate(8);
+		index.read(entry, number * 8);
+
+		return entry.getLong(0);
+	}
+
+	/**
+	 * Reads the number of moves of the record at an offset.
+	 *
+	 * @param offset where the record starts
+	 * @return its number of moves, or -1 if that is impossible
+	 * @throws IOException thrown if the count cannot be read
+	 */
+	private int moveCountAt(long offset) throws IOException
+	{
+		ByteBuffer count = ByteBuffer.allocate(1);
+		data.read(count, offset);
+
+		if(count.get(0) < 0 || count.get(0) > MAXMOVES)
+			return -1;
+
+		return count.get(0);
+	}
+
+	/**
+	 * Packs one game into a buffer.
+	 *
+	 * @param buffer where to write the record
+	 * @param gameType the type (pvp = 0, ai = 1) of game
+	 * @param result how the game ended
+	 * @param startMillis when the game began
+	 * @param endMillis when the game ended
+	 * @param moves the columns played, in order
+	 * @param moveCount the number of moves played
+	 */
+	static void encode(ByteBuffer buffer, int gameType, int result, long startMillis, long endMillis,
+			byte[] moves, int moveCount)
+	{
+		buffer.put((byte) moveCount);
+		buffer.put((byte) gameType);
+		buffer.put((byte) result);
+		buffer.putLong(startMillis);
+		buffer.putInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, endMillis - startMillis)));
+
+		// Three bits a move, carried through an accumulator
+		int bits = 0, pending = 0;
+
+		for(int i = 0; i < moveCount; i++)
+		{
+			pending |= (moves[i] & 7) << bits;
+			bits += 3;
+
+			if(bits >= 8)
+			{
+				buffer.put((byte) pending);
+				pending >>>= 8;
+				bits -= 8;
+			}
+		}
+
+		if(bits > 0)
+			buffer.put((byte) pending);
+	}
+
+	/**
+	 * Returns the size of a record with the given number of moves.
+	 *
+	 * @param moveCount the number of moves
+	 * @return the record's size in bytes
+	 */
+	static int recordSize(int moveCount)
+	{
+		return RECORD_HEADER_SIZE + (moveCount * 3 + 7) / 8;
+	}
+
+	/**
+	 * Names the index file of an archive.
+	 *
+	 * @param path the data file of the archive
+	 * @return the path of its index
+	 */
+	static Path indexPath(Path path)
+	{
+		return Paths.get(path.toString() + ".idx");
+	}
+}
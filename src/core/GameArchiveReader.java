@@ -0,0 +1,297 @@
+/**
+ * Reads a GameArchive, either one game at a time by its number
+ * through the index, or by streaming every record in order. Run
+ * on its own, it summarises an archive.
+ *
+ * Usage:
+ *   java core.GameArchiveReader --archive=connect4-games.c4a
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+public class GameArchiveReader implements Closeable, Connect4Constants
+{
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel data;
+	private final FileChannel index;
+
+	/**
+	 * Opens an archive for reading.
+	 *
+	 * @param path the data file of the archive
+	 * @throws IOException thrown if the archive cannot be opened or is not an archive
+	 */
+	public GameArchiveReader(Path path) throws IOException
+	{
+		data = FileChannel.open(path, StandardOpenOption.READ);
+		index = FileChannel.open(GameArchive.indexPath(path), StandardOpenOption.READ);
+
+		ByteBuffer header = ByteBuffer.allocate(GameArchive.HEADER_SIZE);
+		data.read(header, 0);
+		header.flip();
+
+		if(header.remaining() < GameArchive.HEADER_SIZE || header.getInt() != GameArchive.MAGIC
+				|| header.getInt() != GameArchive.VERSION)
+		{
+			close();
+			throw new IOException("Not a game archive");
+		}
+	}
+
+	/**
+	 * Prints a summary of an archive.
+	 *
+	 * @param args the command line options
+	 * @throws IOException thrown if the archive cannot be read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Connect4Args options = new Connect4Args(args);
+		Path path = Paths.get(options.get("archive", GameArchive.ARCHIVE_FILE));
+
+		try(GameArchiveReader reader = new GameArchiveReader(path))
+		{
+			long[] results = new long[4];
+			long[] totals = new long[2];
+
+			reader.forEach(game ->
+			{
+				totals[0]++;
+				totals[1] += game.moveCount;
+
+				if(game.result == PLAYER1_WON)
+					results[0]++;
+				else if(game.result == PLAYER2_WON)
+					results[1]++;
+				else if(game.result == DRAW)
+					results[2]++;
+				else
+					results[3]++;
+			});
+
+			long bytes = reader.data.size() - GameArchive.HEADER_SIZE;
+
+			System.out.printf("Games: %d (indexed %d)%n", totals[0], reader.size());
+			System.out.printf("Player 1 won %d, player 2 won %d, drawn %d, other %d%n",
+					results[0], results[1], results[2], results[3]);
+			System.out.printf("Average moves: %.1f  Average bytes per game: %.1f%n",
+					totals[0] == 0 ? 0.0 : (double) totals[1] / totals[0],
+					totals[0] == 0 ? 0.0 : (double) bytes / totals[0]);
+		}
+	}
+
+	/**
+	 * Returns the number of games in the index.
+	 *
+	 * @return the number of indexed records
+	 * @throws IOException thrown if the index cannot be read
+	 */
+	public long size() throws IOException
+	{
+		return index.size() / 8;
+	}
+
+	/**
+	 * Reads a single game by its number.
+	 *
+	 * @param number the game's place in the archive, from 0
+	 * @return the game
+	 * @throws IOException thrown if the game cannot be read
+	 */
+	public ArchivedGame read(long number) throws IOException
+	{
+		if(number < 0 || number >= size())
+			throw new IndexOutOfBoundsException("No game " + number + " in the archive");
+
+		ByteBuffer entry = ByteBuffer.allocate(8);
+		readFully(index, entry, number * 8);
+
+		ByteBuffer record = ByteBuffer.allocate(GameArchive.MAX_RECORD_SIZE);
+		record.limit(GameArchive.RECORD_HEADER_SIZE);
+		long offset = entry.getLong();
+		readFully(data, record, offset);
+
+		int moveCount = record.get(0);
+
+		if(moveCount < 0 || moveCount > MAXMOVES)
+			throw new IOException("Corrupt game archive record at " + offset);
+
+		record.limit(GameArchive.recordSize(moveCount));
+		record.position(GameArchive.RECORD_HEADER_SIZE);
+		readFully(data, record, offset + GameArchive.RECORD_HEADER_SIZE);
+
+		record.position(0);
+		return decode(record);
+	}
+
+	/**
+	 * Streams every complete game in the archive, in order, without
+	 * using the index.
+	 *
+	 * @param action what to do with each game
+	 * @throws IOException thrown if the archive cannot be read
+	 */
+	public void forEach(Consumer<ArchivedGame> action) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+		long position = GameArchive.HEADER_SIZE;
+		buffer.flip();
+
+		while(true)
+		{
+			// Keep at least one whole record in the buffer
+			if(buffer.remaining() < GameArchive.MAX_RECORD_SIZE)
+			{
+				buffer.compact();
+				int read = data.read(buffer, position);
+				buffer.flip();
+
+				if(read > 0)
+					position += read;
+			}
+
+			if(buffer.remaining() < GameArchive.RECORD_HEADER_SIZE)
+				return;
+
+			int moveCount = buffer.get(buffer.position());
+
+			if(moveCount < 0 || moveCount > MAXMOVES)
+				throw new IOException("Corrupt game archive record");
+
+			// A torn record may end an archive which is still being written
+			if(buffer.remaining() < GameArchive.recordSize(moveCount))
+				return;
+
+			action.accept(decode(buffer));
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			data.close();
+		}
+		finally
+		{
+			index.close();
+		}
+	}
+
+	/**
+	 * Unpacks the record at a buffer's position, leaving the
+	 * position just after it.
+	 *
+	 * @param record the buffer holding the record
+	 * @return the game
+	 */
+	private static ArchivedGame decode(ByteBuffer record)
+	{
+		int moveCount = record.get();
+		int gameType = record.get();
+		int result = record.get();
+		long startMillis = record.getLong();
+		long endMillis = startMillis + record.getInt();
+
+		byte[] moves = new byte[moveCount];
+		int bits = 0, pending = 0;
+
+		for(int i = 0; i < moveCount; i++)
+		{
+			if(bits < 3)
+			{
+				pending |= (record.get() & 0xff) << bits;
+				bits += 8;
+			}
+
+			moves[i] = (byte) (pending & 7);
+			pending >>>= 3;
+			bits -= 3;
+		}
+
+		return new ArchivedGame(gameType, result, startMillis, endMillis, moves);
+	}
+
+	/**
+	 * Fills a buffer from a fixed place in a channel.
+	 *
+	 * @param channel the channel to read
+	 * @param buffer the buffer to fill, flipped once full
+	 * @param position where in the channel to start
+	 * @throws IOException thrown if the channel ends first
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		int start = buffer.position();
+
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + buffer.position() - start) < 0)
+				throw new IOException("Game archive ends mid-record");
+		}
+
+		buffer.flip();
+	}
+
+	/**
+	 * One game read back from the archive.
+	 */
+	public static class ArchivedGame
+	{
+		public final int gameType;
+		public final int result;
+		public final long startMillis;
+		public final long endMillis;
+		public final int moveCount;
+		private final byte[] moves;
+
+		ArchivedGame(int gameType, int result, long startMillis, long endMillis, byte[] moves)
+		{
+			this.gameType = gameType;
+			this.result = result;
+			this.startMillis = startMillis;
+			this.endMillis = endMillis;
+			this.moveCount = moves.length;
+			this.moves = moves;
+		}
+
+		/**
+		 * Returns a column played.
+		 *
+		 * @param move the number of the move, from 0
+		 * @return the column played on that move
+		 */
+		public int getMove(int move)
+		{
+			return moves[move];
+		}
+
+		/**
+		 * Replays the game onto a new board.
+		 *
+		 * @return the final position of the game
+		 */
+		public Connect4 replay()
+		{
+			Connect4 game = new Connect4();
+
+			for(byte column : moves)
+				game.placeMarker(column);
+
+			return game;
+		}
+	}
+}
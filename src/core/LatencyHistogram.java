@@ -0,0 +1,184 @@
+/**
+ * A lock-free, log-linear latency histogram in the style
+ * of HdrHistogram. Values are bucketed by their highest bit
+ * and then split into 32 linear sub-buckets, which keeps the
+ * relative error of any reported percentile near 3% while
+ * using a small, fixed array of counters.
+ *
+ * Recording is a single atomic increment, so it is cheap enough
+ * to leave on for every move the server handles.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram
+{
+	// Bucket Layout
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	// Recorded Values
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder totalSum = new LongAdder();
+	private final LongAccumulator maxValue = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a single value, typically a duration in nanoseconds.
+	 * Negative values are treated as zero.
+	 *
+	 * @param value the value to record
+	 */
+	public void record(long value)
+	{
+		if(value < 0)
+			value = 0;
+
+		counts.incrementAndGet(bucketFor(value));
+		totalCount.increment();
+		totalSum.add(value);
+		maxValue.accumulate(value);
+	}
+
+	/**
+	 * Records the time elapsed since a value previously
+	 * taken from System.nanoTime().
+	 *
+	 * @param startNanos the starting nano time
+	 */
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return the total count
+	 */
+	public long getCount()
+	{
+		return totalCount.sum();
+	}
+
+	/**
+	 * Returns the mean of all values recorded, or 0 if empty.
+	 *
+	 * @return the mean value
+	 */
+	public double getMean()
+	{
+		long count = totalCount.sum();
+
+		if(count == 0)
+			return 0;
+
+		return (double) totalSum.sum() / count;
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 *
+	 * @return the maximum value
+	 */
+	public long getMax()
+	{
+		return maxValue.get();
+	}
+
+	/**
+	 * Returns the value below which the given percentage
+	 * of recorded values fall. The result is the upper bound
+	 * of the bucket holding that value, capped at the maximum.
+	 *
+	 * @param percentile the percentile to find, from 0 to 100
+	 * @return the value at that percentile, or 0 if empty
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long count = 0;
+		long[] snapshot = new long[BUCKETS];
+
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		if(count == 0)
+			return 0;
+
+		// The rank of the value we are looking for
+		long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+
+		if(target < 1)
+			target = 1;
+
+		long seen = 0;
+
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+
+			if(seen >= target)
+				return Math.min(highestValueIn(i), getMax());
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Clears all recorded values. Values recorded while the
+	 * reset is in progress may be partially kept.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+
+		totalCount.reset();
+		totalSum.reset();
+		maxValue.reset();
+	}
+
+	/**
+	 * Finds the bucket index for a non-negative value.
+	 *
+	 * @param value the value to place
+	 * @return the index of its bucket
+	 */
+	private static int bucketFor(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exponent - SUB_BITS));
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+	}
+
+	/**
+	 * Returns the largest value which falls into a bucket.
+	 *
+	 * @param index the index of the bucket
+	 * @return the inclusive upper bound of the bucket
+	 */
+	private static long highestValueIn(int index)
+	{
+		if(index < SUB_BUCKETS)
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ * A bounded pipe of bytes held in memory, with an input stream
+ * at one end and an output stream at the other. It lets a session
+ * be played in-process exactly as it would be over a socket. Unlike
+ * PipedInputStream, it does not care which threads read and write,
+ * so either end may be used from a pool.
+ *
+ * Closing either end closes the pipe: the reader sees the end of
+ * the stream once the bytes already written are read, and any
+ * further write fails.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+public class MemoryPipe
+{
+	// Bytes written but not yet read, wrapping around the buffer
+	private final byte[] buffer;
+	private int readPos, count;
+	private boolean closed;
+
+	private final InputStream in = new PipeInput();
+	private final OutputStream out = new PipeOutput();
+
+	/**
+	 * Creates an empty pipe.
+	 *
+	 * @param capacity the most bytes the pipe holds before writes wait
+	 */
+	public MemoryPipe(int capacity)
+	{
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Returns the end of the pipe to read from.
+	 *
+	 * @return the pipe's input stream
+	 */
+	public InputStream getInputStream()
+	{
+		return in;
+	}
+
+	/**
+	 * Returns the end of the pipe to write to.
+	 *
+	 * @return the pipe's output stream
+	 */
+	public OutputStream getOutputStream()
+	{
+		return out;
+	}
+
+	/**
+	 * Closes the pipe, waking anyone waiting on it.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Reads whatever bytes are available, waiting if there are none.
+	 *
+	 * @param b the array to read into
+	 * @param off where in the array to start
+	 * @param len the most bytes to read
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 * @throws IOException thrown if interrupted while waiting
+	 */
+	private synchronized int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+			return 0;
+
+		while(count == 0)
+		{
+			if(closed)
+				return -1;
+
+			await();
+		}
+
+		int read = Math.min(len, count);
+		int first = Math.min(read, buffer.length - readPos);
+
+		System.arraycopy(buffer, readPos, b, off, first);
+		System.arraycopy(buffer, 0, b, off + first, read - first);
+
+		readPos = (readPos + read) % buffer.length;
+		count -= read;
+		notifyAll();
+
+		return read;
+	}
+
+	/**
+	 * Writes every byte given, waiting whenever the pipe is full.
+	 *
+	 * @param b the array to write from
+	 * @param off where in the array to start
+	 * @param len the number of bytes to write
+	 * @throws IOException thrown if the pipe is closed or interrupted
+	 */
+	private synchronized void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			while(!closed && count == buffer.length)
+				await();
+
+			if(closed)
+				throw new EOFException("Pipe closed");
+
+			int writePos = (readPos + count) % buffer.length;
+			int written = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+
+			System.arraycopy(b, off, buffer, writePos, written);
+
+			count += written;
+			off += written;
+			len -= written;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the other end of the pipe to act.
+	 *
+	 * @throws InterruptedIOException thrown if interrupted while waiting
+	 */
+	private void await() throws InterruptedIOException
+	{
+		try
+		{
+			wait();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * The reading end of the pipe.
+	 */
+	private class PipeInput extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+			synchronized(MemoryPipe.this)
+			{
+				while(count == 0)
+				{
+					if(closed)
+						return -1;
+
+					await();
+				}
+
+				int b = buffer[readPos] & 0xff;
+				readPos = (readPos + 1) % buffer.length;
+				count--;
+				MemoryPipe.this.notifyAll();
+
+				return b;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return MemoryPipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available()
+		{
+			synchronized(MemoryPipe.this)
+			{
+				return count;
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			MemoryPipe.this.close();
+		}
+	}
+
+	/**
+	 * The writing end of the pipe.
+	 */
+	private class PipeOutput extends OutputStream
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			synchronized(MemoryPipe.this)
+			{
+				while(!closed && count == buffer.length)
+					await();
+
+				if(closed)
+					throw new EOFException("Pipe closed");
+
+				buffer[(readPos + count) % buffer.length] = (byte) b;
+				count++;
+				MemoryPipe.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			MemoryPipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close()
+		{
+			MemoryPipe.this.close();
+		}
+	}
+}
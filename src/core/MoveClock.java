@@ -0,0 +1,85 @@
+/**
+ * The clocks of one game: a bank of time for each player, which runs
+ * only while it is their move. Each move made in time adds a Fischer
+ * increment to the mover's bank, and no single move may take longer
+ * than the move limit, however much time is banked. The deadline of
+ * the running clock is kept on a TimingWheel shared by every game.
+ *
+ * Clocks are only ever started and stopped by the session's own
+ * thread; the wheel only calls back once a player has run out.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+class MoveClock
+{
+	private final TimingWheel wheel;
+	private final long incrementMillis;
+	private final long moveLimitMillis;
+
+	// Each player's bank, and the clock now running
+	private final long[] remaining = new long[2];
+	private int running = -1;
+	private long startedMillis;
+	private TimingWheel.Timeout flag;
+
+	/**
+	 * Creates the clocks of a game, neither of them running.
+	 *
+	 * @param wheel the wheel to keep deadlines on
+	 * @param baseMillis each player's bank at the start
+	 * @param incrementMillis added to a player's bank for each move in time
+	 * @param moveLimitMillis the most any one move may take, or 0 for no limit
+	 */
+	MoveClock(TimingWheel wheel, long baseMillis, long incrementMillis, long moveLimitMillis)
+	{
+		this.wheel = wheel;
+		this.incrementMillis = incrementMillis;
+		this.moveLimitMillis = (moveLimitMillis > 0) ? moveLimitMillis : Long.MAX_VALUE;
+
+		remaining[0] = remaining[1] = baseMillis;
+	}
+
+	/**
+	 * Starts a player's clock.
+	 *
+	 * @param seat the player to move, 0 or 1
+	 * @param onFlag run on the wheel's thread if they run out of time
+	 */
+	void start(int seat, Runnable onFlag)
+	{
+		stop();
+
+		running = seat;
+		startedMillis = System.currentTimeMillis();
+		flag = wheel.schedule(onFlag, Math.min(remaining[seat], moveLimitMillis));
+	}
+
+	/**
+	 * Stops the running clock, if any, charging the mover for the
+	 * time taken and adding the increment.
+	 */
+	void stop()
+	{
+		if(running < 0)
+			return;
+
+		flag.cancel();
+		remaining[running] += incrementMillis - (System.currentTimeMillis() - startedMillis);
+		running = -1;
+		flag = null;
+	}
+
+	/**
+	 * Returns a player's bank, as of the last time their clock stopped.
+	 *
+	 * @param seat the player, 0 or 1
+	 * @return their remaining time, in milliseconds
+	 */
+	long getRemaining(int seat)
+	{
+		return remaining[seat];
+	}
+}
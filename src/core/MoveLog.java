@@ -0,0 +1,495 @@
+/**
+ * A write-ahead log of every game in progress, kept so the server
+ * can rebuild its live games after the process dies. Sessions log
+ * their start, each move before it is acknowledged, and their end.
+ *
+ * The log is a run of fixed-size segment files in one directory,
+ * each memory-mapped, so appending a record is a copy into memory
+ * which the operating system keeps even if the process is killed.
+ * Segments are forced to disk on a timer as well, to bound what a
+ * power loss could take. Every record is sixteen bytes:
+ *
+ *   long  session id, or for NEXT_ID the next id to hand out
+ *   byte  kind: START, MOVE, END or NEXT_ID
+ *   byte  the game type, column or result
+ *   short the move's number, from 1
+ *   int   a check of the other twelve bytes
+ *
+ * Compaction starts a fresh segment holding only the games still
+ * live, after a NEXT_ID record carrying the session ids handed out
+ * so far, then deletes every older segment. Ids are therefore never
+ * handed out twice, even once every game which used them is gone
+ * from the log, and so neither are resume tokens. The new segment is
+ * forced before any older one goes, and the older ones go oldest
+ * first, so a crash at any point leaves a log which replays to the
+ * same games. A log already holding nothing but its NEXT_ID record
+ * is left as it is, so an idle server maps no new segments.
+ * Opening a log replays its segments in order, stopping each at the
+ * first record which fails its check, and compacts straight away.
+ * Replay reads segments rather than mapping them, so the only
+ * segment ever mapped is the one being written.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class MoveLog implements Closeable, Connect4Constants
+{
+	// Record Format
+	static final int RECORD_SIZE = 16;
+	static final byte START = 1;
+	static final byte MOVE = 2;
+	static final byte END = 3;
+	static final byte NEXT_ID = 4;
+
+	// Default Settings
+	public static final String LOG_DIRECTORY = "connect4-wal";
+	public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int FORCE_MILLIS = 1000;
+	private static final int COMPACT_SECONDS = 30;
+	private static final int REPLAY_BUFFER_SIZE = 64 * 1024;
+	private static final String SEGMENT_PREFIX = "moves-";
+	private static final String SEGMENT_SUFFIX = ".wal";
+
+	// Files
+	private final Path directory;
+	private final int segmentSize;
+	private final List<Path> segments = new ArrayList<>();
+	private MappedByteBuffer current;
+	private long nextSegment;
+
+	// Segments which could not be deleted while still mapped
+	private final List<Path> retired = new ArrayList<>();
+
+	// Games in progress, as the log has recorded them
+	private final Map<Long, LiveGame> live = new HashMap<>();
+	private final List<LiveGame> recovered;
+	private long nextSessionId = 1;
+
+	private final ScheduledExecutorService housekeeper;
+
+	/**
+	 * Opens the log in a directory, replaying whatever it holds.
+	 *
+	 * @param directory the directory of the log's segments
+	 * @param segmentSize the size of each segment, in bytes
+	 * @throws IOException thrown if the log cannot be read or written
+	 */
+	public MoveLog(Path directory, int segmentSize) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize - segmentSize % RECORD_SIZE;
+
+		Files.createDirectories(directory);
+		replay();
+		recovered = Collections.unmodifiableList(new ArrayList<>(live.values()));
+		compact();
+
+		housekeeper = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "connect4-wal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		housekeeper.scheduleWithFixedDelay(this::force, FORCE_MILLIS, FORCE_MILLIS,
+				TimeUnit.MILLISECONDS);
+		housekeeper.scheduleWithFixedDelay(this::compactQuietly, COMPACT_SECONDS, COMPACT_SECONDS,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns the games which were live when the log was last
+	 * closed or the process died.
+	 *
+	 * @return the recovered games
+	 */
+	public List<LiveGame> getRecovered()
+	{
+		return recovered;
+	}
+
+	/**
+	 * Returns the number of games the log holds as live.
+	 *
+	 * @return the number of live games
+	 */
+	public synchronized int getLiveGames()
+	{
+		return live.size();
+	}
+
+	/**
+	 * Logs the start of a game.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game
+	 * @return the session id the game is logged under
+	 * @throws IOException thrown if a new segment cannot be created
+	 */
+	public synchronized long start(int gameType) throws IOException
+	{
+		long sessionId = nextSessionId++;
+
+		append(sessionId, START, gameType, 0);
+		live.put(sessionId, new LiveGame(sessionId, gameType));
+
+		return sessionId;
+	}
+
+	/**
+	 * Logs a move, which the caller may then acknowledge.
+	 *
+	 * @param sessionId the game's session id
+	 * @param column the column played
+	 * @throws IOException thrown if a new segment cannot be created
+	 */
+	public synchronized void move(long sessionId, int column) throws IOException
+	{
+		LiveGame game = live.get(sessionId);
+
+		if(game == null)
+			return;
+
+		game.moves[game.moveCount++] = (byte) column;
+		append(sessionId, MOVE, column, game.moveCount);
+	}
+
+	/**
+	 * Logs the end of a game, after which it is never recovered.
+	 *
+	 * @param sessionId the game's session id
+	 * @param result how the game ended
+	 */
+	public synchronized void end(long sessionId, int result)
+	{
+		if(live.remove(sessionId) == null)
+			return;
+
+		try
+		{
+			append(sessionId, END, result, 0);
+		}
+		catch(IOException ex)
+		{
+			// Recovered without its end, the game is simply ended again
+		}
+	}
+
+	/**
+	 * Rewrites the log as a fresh segment holding only the live games,
+	 * then deletes every older segment, oldest first. Does nothing if
+	 * the log is already one segment holding only its NEXT_ID record.
+	 *
+	 * @throws IOException thrown if the new segment cannot be written
+	 */
+	public synchronized void compact() throws IOException
+	{
+		if(live.isEmpty() && segments.size() == 1 && current != null
+				&& current.position() == RECORD_SIZE)
+			return;
+
+		List<Path> older = new ArrayList<>(segments);
+		segments.clear();
+		roll();
+		append(nextSessionId, NEXT_ID, 0, 0);
+
+		for(LiveGame game : live.values())
+		{
+			append(game.sessionId, START, game.gameType, 0);
+
+			for(int i = 0; i < game.moveCount; i++)
+				append(game.sessionId, MOVE, game.moves[i], i + 1);
+		}
+
+		current.force();
+		delete(older);
+	}
+
+	/**
+	 * Deletes segments no longer part of the log. A segment which is
+	 * still mapped cannot be deleted on some systems until the mapping
+	 * is collected, so any which fail are tried again next time.
+	 *
+	 * @param older the segments to delete
+	 */
+	private void delete(List<Path> older)
+	{
+		retired.addAll(older);
+
+		for(Iterator<Path> it = retired.iterator(); it.hasNext();)
+		{
+			try
+			{
+				Files.deleteIfExists(it.next());
+				it.remove();
+			}
+			catch(IOException ex)
+			{
+				// Still mapped, or in use elsewhere
+			}
+		}
+	}
+
+	/**
+	 * Forces what has been logged to disk and stops logging.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		housekeeper.shutdownNow();
+		force();
+	}
+
+	/**
+	 * Writes a record, moving to a new segment if this one is full.
+	 *
+	 * @param sessionId the game's session id
+	 * @param kind START, MOVE, END or NEXT_ID
+	 * @param value the game type, column or result
+	 * @param moveNumber the move's number, or 0
+	 * @throws IOException thrown if a new segment cannot be created
+	 */
+	private void append(long sessionId, byte kind, int value, int moveNumber) throws IOException
+	{
+		if(current.remaining() < RECORD_SIZE)
+			roll();
+
+		current.putLong(sessionId);
+		current.put(kind);
+		current.put((byte) value);
+		current.putShort((short) moveNumber);
+		current.putInt(check(sessionId, kind, (byte) value, (short) moveNumber));
+	}
+
+	/**
+	 * Creates and maps the next segment.
+	 *
+	 * @throws IOException thrown if the segment cannot be created
+	 */
+	private void roll() throws IOException
+	{
+		if(current != null)
+			current.force();
+
+		Path segment = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, nextSegment++,
+				SEGMENT_SUFFIX));
+
+		try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			current = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+
+		segments.add(segment);
+	}
+
+	/**
+	 * Rebuilds the live games from every segment, oldest first.
+	 *
+	 * @throws IOException thrown if a segment cannot be read
+	 */
+	private void replay() throws IOException
+	{
+		List<Path> found = new ArrayList<>();
+
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+		{
+			for(Path segment : stream)
+				found.add(segment);
+		}
+
+		// Zero-padded numbers sort in the order they were written
+		Collections.sort(found);
+		ByteBuffer records = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+
+		for(Path segment : found)
+		{
+			// Read rather than mapped, so nothing holds the segment once compacted away
+			try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ))
+			{
+				boolean whole = true;
+				records.clear();
+
+				while(whole && channel.read(records) > 0)
+				{
+					records.flip();
+
+					while(whole && records.remaining() >= RECORD_SIZE)
+						whole = replayRecord(records);
+
+					records.compact();
+				}
+			}
+
+			String name = segment.getFileName().toString();
+			long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+			nextSegment = Math.max(nextSegment, number + 1);
+		}
+
+		segments.addAll(found);
+	}
+
+	/**
+	 * Applies one record to the live games.
+	 *
+	 * @param records the segment, positioned at the record
+	 * @return false if the record fails its check, ending the segment
+	 */
+	private boolean replayRecord(ByteBuffer records)
+	{
+		long sessionId = records.getLong();
+		byte kind = records.get();
+		byte value = records.get();
+		short moveNumber = records.getShort();
+
+		if(records.getInt() != check(sessionId, kind, value, moveNumber))
+			return false;
+
+		if(kind == NEXT_ID)
+		{
+			nextSessionId = Math.max(nextSessionId, sessionId);
+			return true;
+		}
+
+		nextSessionId = Math.max(nextSessionId, sessionId + 1);
+
+		if(kind == START)
+		{
+			live.put(sessionId, new LiveGame(sessionId, value));
+		}
+		else if(kind == MOVE)
+		{
+			LiveGame game = live.get(sessionId);
+
+			// Compaction may repeat moves already seen; only the next one counts
+			if(game != null && moveNumber == game.moveCount + 1 && moveNumber <= MAXMOVES)
+				game.moves[game.moveCount++] = value;
+		}
+		else if(kind == END)
+		{
+			live.remove(sessionId);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Forces the current segment to disk.
+	 */
+	private synchronized void force()
+	{
+		if(current != null)
+			current.force();
+	}
+
+	/**
+	 * Compacts on a timer, once the log has grown past one segment.
+	 */
+	private synchronized void compactQuietly()
+	{
+		if(segments.size() < 2)
+			return;
+
+		try
+		{
+			compact();
+		}
+		catch(IOException ex)
+		{
+			System.err.println("Move log compaction failed: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Computes the check of a record, which is never that of an
+	 * all-zero record, so unwritten space is never mistaken for one.
+	 *
+	 * @param sessionId the game's session id
+	 * @param kind the kind of record
+	 * @param value the game type, column or result
+	 * @param moveNumber the move's number
+	 * @return the check
+	 */
+	private static int check(long sessionId, byte kind, byte value, short moveNumber)
+	{
+		long hash = (sessionId ^ 0x5bd1e9955bd1e995L) * 0x9e3779b97f4a7c15L;
+		hash ^= ((kind & 0xffL) << 24 | (value & 0xffL) << 16 | (moveNumber & 0xffffL)) * 0xc2b2ae3d27d4eb4fL;
+		hash ^= hash >>> 29;
+
+		return (int) hash | 1;
+	}
+
+	/**
+	 * A game the log holds as live.
+	 */
+	public static class LiveGame
+	{
+		public final long sessionId;
+		public final int gameType;
+		private final byte[] moves = new byte[MAXMOVES];
+		private int moveCount;
+
+		LiveGame(long sessionId, int gameType)
+		{
+			this.sessionId = sessionId;
+			this.gameType = gameType;
+		}
+
+		/**
+		 * Replays the game's moves onto a new board.
+		 *
+		 * @return the game as it stood
+		 */
+		public Connect4 replay()
+		{
+			Connect4 game = new Connect4();
+
+			for(int i = 0; i < moveCount; i++)
+				game.placeMarker(moves[i]);
+
+			return game;
+		}
+
+		/**
+		 * Returns a column played.
+		 *
+		 * @param move the number of the move, from 0
+		 * @return the column played on that move
+		 */
+		public int getMove(int move)
+		{
+			return moves[move];
+		}
+
+		/**
+		 * Returns the number of moves made.
+		 *
+		 * @return the number of moves logged
+		 */
+		public int getMoveCount()
+		{
+			return moveCount;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * The server's end of a multiplexed connection, over which one
+ * client plays any number of games at once. Every frame in either
+ * direction is four ints: the client's id for the game, a code,
+ * and two values.
+ *
+ * From the client:
+ *   id, MUX_OPEN, game type, 0    asks for a new PVP or AI game
+ *   id, MUX_MOVE, column, 0       plays a move in that game
+ *
+ * From the server:
+ *   id, PLAYER1 or PLAYER2, 0, 0  the game has begun
+ *   id, INVALID, column, 0        the move or open was refused
+ *   id, status, column, row       a move was made in the game
+ *   id, OPPONENT_LEFT, 0, 0       the game ended early
+ *
+ * A single thread reads the connection and drives each game as its
+ * frames arrive, so a connection costs one thread however many games
+ * it carries. Replies are buffered and flushed once no more frames
+ * are waiting to be read.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class MuxConnection implements Runnable, Connect4Constants
+{
+	// Connection Needs
+	private final Socket socket;
+	private final Connect4ServerEngine engine;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private volatile Thread reader;
+
+	// Games in progress, by the client's id for them
+	private final Map<Integer, MuxGame> games = new ConcurrentHashMap<>();
+
+	/**
+	 * Wraps a connection whose client asked for a multiplexed session.
+	 *
+	 * @param socket the client's connection
+	 * @param engine the server the games are played on
+	 * @throws IOException thrown if the connection's streams cannot be opened
+	 */
+	MuxConnection(Socket socket, Connect4ServerEngine engine) throws IOException
+	{
+		this.socket = socket;
+		this.engine = engine;
+
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Reads and acts on frames until the client disconnects, then
+	 * ends every game the connection still has open.
+	 */
+	@Override
+	public void run()
+	{
+		reader = Thread.currentThread();
+
+		try
+		{
+			while(true)
+			{
+				int gameId = in.readInt();
+				int code = in.readInt();
+				int first = in.readInt();
+				in.readInt();
+
+				if(code == MUX_OPEN)
+					open(gameId, first);
+				else if(code == MUX_MOVE)
+					move(gameId, first);
+				else
+					send(gameId, INVALID, first, 0);
+
+				// Answer a whole burst of frames with one write
+				if(in.available() == 0)
+					flush();
+			}
+		}
+		catch(EOFException | SocketException ex)
+		{
+			// The client disconnected
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+		}
+		finally
+		{
+			for(MuxGame game : new ArrayList<>(games.values()))
+			{
+				engine.cancelMuxGame(game);
+				game.leave(this);
+			}
+
+			close();
+		}
+	}
+
+	/**
+	 * Opens a new game for the client, refusing ids already in use
+	 * and types of game which cannot be multiplexed.
+	 *
+	 * @param gameId the client's id for the game
+	 * @param gameType the type (pvp = 0, ai = 1) of game wanted
+	 */
+	private void open(int gameId, int gameType)
+	{
+		if(games.containsKey(gameId) || (gameType != PVP_GAME && gameType != AI_GAME))
+		{
+			send(gameId, INVALID, -1, 0);
+			return;
+		}
+
+		// Only this thread reads moves, so the game is registered
+		// before any move for it can be read
+		games.put(gameId, engine.openMuxGame(gameType, this, gameId));
+	}
+
+	/**
+	 * Passes a move on to the game it belongs to.
+	 *
+	 * @param gameId the client's id for the game
+	 * @param column the column played
+	 */
+	private void move(int gameId, int column)
+	{
+		MuxGame game = games.get(gameId);
+
+		if(game == null)
+		{
+			engine.getMetrics().invalidMove();
+			send(gameId, INVALID, column, 0);
+			return;
+		}
+
+		game.move(this, gameId, column);
+	}
+
+	/**
+	 * Forgets a game once it has ended.
+	 *
+	 * @param gameId the client's id for the game
+	 */
+	void finished(int gameId)
+	{
+		games.remove(gameId);
+	}
+
+	/**
+	 * Sends a frame to the client. Frames sent by the connection's
+	 * own reader wait for the end of the burst being read; any other
+	 * thread's are flushed at once. A connection which cannot be
+	 * written to is closed, which ends its reader.
+	 *
+	 * @param gameId the client's id for the game
+	 * @param code what the frame reports
+	 * @param first the first value
+	 * @param second the second value
+	 */
+	synchronized void send(int gameId, int code, int first, int second)
+	{
+		try
+		{
+			out.writeInt(gameId);
+			out.writeInt(code);
+			out.writeInt(first);
+			out.writeInt(second);
+
+			if(Thread.currentThread() != reader)
+				out.flush();
+		}
+		catch(IOException ex)
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Sends any frames still buffered.
+	 */
+	private synchronized void flush()
+	{
+		try
+		{
+			out.flush();
+		}
+		catch(IOException ex)
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Returns the address of the client, for logging.
+	 *
+	 * @return the client's address
+	 */
+	String getAddress()
+	{
+		return socket.getInetAddress().getHostAddress();
+	}
+
+	/**
+	 * Closes the connection, ignoring any failure to do so.
+	 */
+	private void close()
+	{
+		try
+		{
+			socket.close();
+		}
+		catch(IOException ex)
+		{
+			// Already closed by the client
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * A single game played over multiplexed connections. Unlike
+ * BeginASession it owns no thread: each move is applied as its
+ * frame is read, and the computer answers on the same call.
+ * The two seats may be on one connection or on two.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+class MuxGame implements Connect4Constants
+{
+	// Game Needs
+	private final Connect4 game = new Connect4();
+	private final int gameType;
+	private final Connect4ComputerPlayer comp;
+	private final Connect4Metrics metrics;
+	private final GameArchive archive;
+
+	// Seats, with each player's connection and id for the game
+	private final MuxConnection[] connections = new MuxConnection[2];
+	private final int[] gameIds = new int[2];
+
+	// Progress
+	private boolean started, over;
+	private int result = CONTINUE;
+	private final byte[] moves = new byte[MAXMOVES];
+	private long startMillis;
+
+	/**
+	 * Creates a game which has yet to be seated.
+	 *
+	 * @param gameType the type (pvp = 0, ai = 1) of game
+	 * @param metrics the metrics to record the game in
+	 * @param archive the archive to add the game to once finished, or null
+	 */
+	MuxGame(int gameType, Connect4Metrics metrics, GameArchive archive)
+	{
+		this.gameType = gameType;
+		this.metrics = metrics;
+		this.archive = archive;
+
+		comp = (gameType == AI_GAME) ? new Connect4ComputerPlayer(game) : null;
+	}
+
+	/**
+	 * Seats the first player, who plays X.
+	 *
+	 * @param connection the player's connection
+	 * @param gameId the player's id for the game
+	 */
+	synchronized void seatFirst(MuxConnection connection, int gameId)
+	{
+		connections[0] = connection;
+		gameIds[0] = gameId;
+	}
+
+	/**
+	 * Seats the second player and begins a PVP game, unless the
+	 * first player has already left.
+	 *
+	 * @param connection the player's connection
+	 * @param gameId the player's id for the game
+	 * @return true if the game began
+	 */
+	synchronized boolean join(MuxConnection connection, int gameId)
+	{
+		if(over)
+			return false;
+
+		connections[1] = connection;
+		gameIds[1] = gameId;
+		begin();
+
+		return true;
+	}
+
+	/**
+	 * Tells each seated player their number, which also tells
+	 * them the game has begun.
+	 */
+	synchronized void begin()
+	{
+		started = true;
+		startMillis = System.currentTimeMillis();
+		metrics.gameStarted(gameType);
+
+		connections[0].send(gameIds[0], PLAYER1, 0, 0);
+
+		if(connections[1] != null)
+			connections[1].send(gameIds[1], PLAYER2, 0, 0);
+	}
+
+	/**
+	 * Plays a move for whichever seat the connection holds. Moves
+	 * out of turn, before the game begins or after it ends, and into
+	 * full or missing columns are refused.
+	 *
+	 * @param from the connection the move arrived on
+	 * @param gameId the connection's id for the game
+	 * @param column the column played
+	 */
+	synchronized void move(MuxConnection from, int gameId, int column)
+	{
+		int seat = game.getTurnCounter() % 2;
+
+		// One connection may hold both seats, so the id must match too
+		if(!started || over || connections[seat] != from || gameIds[seat] != gameId
+				|| !game.isValidMove(column))
+		{
+			metrics.invalidMove();
+			from.send(gameId, INVALID, column, 0);
+			return;
+		}
+
+		long moveStart = System.nanoTime();
+		place(column, seat == 0 ? PLAYER1_WON : PLAYER2_WON);
+		metrics.movePlayed(moveStart);
+
+		// *** COMPUTER TURN *** //
+		if(result == CONTINUE && comp != null)
+		{
+			moveStart = System.nanoTime();
+			column = comp.makeMove();
+			metrics.aiMoveMade(moveStart);
+
+			place(column, PLAYER2_WON);
+			metrics.movePlayed(moveStart);
+		}
+
+		if(result != CONTINUE)
+			finish(result);
+	}
+
+	/**
+	 * Ends the game for a player whose connection has closed,
+	 * telling the other player if there is one.
+	 *
+	 * @param from the connection which closed
+	 */
+	synchronized void leave(MuxConnection from)
+	{
+		if(over)
+			return;
+
+		if(!started)
+		{
+			// Never began, so only matchmaking knows of it
+			over = true;
+			from.finished(gameIds[0]);
+			return;
+		}
+
+		for(int seat = 0; seat < 2; seat++)
+		{
+			if(connections[seat] != null && connections[seat] != from)
+				connections[seat].send(gameIds[seat], OPPONENT_LEFT, 0, 0);
+		}
+
+		finish(CONTINUE);
+	}
+
+	/**
+	 * Makes a move on the board and reports it to every seat.
+	 *
+	 * @param column the column played
+	 * @param winResult the result should the move win
+	 */
+	private void place(int column, int winResult)
+	{
+		int rowOfMove = game.placeMarker(column);
+		moves[game.getTurnCounter() - 1] = (byte) column;
+
+		if(game.checkForWin(column))
+			result = winResult;
+		else if(game.getTurnCounter() == MAXMOVES)
+			result = DRAW;
+
+		for(int seat = 0; seat < 2; seat++)
+		{
+			if(connections[seat] != null)
+				connections[seat].send(gameIds[seat], result, column, rowOfMove);
+		}
+	}
+
+	/**
+	 * Records the end of the game and releases its ids.
+	 *
+	 * @param outcome the result recorded, CONTINUE if abandoned
+	 */
+	private void finish(int outcome)
+	{
+		over = true;
+		metrics.gameFinished(gameType, outcome);
+
+		if(archive != null && outcome != CONTINUE)
+			archive.append(gameType, outcome, startMillis, System.currentTimeMillis(), moves,
+					game.getTurnCounter());
+
+		for(int seat = 0; seat < 2; seat++)
+		{
+			if(connections[seat] != null)
+				connections[seat].finished(gameIds[seat]);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * The bytes waiting to be sent down one connection. A send first
+ * goes straight to the channel, which never waits since it is
+ * non-blocking; whatever the socket will not take is copied here
+ * and written out later, once the socket has room.
+ *
+ * The queue is bounded. Past the high watermark the connection is
+ * backed up, and stays so until the queue drains below the low
+ * watermark; past the limit nothing more is taken at all.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+class OutboundQueue
+{
+	// Bytes queued, past what the socket's own buffer holds
+	static final int LOW_WATERMARK = 4 * 1024;
+	static final int HIGH_WATERMARK = 16 * 1024;
+	static final int LIMIT = 64 * 1024;
+
+	// Made only once something must wait, as for most links nothing does
+	private ArrayDeque<ByteBuffer> chunks;
+	private int size;
+	private boolean backedUp;
+	private long backedUpSince;
+
+	/**
+	 * Sends bytes down a channel, queueing what it will not take.
+	 * Bytes go to the channel directly only when nothing is queued
+	 * ahead of them.
+	 *
+	 * @param bytes the bytes to send, which are used up
+	 * @param channel the non-blocking channel to send them down
+	 * @return false if queueing them would pass the limit
+	 * @throws IOException thrown if the channel fails
+	 */
+	synchronized boolean send(ByteBuffer bytes, WritableByteChannel channel) throws IOException
+	{
+		if(size == 0)
+			channel.write(bytes);
+
+		int left = bytes.remaining();
+
+		if(left == 0)
+			return true;
+
+		if(size + left > LIMIT)
+			return false;
+
+		if(chunks == null)
+			chunks = new ArrayDeque<>();
+
+		ByteBuffer chunk = ByteBuffer.allocate(left);
+		chunk.put(bytes).flip();
+		chunks.add(chunk);
+		size += left;
+
+		if(!backedUp && size >= HIGH_WATERMARK)
+		{
+			backedUp = true;
+			backedUpSince = System.currentTimeMillis();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes as much of the queue as the channel will take.
+	 *
+	 * @param channel the non-blocking channel to write to
+	 * @throws IOException thrown if the channel fails
+	 */
+	synchronized void drainTo(WritableByteChannel channel) throws IOException
+	{
+		while(size > 0)
+		{
+			ByteBuffer chunk = chunks.peek();
+			size -= channel.write(chunk);
+
+			if(chunk.hasRemaining())
+				break;
+
+			chunks.poll();
+		}
+
+		if(size == 0)
+			chunks = null;
+
+		if(backedUp && size <= LOW_WATERMARK)
+			backedUp = false;
+	}
+
+	/**
+	 * Tells whether anything is waiting to be written.
+	 *
+	 * @return true if the queue is empty
+	 */
+	synchronized boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Tells whether the queue has passed the high watermark without
+	 * yet draining below the low one.
+	 *
+	 * @return true if the connection is backed up
+	 */
+	synchronized boolean isBackedUp()
+	{
+		return backedUp;
+	}
+
+	/**
+	 * Returns how long the connection has been backed up.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return the milliseconds it has been backed up, or 0 if it is not
+	 */
+	synchronized long backedUpFor(long now)
+	{
+		return backedUp ? now - backedUpSince : 0;
+	}
+
+	/**
+	 * Returns the number of bytes waiting to be written.
+	 *
+	 * @return the queue's size in bytes
+	 */
+	synchronized int size()
+	{
+		return size;
+	}
+}
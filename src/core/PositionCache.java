@@ -0,0 +1,92 @@
+/**
+ * A fixed-size, lock-free cache of results keyed by position,
+ * as packed into a long by PositionCodec.key, or by
+ * Connect4.getCanonicalKey where mirror images share an entry.
+ * Each key maps to a single slot, and a newer entry simply
+ * replaces whatever held its slot before, in the manner of a
+ * transposition table. Lookups and stores never block and the
+ * cache never grows past its initial size.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ * @param <V> the type of result stored
+ */
+package core;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class PositionCache<V>
+{
+	private final AtomicReferenceArray<Entry<V>> slots;
+	private final int mask;
+
+	/**
+	 * Creates a cache with at least the given number of slots,
+	 * rounded up to a power of two.
+	 *
+	 * @param capacity the minimum number of slots
+	 */
+	public PositionCache(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+		slots = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Finds the result stored for a position.
+	 *
+	 * @param key the key of the position
+	 * @return the stored result, or null if it is not cached
+	 */
+	public V get(long key)
+	{
+		Entry<V> entry = slots.get(slotFor(key));
+
+		if(entry != null && entry.key == key)
+			return entry.value;
+
+		return null;
+	}
+
+	/**
+	 * Stores the result for a position, replacing whatever
+	 * shared its slot.
+	 *
+	 * @param key the key of the position
+	 * @param value the result to store
+	 */
+	public void put(long key, V value)
+	{
+		slots.set(slotFor(key), new Entry<>(key, value));
+	}
+
+	/**
+	 * Finds the slot a key belongs in.
+	 *
+	 * @param key the key of the position
+	 * @return the index of its slot
+	 */
+	private int slotFor(long key)
+	{
+		// Mix every bit in, since neighbouring positions differ in few
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 32) & mask;
+	}
+
+	/**
+	 * A stored key and result.
+	 */
+	private static class Entry<V>
+	{
+		final long key;
+		final V value;
+
+		Entry(long key, V value)
+		{
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/**
+ * The one encoding of a Connect4 position, shared by everything
+ * which stores, sends or looks up positions. A position is the
+ * cells each player holds and the column played last, which is
+ * all a board needs to carry on; the number of moves made and
+ * whose turn it is follow from the cells.
+ *
+ * Binary form, SIZE bytes, big-endian:
+ *   long  the cells holding X, cell (row, column) at bit row * COLUMNS + column
+ *   long  the cells holding O, likewise
+ *   int   the number of moves made in the high 16 bits, the
+ *         column played last in the low 16
+ *
+ * The same bytes go out as five ints over a Connect4Transport.
+ * Encoding and decoding allocate nothing, and decoding rejects
+ * positions no game could reach.
+ *
+ * Text form, for logs and the command line: the rows from top to
+ * bottom, '.' for an empty cell, split by '/', then a space and
+ * the column played last, numbered 1 to 7, or 0 before any move:
+ *   ......./......./......./......./...O.../..XX... 3
+ *
+ * A key packs a position into a single long: 7 bits for each
+ * column, a bit for each marker in it, 1 for X and 0 for O, under
+ * a 1 marking its height, with the column played last above them.
+ * Since each column has a group of bits to itself, the key of a
+ * position's mirror image is its groups in reverse order.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public final class PositionCodec implements Connect4Constants
+{
+	// Bytes in the binary form
+	public static final int SIZE = 2 * Long.BYTES + Integer.BYTES;
+
+	// Bits of the key for each column, and where the last column sits
+	static final int KEY_COLUMN_BITS = ROWS + 1;
+	static final int KEY_LAST_SHIFT = COLUMNS * KEY_COLUMN_BITS;
+
+	private PositionCodec()
+	{
+	}
+
+	/**
+	 * Writes a position into a buffer.
+	 *
+	 * @param game the position
+	 * @param out the buffer, with at least SIZE bytes remaining
+	 */
+	public static void encode(Connect4 game, ByteBuffer out)
+	{
+		out.putLong(game.getCells("X")).putLong(game.getCells("O")).putInt(meta(game));
+	}
+
+	/**
+	 * Reads a position from a buffer onto a board, replacing whatever
+	 * the board held.
+	 *
+	 * @param in the buffer, with at least SIZE bytes remaining
+	 * @param into the board to set
+	 * @throws IllegalArgumentException thrown if no game could reach the position
+	 */
+	public static void decode(ByteBuffer in, Connect4 into)
+	{
+		set(in.getLong(), in.getLong(), in.getInt(), into);
+	}
+
+	/**
+	 * Sends a position over a transport, as five ints.
+	 *
+	 * @param game the position
+	 * @param link where to send it
+	 * @throws IOException thrown if the write fails
+	 */
+	public static void write(Connect4 game, Connect4Transport link) throws IOException
+	{
+		long xCells = game.getCells("X"), oCells = game.getCells("O");
+
+		link.writeInt((int) (xCells >>> 32));
+		link.writeInt((int) xCells);
+		link.writeInt((int) (oCells >>> 32));
+		link.writeInt((int) oCells);
+		link.writeInt(meta(game));
+	}
+
+	/**
+	 * Reads a position from a stream onto a board, replacing
+	 * whatever the board held.
+	 *
+	 * @param in the stream
+	 * @param into the board to set
+	 * @throws IOException thrown if the read fails, or the position
+	 *         is one no game could reach
+	 */
+	public static void read(DataInput in, Connect4 into) throws IOException
+	{
+		try
+		{
+			set(in.readLong(), in.readLong(), in.readInt(), into);
+		}
+		catch(IllegalArgumentException ex)
+		{
+			throw new IOException("Bad position: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Writes a position in its text form.
+	 *
+	 * @param game the position
+	 * @return the text form
+	 */
+	public static String toText(Connect4 game)
+	{
+		StringBuilder text = new StringBuilder(ROWS * (COLUMNS + 1) + 2);
+
+		for(int row = 0; row < ROWS; row++)
+		{
+			if(row > 0)
+				text.append('/');
+
+			for(int column = 0; column < COLUMNS; column++)
+			{
+				String marker = game.getCell(row, column);
+				text.append(marker.equals(" ") ? '.' : marker.charAt(0));
+			}
+		}
+
+		int last = (game.getTurnCounter() == 0) ? 0 : game.get_lastMoveMade() + 1;
+
+		return text.append(' ').append(last).toString();
+	}
+
+	/**
+	 * Reads a position in its text form onto a board, replacing
+	 * whatever the board held.
+	 *
+	 * @param text the text form
+	 * @param into the board to set
+	 * @throws IllegalArgumentException thrown if the text is not a
+	 *         position, or is one no game could reach
+	 */
+	public static void fromText(String text, Connect4 into)
+	{
+		String[] parts = text.trim().split("\\s+");
+		String[] rows = parts[0].split("/");
+
+		if(parts.length != 2 || rows.length != ROWS)
+			throw new IllegalArgumentException("A position is " + ROWS + " rows and the column played last");
+
+		long xCells = 0, oCells = 0;
+
+		for(int row = 0; row < ROWS; row++)
+		{
+			if(rows[row].length() != COLUMNS)
+				throw new IllegalArgumentException("Row " + (row + 1) + " is not " + COLUMNS + " cells");
+
+			for(int column = 0; column < COLUMNS; column++)
+			{
+				long cell = 1L << (row * COLUMNS + column);
+
+				switch(rows[row].charAt(column))
+				{
+					case 'X':
+						xCells |= cell;
+						break;
+					case 'O':
+						oCells |= cell;
+						break;
+					case '.':
+						break;
+					default:
+						throw new IllegalArgumentException("Cells are X, O or .");
+				}
+			}
+		}
+
+		int last;
+
+		try
+		{
+			last = Integer.parseInt(parts[1]);
+		}
+		catch(NumberFormatException ex)
+		{
+			throw new IllegalArgumentException("The column played last is a number");
+		}
+
+		into.setPosition(xCells, oCells, Math.max(0, last - 1));
+	}
+
+	/**
+	 * Packs a position into a key, equal for two boards exactly when
+	 * they hold the same position.
+	 *
+	 * @param game the position
+	 * @return the key
+	 */
+	public static long key(Connect4 game)
+	{
+		long xCells = game.getCells("X");
+		long occupied = xCells | game.getCells("O");
+		long key = 0;
+
+		for(int column = 0; column < COLUMNS; column++)
+		{
+			// From the bottom up, each X shifts in a 1 and each O a 0
+			long code = 1;
+
+			for(int bit = (ROWS - 1) * COLUMNS + column; bit >= 0 && (occupied >>> bit & 1) != 0; bit -= COLUMNS)
+				code = code << 1 | (xCells >>> bit & 1);
+
+			key |= code << (column * KEY_COLUMN_BITS);
+		}
+
+		return key | (long) lastColumn(game) << KEY_LAST_SHIFT;
+	}
+
+	/**
+	 * Turns a key into the key of the mirror image of its position,
+	 * reflected about the middle column.
+	 *
+	 * @param key the key of a position
+	 * @return the key of its mirror image
+	 */
+	public static long mirror(long key)
+	{
+		long columnMask = (1L << KEY_COLUMN_BITS) - 1;
+		long mirrored = 0;
+
+		for(int column = 0; column < COLUMNS; column++)
+			mirrored |= (key >>> (column * KEY_COLUMN_BITS) & columnMask) << ((COLUMNS - 1 - column) * KEY_COLUMN_BITS);
+
+		int last = (int) (key >>> KEY_LAST_SHIFT);
+
+		return mirrored | (long) (COLUMNS - 1 - last) << KEY_LAST_SHIFT;
+	}
+
+	/**
+	 * Packs the number of moves made and the column played last.
+	 *
+	 * @param game the position
+	 * @return the int following the cells
+	 */
+	private static int meta(Connect4 game)
+	{
+		return game.getTurnCounter() << 16 | lastColumn(game);
+	}
+
+	/**
+	 * Returns the column played last, 0 before any move.
+	 *
+	 * @param game the position
+	 * @return the column played last
+	 */
+	private static int lastColumn(Connect4 game)
+	{
+		return (game.getTurnCounter() == 0) ? 0 : game.get_lastMoveMade();
+	}
+
+	/**
+	 * Sets a board to a decoded position, checking the moves made
+	 * against the cells.
+	 *
+	 * @param xCells the cells holding X
+	 * @param oCells the cells holding O
+	 * @param meta the moves made and the column played last
+	 * @param into the board to set
+	 */
+	private static void set(long xCells, long oCells, int meta, Connect4 into)
+	{
+		if(meta >>> 16 != Long.bitCount(xCells) + Long.bitCount(oCells))
+			throw new IllegalArgumentException("The moves made do not match the cells");
+
+		into.setPosition(xCells, oCells, meta & 0xFFFF);
+	}
+}
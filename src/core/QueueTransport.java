@@ -0,0 +1,176 @@
+/**
+ * A transport which passes ints straight through memory, with no
+ * bytes, streams or sockets in between. Each direction is a bounded
+ * ring of ints; writes are published to the reader when flushed,
+ * so a whole move's worth of ints costs one wake-up. It is meant
+ * for playing complete sessions in one process, for simulation,
+ * testing and benchmarks.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+public class QueueTransport implements Connect4Transport
+{
+	private final IntQueue incoming;
+	private final IntQueue outgoing;
+
+	private QueueTransport(IntQueue incoming, IntQueue outgoing)
+	{
+		this.incoming = incoming;
+		this.outgoing = outgoing;
+	}
+
+	/**
+	 * Creates both ends of an in-memory link.
+	 *
+	 * @param capacity the most ints each direction holds before writes wait
+	 * @return the two ends of the link
+	 */
+	public static QueueTransport[] pair(int capacity)
+	{
+		IntQueue there = new IntQueue(capacity);
+		IntQueue back = new IntQueue(capacity);
+
+		return new QueueTransport[] { new QueueTransport(back, there), new QueueTransport(there, back) };
+	}
+
+	@Override
+	public int readInt() throws IOException
+	{
+		return incoming.take();
+	}
+
+	@Override
+	public void writeInt(int value) throws IOException
+	{
+		outgoing.put(value);
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		outgoing.publish();
+	}
+
+	@Override
+	public void close()
+	{
+		incoming.close();
+		outgoing.close();
+	}
+
+	/**
+	 * One direction of the link.
+	 */
+	private static class IntQueue
+	{
+		private final int[] ring;
+		private int head, written, published;
+		private boolean closed;
+
+		IntQueue(int capacity)
+		{
+			ring = new int[capacity];
+		}
+
+		/**
+		 * Adds an int, unseen by the reader until published. A full
+		 * ring is published so the reader can make room.
+		 *
+		 * @param value the int to add
+		 * @throws IOException thrown if closed or interrupted
+		 */
+		synchronized void put(int value) throws IOException
+		{
+			while(!closed && written == ring.length)
+			{
+				publish();
+				await();
+			}
+
+			if(closed)
+				throw new EOFException("Transport closed");
+
+			ring[(head + written) % ring.length] = value;
+			written++;
+		}
+
+		/**
+		 * Makes every int added so far visible to the reader.
+		 *
+		 * @throws IOException thrown if closed
+		 */
+		synchronized void publish() throws IOException
+		{
+			if(closed)
+				throw new EOFException("Transport closed");
+
+			if(published != written)
+			{
+				published = written;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Removes the oldest published int, waiting for one if needed.
+		 *
+		 * @return the int removed
+		 * @throws IOException thrown once closed and empty, or if interrupted
+		 */
+		synchronized int take() throws IOException
+		{
+			while(published == 0)
+			{
+				if(closed)
+					throw new EOFException("Transport closed");
+
+				await();
+			}
+
+			int value = ring[head];
+			head = (head + 1) % ring.length;
+			published--;
+			written--;
+
+			// A writer only waits on a full ring
+			if(written == ring.length - 1)
+				notifyAll();
+
+			return value;
+		}
+
+		/**
+		 * Closes this direction, waking anyone waiting on it.
+		 */
+		synchronized void close()
+		{
+			closed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for the other end to act.
+		 *
+		 * @throws InterruptedIOException thrown if interrupted while waiting
+		 */
+		private void await() throws InterruptedIOException
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/**
+ * Keeps track of every seat a player may return to after their
+ * connection drops, keyed by the resume token the player was given.
+ * A token is a keyed hash of its session id and seat, so the same
+ * key reissues the same tokens for games rebuilt from the move log
+ * after a restart, while nobody can forge a token for a game they
+ * are not playing in.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+class SessionRegistry implements Connect4Constants
+{
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int KEY_SIZE = 32;
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs;
+	private final AtomicLong nextSessionId = new AtomicLong(1);
+
+	// Every seat which can be returned to, by its token
+	private final Map<Long, Seat> seats = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a registry whose tokens last only as long as the process.
+	 */
+	SessionRegistry()
+	{
+		this(newKey());
+	}
+
+	/**
+	 * Creates a registry whose key is kept in a file, so tokens stay
+	 * valid across restarts. The file is created if it does not exist.
+	 *
+	 * @param keyFile where the key is kept
+	 * @throws IOException thrown if the key cannot be read or written
+	 */
+	SessionRegistry(Path keyFile) throws IOException
+	{
+		this(loadKey(keyFile));
+	}
+
+	private SessionRegistry(byte[] secret)
+	{
+		key = new SecretKeySpec(secret, ALGORITHM);
+		macs = ThreadLocal.withInitial(() ->
+		{
+			try
+			{
+				Mac mac = Mac.getInstance(ALGORITHM);
+				mac.init(key);
+				return mac;
+			}
+			catch(GeneralSecurityException ex)
+			{
+				throw new IllegalStateException(ALGORITHM + " is unavailable", ex);
+			}
+		});
+	}
+
+	/**
+	 * Hands out a session id, for sessions which are not logged.
+	 *
+	 * @return a new session id
+	 */
+	long nextSessionId()
+	{
+		return nextSessionId.getAndIncrement();
+	}
+
+	/**
+	 * Registers a seat of a running session.
+	 *
+	 * @param session the session
+	 * @param sessionId the session's id
+	 * @param seat the seat, 0 for player 1 or 1 for player 2
+	 * @return the token the seat's player returns with
+	 */
+	long register(BeginASession session, long sessionId, int seat)
+	{
+		long token = tokenFor(sessionId, seat);
+		seats.put(token, new Seat(sessionId, seat, new Game(session, null)));
+
+		return token;
+	}
+
+	/**
+	 * Holds a game rebuilt from the move log, until one of its
+	 * players returns to it or it is released.
+	 *
+	 * @param recovered the rebuilt game
+	 */
+	void hold(MoveLog.LiveGame recovered)
+	{
+		Game game = new Game(null, recovered);
+		seats.put(tokenFor(recovered.sessionId, 0), new Seat(recovered.sessionId, 0, game));
+
+		if(recovered.gameType == PVP_GAME)
+			seats.put(tokenFor(recovered.sessionId, 1), new Seat(recovered.sessionId, 1, game));
+	}
+
+	/**
+	 * Finds the seat a token belongs to.
+	 *
+	 * @param token the player's resume token
+	 * @return the seat, or null if the token is unknown or its game is over
+	 */
+	Seat find(long token)
+	{
+		return seats.get(token);
+	}
+
+	/**
+	 * Forgets both seats of a session.
+	 *
+	 * @param sessionId the session's id
+	 */
+	void remove(long sessionId)
+	{
+		seats.remove(tokenFor(sessionId, 0));
+		seats.remove(tokenFor(sessionId, 1));
+	}
+
+	/**
+	 * Forgets every rebuilt game nobody has returned to.
+	 *
+	 * @param moveLog the log to end the games in
+	 * @return the number of games released
+	 */
+	int releaseRecovered(MoveLog moveLog)
+	{
+		int released = 0;
+
+		for(Seat seat : seats.values())
+		{
+			if(seat.game.release())
+			{
+				remove(seat.sessionId);
+				moveLog.end(seat.sessionId, CONTINUE);
+				released++;
+			}
+		}
+
+		return released;
+	}
+
+	/**
+	 * Computes the token of a seat.
+	 *
+	 * @param sessionId the session's id
+	 * @param seat the seat, 0 or 1
+	 * @return the token
+	 */
+	long tokenFor(long sessionId, int seat)
+	{
+		Mac mac = macs.get();
+		byte[] hash = mac.doFinal(ByteBuffer.allocate(9).putLong(sessionId).put((byte) seat).array());
+
+		return ByteBuffer.wrap(hash).getLong();
+	}
+
+	/**
+	 * Reads the key from its file, or creates the file with a new key.
+	 *
+	 * @param keyFile where the key is kept
+	 * @return the key
+	 * @throws IOException thrown if the key cannot be read or written
+	 */
+	private static byte[] loadKey(Path keyFile) throws IOException
+	{
+		if(Files.exists(keyFile))
+		{
+			byte[] secret = Files.readAllBytes(keyFile);
+
+			if(secret.length == KEY_SIZE)
+				return secret;
+		}
+
+		byte[] secret = newKey();
+		Files.write(keyFile, secret);
+
+		return secret;
+	}
+
+	/**
+	 * Generates a random key.
+	 *
+	 * @return the key
+	 */
+	private static byte[] newKey()
+	{
+		byte[] secret = new byte[KEY_SIZE];
+		new SecureRandom().nextBytes(secret);
+
+		return secret;
+	}
+
+	/**
+	 * One player's place in a game.
+	 */
+	static class Seat
+	{
+		final long sessionId;
+		final int seat;
+		final Game game;
+
+		Seat(long sessionId, int seat, Game game)
+		{
+			this.sessionId = sessionId;
+			this.seat = seat;
+			this.game = game;
+		}
+	}
+
+	/**
+	 * The game behind a seat: a running session, or a rebuilt game
+	 * waiting for its first player to return.
+	 */
+	static class Game
+	{
+		private BeginASession session;
+		private MoveLog.LiveGame recovered;
+
+		Game(BeginASession session, MoveLog.LiveGame recovered)
+		{
+			this.session = session;
+			this.recovered = recovered;
+		}
+
+		/**
+		 * Returns the game's session, starting one for a rebuilt game
+		 * the first time a player returns to it.
+		 *
+		 * @param starter builds and starts a session for a rebuilt game
+		 * @return the session, or null if the game was released
+		 */
+		synchronized BeginASession claim(Function<MoveLog.LiveGame, BeginASession> starter)
+		{
+			if(session == null && recovered != null)
+			{
+				session = starter.apply(recovered);
+				recovered = null;
+			}
+
+			return session;
+		}
+
+		/**
+		 * Gives up a rebuilt game nobody has returned to.
+		 *
+		 * @return true if it was released now
+		 */
+		synchronized boolean release()
+		{
+			if(recovered == null)
+				return false;
+
+			recovered = null;
+			return true;
+		}
+	}
+}
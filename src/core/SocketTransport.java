@@ -0,0 +1,41 @@
+/**
+ * A blocking transport over a connected socket. Reads are buffered,
+ * and each flush sends everything written since the last in a single
+ * write, waiting until the socket takes it all. The server uses a
+ * ChannelTransport instead, whose flushes never wait.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+public class SocketTransport extends StreamTransport
+{
+	private final Socket socket;
+
+	/**
+	 * Creates a transport over a socket, which it closes when closed.
+	 *
+	 * @param socket the connected socket
+	 * @throws IOException thrown if the socket's streams cannot be opened
+	 */
+	public SocketTransport(Socket socket) throws IOException
+	{
+		super(new BufferedInputStream(socket.getInputStream()), socket.getOutputStream(), socket);
+		this.socket = socket;
+	}
+
+	/**
+	 * Returns the socket underneath this transport.
+	 *
+	 * @return the connected socket
+	 */
+	public Socket getSocket()
+	{
+		return socket;
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * The moves of one session, encoded for its spectators. Each move
+ * is encoded once, into a read-only buffer kept in a short ring,
+ * and every spectator is written a duplicate of that same buffer,
+ * so encoding costs the same however many are watching. A spectator
+ * who falls more than the ring behind skips straight to a snapshot
+ * of the whole board, which is also encoded once a move.
+ *
+ * Spectators are sent the snapshot first: RESUMED, 0 in place of a
+ * player number, the position as PositionCodec encodes it and the
+ * status. Each move after it is sent as the players see it:
+ * CONTINUE, the column, the row and the status. A game lost on time
+ * ends with TIMEOUT and the number of the player who ran out.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.nio.ByteBuffer;
+
+class SpectatorFeed implements Connect4Constants
+{
+	// Moves a spectator may fall behind before skipping to a snapshot
+	static final int RING_SIZE = 16;
+	private static final int MOVE_FRAME_SIZE = 16;
+	private static final int TIMEOUT_FRAME_SIZE = 8;
+	private static final int SNAPSHOT_SIZE = 2 * Integer.BYTES + PositionCodec.SIZE + Integer.BYTES;
+
+	private final SpectatorHub hub;
+	private final int sessionNo;
+
+	// Encoded moves, the newest at published - 1
+	private final ByteBuffer[] ring = new ByteBuffer[RING_SIZE];
+	private long published;
+	private ByteBuffer snapshot;
+	private boolean ended;
+	private long endedMillis;
+
+	// Kept by the hub, so a feed nobody watches never wakes it
+	volatile int watcherCount;
+
+	// The board, kept alongside the session's for snapshots
+	private final Connect4 board = new Connect4();
+	private int status = CONTINUE;
+
+	/**
+	 * Creates a feed for a session which has not yet moved.
+	 *
+	 * @param hub the hub which writes to the feed's spectators
+	 * @param sessionNo the number spectators ask for the session by
+	 */
+	SpectatorFeed(SpectatorHub hub, int sessionNo)
+	{
+		this.hub = hub;
+		this.sessionNo = sessionNo;
+
+		snapshot = encodeSnapshot();
+	}
+
+	/**
+	 * Returns the number spectators ask for the session by.
+	 *
+	 * @return the session number
+	 */
+	int getSessionNo()
+	{
+		return sessionNo;
+	}
+
+	/**
+	 * Publishes a move. Called by the session, which never waits on
+	 * a spectator: the hub does the writing.
+	 *
+	 * @param column the column played
+	 * @param row the row the move landed in
+	 * @param result the game's status after the move
+	 */
+	void moved(int column, int row, int result)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(MOVE_FRAME_SIZE);
+		frame.putInt(CONTINUE).putInt(column).putInt(row).putInt(result).flip();
+
+		synchronized(this)
+		{
+			board.placeMarker(column);
+			record(frame, result);
+		}
+
+		if(watcherCount > 0)
+			hub.publish(this);
+	}
+
+	/**
+	 * Publishes the end of a game lost on time, as the players are
+	 * told of it.
+	 *
+	 * @param player the player who ran out, PLAYER1 or PLAYER2
+	 */
+	void timedOut(int player)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(TIMEOUT_FRAME_SIZE);
+		frame.putInt(TIMEOUT).putInt(player).flip();
+
+		synchronized(this)
+		{
+			record(frame, TIMEOUT);
+		}
+
+		if(watcherCount > 0)
+			hub.publish(this);
+	}
+
+	/**
+	 * Adds a frame to the ring and encodes the snapshot again. The
+	 * caller holds the feed's lock.
+	 *
+	 * @param frame the encoded frame
+	 * @param result the game's status after it
+	 */
+	private void record(ByteBuffer frame, int result)
+	{
+		status = result;
+
+		ring[(int) (published % RING_SIZE)] = frame.asReadOnlyBuffer();
+		published++;
+		snapshot = encodeSnapshot();
+	}
+
+	/**
+	 * Marks the session over. Spectators are closed once they have
+	 * been sent everything published.
+	 */
+	void end()
+	{
+		synchronized(this)
+		{
+			ended = true;
+			endedMillis = System.currentTimeMillis();
+		}
+
+		hub.ended(this);
+	}
+
+	/**
+	 * Returns when the session ended.
+	 *
+	 * @return the time in milliseconds, or 0 if it is still running
+	 */
+	synchronized long getEndedMillis()
+	{
+		return endedMillis;
+	}
+
+	/**
+	 * Returns what a spectator should be sent next: a snapshot if
+	 * they have just joined or fallen too far behind, otherwise the
+	 * next move. Each is a duplicate sharing the encoded bytes.
+	 *
+	 * @param spectator the spectator to be written to
+	 * @return the next buffer to write, or null if they are up to date
+	 */
+	synchronized ByteBuffer next(SpectatorHub.Spectator spectator)
+	{
+		if(spectator.nextMove < 0 || published - spectator.nextMove > RING_SIZE)
+		{
+			spectator.nextMove = published;
+			return snapshot.duplicate();
+		}
+
+		if(spectator.nextMove == published)
+			return null;
+
+		return ring[(int) (spectator.nextMove++ % RING_SIZE)].duplicate();
+	}
+
+	/**
+	 * Tells whether a spectator has been sent the end of the game.
+	 *
+	 * @param spectator the spectator
+	 * @return true if the session is over and they are up to date
+	 */
+	synchronized boolean finishedFor(SpectatorHub.Spectator spectator)
+	{
+		return ended && spectator.nextMove == published;
+	}
+
+	/**
+	 * Encodes the board as it stands.
+	 *
+	 * @return the snapshot, read-only
+	 */
+	private ByteBuffer encodeSnapshot()
+	{
+		ByteBuffer frame = ByteBuffer.allocate(SNAPSHOT_SIZE);
+		frame.putInt(RESUMED).putInt(0);
+		PositionCodec.encode(board, frame);
+		frame.putInt(status).flip();
+
+		return frame.asReadOnlyBuffer();
+	}
+}
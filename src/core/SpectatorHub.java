@@ -0,0 +1,343 @@
+/**
+ * Writes every session's moves to its spectators from a single
+ * thread, over non-blocking channels, so no spectator can hold up
+ * a session or another spectator. Sessions only mark their feed as
+ * having news; the hub then writes each of its spectators as much
+ * as their socket will take, and waits on the selector for those
+ * whose socket is full. A spectator who stays behind simply skips
+ * ahead to the feed's latest snapshot. Once a second the hub looks
+ * over those whose socket is full, and drops any which has stayed
+ * full for longer than STALL_MILLIS, or for longer than
+ * ENDED_GRACE_MILLIS since their session ended, so a spectator who
+ * stops reading is let go rather than held forever.
+ *
+ * Spectators connect with SPECTATE followed by the number of the
+ * session to watch, or 0 for the most recently started session
+ * still running. An unknown session is answered INVALID.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class SpectatorHub implements Runnable, Connect4Constants
+{
+	// How long a spectator's socket may stay full before they are dropped
+	static final long STALL_MILLIS = 10_000;
+	static final long ENDED_GRACE_MILLIS = 2_000;
+	private static final long SWEEP_MILLIS = 1_000;
+
+	private final Selector selector;
+	private final Thread thread;
+
+	// Every running session which can be watched, by number
+	private final Map<Integer, SpectatorFeed> feeds = new ConcurrentHashMap<>();
+	private volatile SpectatorFeed featured;
+
+	// Handed over to the hub's thread
+	private final Queue<SpectatorFeed> news = new ConcurrentLinkedQueue<>();
+	private final Queue<Spectator> joining = new ConcurrentLinkedQueue<>();
+
+	// Spectators of each feed, touched only by the hub's thread
+	private final Map<SpectatorFeed, Set<Spectator>> watchers = new HashMap<>();
+	private final Set<Spectator> stalled = new HashSet<>();
+
+	/**
+	 * Opens the hub and starts its thread.
+	 *
+	 * @throws IOException thrown if the selector cannot be opened
+	 */
+	SpectatorHub() throws IOException
+	{
+		selector = Selector.open();
+		thread = new Thread(this, "connect4-spectators");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Creates the feed of a new session, which becomes the featured
+	 * session until another starts.
+	 *
+	 * @param sessionNo the session's number
+	 * @return the session's feed
+	 */
+	SpectatorFeed open(int sessionNo)
+	{
+		SpectatorFeed feed = new SpectatorFeed(this, sessionNo);
+		feeds.put(sessionNo, feed);
+		featured = feed;
+
+		return feed;
+	}
+
+	/**
+	 * Adds a spectator to a session. The channel is switched to
+	 * non-blocking mode and belongs to the hub from then on.
+	 *
+	 * @param channel the spectator's connection
+	 * @param sessionNo the session to watch, or 0 for the featured one
+	 * @return false if there is no such session
+	 * @throws IOException thrown if the channel cannot be made non-blocking
+	 */
+	boolean watch(SocketChannel channel, int sessionNo) throws IOException
+	{
+		SpectatorFeed feed = (sessionNo == 0) ? featured : feeds.get(sessionNo);
+
+		if(feed == null)
+			return false;
+
+		channel.configureBlocking(false);
+		joining.add(new Spectator(channel, feed));
+		selector.wakeup();
+
+		return true;
+	}
+
+	/**
+	 * Returns the number of sessions which can be watched.
+	 *
+	 * @return the number of feeds
+	 */
+	int getFeedCount()
+	{
+		return feeds.size();
+	}
+
+	/**
+	 * Stops the hub, closing every spectator.
+	 */
+	void close()
+	{
+		try
+		{
+			selector.close();
+		}
+		catch(IOException ex)
+		{
+			// Closing anyway
+		}
+	}
+
+	/**
+	 * Writes to spectators until the hub is closed.
+	 */
+	@Override
+	public void run()
+	{
+		long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+
+		try
+		{
+			while(selector.isOpen())
+			{
+				selector.select(SWEEP_MILLIS);
+
+				Spectator joined;
+
+				while((joined = joining.poll()) != null)
+				{
+					joined.key = joined.channel.register(selector, 0, joined);
+					watchers.computeIfAbsent(joined.feed, feed -> new LinkedHashSet<>()).add(joined);
+					joined.feed.watcherCount++;
+					write(joined);
+				}
+
+				SpectatorFeed feed;
+
+				while((feed = news.poll()) != null)
+				{
+					Set<Spectator> set = watchers.get(feed);
+
+					if(set != null)
+					{
+						for(Spectator spectator : new ArrayList<>(set))
+							write(spectator);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if(key.isValid() && key.isWritable())
+						write((Spectator) key.attachment());
+				}
+
+				long now = System.currentTimeMillis();
+
+				if(now >= nextSweep)
+				{
+					sweep(now);
+					nextSweep = now + SWEEP_MILLIS;
+				}
+			}
+		}
+		catch(ClosedSelectorException ex)
+		{
+			// The hub was closed
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+		}
+		finally
+		{
+			for(Set<Spectator> set : watchers.values())
+			{
+				for(Spectator spectator : set)
+					StreamTransport.closeQuietly(spectator.channel);
+			}
+		}
+	}
+
+	/**
+	 * Marks a feed as having news for its spectators.
+	 *
+	 * @param feed the feed which has moved
+	 */
+	void publish(SpectatorFeed feed)
+	{
+		news.add(feed);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops offering a feed to new spectators once its session is
+	 * over, and has its spectators finished off.
+	 *
+	 * @param feed the feed which has ended
+	 */
+	void ended(SpectatorFeed feed)
+	{
+		feeds.remove(feed.getSessionNo(), feed);
+
+		if(featured == feed)
+			featured = null;
+
+		if(feed.watcherCount > 0)
+			publish(feed);
+	}
+
+	/**
+	 * Writes a spectator as much as their socket will take. If it
+	 * fills, the hub waits until it can be written again; once the
+	 * game is over and they have it all, they are closed.
+	 *
+	 * @param spectator the spectator to write to
+	 */
+	private void write(Spectator spectator)
+	{
+		try
+		{
+			while(true)
+			{
+				if(spectator.pending == null || !spectator.pending.hasRemaining())
+					spectator.pending = spectator.feed.next(spectator);
+
+				if(spectator.pending == null)
+				{
+					if(spectator.feed.finishedFor(spectator))
+						drop(spectator);
+					else
+						spectator.key.interestOps(0);
+
+					return;
+				}
+
+				spectator.channel.write(spectator.pending);
+
+				if(spectator.pending.hasRemaining())
+				{
+					if(stalled.add(spectator))
+						spectator.stalledSince = System.currentTimeMillis();
+
+					spectator.key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+
+				stalled.remove(spectator);
+			}
+		}
+		catch(IOException ex)
+		{
+			// The spectator has gone away
+			drop(spectator);
+		}
+	}
+
+	/**
+	 * Closes a spectator and forgets them.
+	 *
+	 * @param spectator the spectator to drop
+	 */
+	private void drop(Spectator spectator)
+	{
+		spectator.key.cancel();
+		StreamTransport.closeQuietly(spectator.channel);
+		stalled.remove(spectator);
+
+		Set<Spectator> set = watchers.get(spectator.feed);
+		set.remove(spectator);
+		spectator.feed.watcherCount--;
+
+		if(set.isEmpty())
+			watchers.remove(spectator.feed);
+	}
+
+	/**
+	 * Drops every spectator whose socket has been full too long.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	private void sweep(long now)
+	{
+		for(Spectator spectator : new ArrayList<>(stalled))
+		{
+			long endedMillis = spectator.feed.getEndedMillis();
+
+			if(now - spectator.stalledSince > STALL_MILLIS || (endedMillis > 0
+					&& now - Math.max(endedMillis, spectator.stalledSince) > ENDED_GRACE_MILLIS))
+				drop(spectator);
+		}
+	}
+
+	/**
+	 * One spectator, and how far through their feed they are.
+	 */
+	static class Spectator
+	{
+		final SocketChannel channel;
+		final SpectatorFeed feed;
+		SelectionKey key;
+		ByteBuffer pending;
+		long nextMove = -1;
+		long stalledSince;
+
+		Spectator(SocketChannel channel, SpectatorFeed feed)
+		{
+			this.channel = channel;
+			this.feed = feed;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * A transport over a pair of byte streams, such as the ends of
+ * two MemoryPipes. Ints are written to a buffer and only reach
+ * the stream when flushed.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class StreamTransport implements Connect4Transport
+{
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final Closeable[] resources;
+
+	/**
+	 * Creates a transport over two streams.
+	 *
+	 * @param in the stream to read from
+	 * @param out the stream to write to
+	 * @param resources anything else to close along with the streams
+	 */
+	public StreamTransport(InputStream in, OutputStream out, Closeable... resources)
+	{
+		this.in = new DataInputStream(in);
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 256));
+		this.resources = resources;
+	}
+
+	/**
+	 * Creates both ends of an in-memory link over two MemoryPipes.
+	 *
+	 * @param capacity the size of each pipe, in bytes
+	 * @return the two ends of the link
+	 */
+	public static StreamTransport[] pipePair(int capacity)
+	{
+		MemoryPipe there = new MemoryPipe(capacity);
+		MemoryPipe back = new MemoryPipe(capacity);
+
+		return new StreamTransport[] {
+				new StreamTransport(back.getInputStream(), there.getOutputStream()),
+				new StreamTransport(there.getInputStream(), back.getOutputStream()) };
+	}
+
+	@Override
+	public int readInt() throws IOException
+	{
+		return in.readInt();
+	}
+
+	@Override
+	public void writeInt(int value) throws IOException
+	{
+		out.writeInt(value);
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	@Override
+	public void close()
+	{
+		closeQuietly(in);
+		closeQuietly(out);
+
+		for(Closeable resource : resources)
+			closeQuietly(resource);
+	}
+
+	/**
+	 * Closes a stream, ignoring any failure to do so.
+	 *
+	 * @param resource the stream to close
+	 */
+	static void closeQuietly(Closeable resource)
+	{
+		try
+		{
+			resource.close();
+		}
+		catch(IOException ex)
+		{
+			// Already closed
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/**
+ * A hashed timing wheel, on which every session's move clock is
+ * kept. Time is cut into ticks, and each timeout hangs in the slot
+ * its deadline falls in, in a doubly linked list, along with the
+ * number of turns of the wheel still to pass before it is due.
+ * Scheduling and cancelling are both a link and an unlink, however
+ * many timeouts are pending, and one thread turns the wheel for
+ * every session rather than each game keeping a task or thread.
+ *
+ * Timeouts run on the wheel's thread, so they must be quick and
+ * must never block.
+ *
+ * @author Jonathan (Jack) MacArthur
+ * @version 1.0
+ */
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class TimingWheel implements Runnable
+{
+	// Defaults, about 5 seconds a turn of the wheel
+	public static final long TICK_MILLIS = 10;
+	public static final int WHEEL_SIZE = 512;
+
+	private final long tickNanos;
+	private final Timeout[] slots;
+	private final int mask;
+	private final long startNanos = System.nanoTime();
+	private final Thread thread;
+
+	// Guarded by this
+	private long nextTick;
+	private int pending;
+	private boolean closed;
+
+	/**
+	 * Creates a wheel with the default tick and size and starts it.
+	 *
+	 * @param name the name of the wheel's thread
+	 */
+	public TimingWheel(String name)
+	{
+		this(name, TICK_MILLIS, WHEEL_SIZE);
+	}
+
+	/**
+	 * Creates a wheel and starts its thread.
+	 *
+	 * @param name the name of the wheel's thread
+	 * @param tickMillis how often the wheel moves on a slot
+	 * @param wheelSize the number of slots, rounded up to a power of two
+	 */
+	public TimingWheel(String name, long tickMillis, int wheelSize)
+	{
+		if(tickMillis < 1 || wheelSize < 1)
+			throw new IllegalArgumentException("The tick and size must be positive");
+
+		int size = Integer.highestOneBit(wheelSize);
+
+		if(size < wheelSize)
+			size <<= 1;
+
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		slots = new Timeout[size];
+		mask = size - 1;
+
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a task to run once a delay has passed. It runs on the
+	 * wheel's thread, up to a tick late.
+	 *
+	 * @param task the task to run
+	 * @param delayMillis how long from now it is due
+	 * @return the timeout, by which the task may be cancelled
+	 */
+	public synchronized Timeout schedule(Runnable task, long delayMillis)
+	{
+		long dueNanos = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+
+		// The tick run at the end of slot n handles deadlines up to (n + 1) ticks in
+		long tick = Math.max(nextTick, (dueNanos + tickNanos - 1) / tickNanos - 1);
+
+		Timeout timeout = new Timeout(task, (int) (tick & mask), (tick - nextTick) / slots.length);
+		link(timeout);
+
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of timeouts waiting to run.
+	 *
+	 * @return the pending timeouts
+	 */
+	public synchronized int size()
+	{
+		return pending;
+	}
+
+	/**
+	 * Stops the wheel. Timeouts still pending never run.
+	 */
+	public void close()
+	{
+		synchronized(this)
+		{
+			closed = true;
+		}
+
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Turns the wheel a slot every tick until closed, running the
+	 * timeouts which fall due.
+	 */
+	@Override
+	public void run()
+	{
+		List<Timeout> due = new ArrayList<>();
+
+		while(true)
+		{
+			long slotEnd;
+
+			synchronized(this)
+			{
+				if(closed)
+					return;
+
+				slotEnd = (nextTick + 1) * tickNanos;
+			}
+
+			long wait;
+
+			while((wait = slotEnd - (System.nanoTime() - startNanos)) > 0)
+			{
+				LockSupport.parkNanos(this, wait);
+
+				synchronized(this)
+				{
+					if(closed)
+						return;
+				}
+			}
+
+			synchronized(this)
+			{
+				Timeout timeout = slots[(int) (nextTick & mask)];
+
+				while(timeout != null)
+				{
+					Timeout next = timeout.next;
+
+					if(timeout.rounds > 0)
+					{
+						timeout.rounds--;
+					}
+					else
+					{
+						unlink(timeout);
+						due.add(timeout);
+					}
+
+					timeout = next;
+				}
+
+				nextTick++;
+			}
+
+			for(Timeout timeout : due)
+			{
+				try
+				{
+					timeout.task.run();
+				}
+				catch(RuntimeException ex)
+				{
+					ex.printStackTrace();
+				}
+			}
+
+			due.clear();
+		}
+	}
+
+	/**
+	 * Adds a timeout to the head of its slot.
+	 *
+	 * @param timeout the timeout to add
+	 */
+	private void link(Timeout timeout)
+	{
+		Timeout head = slots[timeout.slot];
+		timeout.next = head;
+
+		if(head != null)
+			head.previous = timeout;
+
+		slots[timeout.slot] = timeout;
+		timeout.linked = true;
+		pending++;
+	}
+
+	/**
+	 * Takes a timeout out of its slot.
+	 *
+	 * @param timeout the timeout to remove
+	 */
+	private void unlink(Timeout timeout)
+	{
+		if(timeout.previous == null)
+			slots[timeout.slot] = timeout.next;
+		else
+			timeout.previous.next = timeout.next;
+
+		if(timeout.next != null)
+			timeout.next.previous = timeout.previous;
+
+		timeout.previous = timeout.next = null;
+		timeout.linked = false;
+		pending--;
+	}
+
+	/**
+	 * A task waiting on the wheel.
+	 */
+	public final class Timeout
+	{
+		private final Runnable task;
+		private final int slot;
+		private long rounds;
+		private Timeout previous, next;
+		private boolean linked;
+
+		private Timeout(Runnable task, int slot, long rounds)
+		{
+			this.task = task;
+			this.slot = slot;
+			this.rounds = rounds;
+		}
+
+		/**
+		 * Cancels the task, if it has not already begun to run.
+		 *
+		 * @return true if it was cancelled, false if it has run or is running
+		 */
+		public boolean cancel()
+		{
+			synchronized(TimingWheel.this)
+			{
+				if(!linked)
+					return false;
+
+				unlink(this);
+				return true;
+			}
+		}
+	}
+}
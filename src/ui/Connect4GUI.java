@@ -2,16 +2,27 @@
  * Serves to Display a game of Connect4,
  * providing all necessary elements of a GUI
  * for a game against a player or computer.
+ * The scene is built once, and later updates
+ * only change the nodes which need it. A player's
+ * own moves are drawn as soon as they are made, and
+ * then confirmed or taken back once the server replies.
+ * Moves which are out of turn or into a full column are
+ * refused locally, without a trip to the server.
+ * After a dropped connection the whole board can be
+ * restored from the server's snapshot.
  * 
  * @author Jonathan (Jack) MacArthur
- * @version 1.1
+ * @version 1.6
  */
 package ui;
 
+import core.Connect4;
 import core.Connect4Constants;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
@@ -26,12 +37,19 @@ import javafx.scene.layout.TilePane;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import javafx.scene.shape.Rectangle;
-import javafx.stage.Stage;
 
 public class Connect4GUI implements Connect4Constants
 {
 	// Constructor Needs
-	private DataOutputStream toServer;
+	private volatile DataOutputStream toServer;
+	
+	// Sends moves in order without holding up the display
+	private final ExecutorService sender = Executors.newSingleThreadExecutor(r ->
+	{
+		Thread thread = new Thread(r, "connect4-sender");
+		thread.setDaemon(true);
+		return thread;
+	});
 	private String[][] visualBoard;
 	
 	// Display Needs
@@ -42,10 +60,20 @@ public class Connect4GUI implements Connect4Constants
 	
 	private GridPane grid;
 	private Label statusMsg;
+	private Circle[][] cells;
+	private String[][] renderedBoard;
 	private Button c1, c2, c3, c4, c5, c6, c7;
+	private Button[] columnButtons;
+	private boolean[] columnDisabled;
 	
 	// Game Progression Needs
-	private boolean myTurn, continuePlaying;
+	private volatile boolean myTurn;
+	private boolean continuePlaying;
+	
+	// Local Prediction Needs
+	private Connect4 shadow;
+	private String myMarker;
+	private int pendingRow = -1, pendingColumn = -1;
 	
 	/**
 	 * Constructor for a new Connect4GUI.
@@ -63,6 +91,10 @@ public class Connect4GUI implements Connect4Constants
 		else
 			myTurn = false;
 		
+		// Player One always plays X
+		myMarker = (player == PLAYER1) ? "X" : "O";
+		shadow = new Connect4();
+		
 		// Establish Communication
 		this.toServer = toServer;
 		
@@ -115,6 +147,10 @@ public class Connect4GUI implements Connect4Constants
 		c5.setOnAction(buttonHandler);
 		c6.setOnAction(buttonHandler);
 		c7.setOnAction(buttonHandler);
+		
+		// Index Buttons by Column, to disable them as columns fill
+		columnButtons = new Button[] {c1, c2, c3, c4, c5, c6, c7};
+		columnDisabled = new boolean[COLUMNS];
 
 		// Putting Everything Together
 		borderPane.setTop(statusMsg);
@@ -133,18 +169,10 @@ public class Connect4GUI implements Connect4Constants
 						
 		grid.setTranslateX(180);
 		grid.setTranslateY(100);
-	}
-	
-	/**
-	 * Uses the gameboard and status to update the gui,
-	 * returning an updated scene which can be displayed on a stage.
-	 *
-	 * @return The updated scene to display
-	 */
-	public Scene updateDisplay()
-	{
-		GridPane newGrid = new GridPane();
-		BorderPane newBorder = new BorderPane();
+		
+		// Every cell and its token are created once, and only recolored later
+		cells = new Circle[ROWS][COLUMNS];
+		renderedBoard = new String[ROWS][COLUMNS];
 		
 		for(int row = 0; row < ROWS; row++)
 		{
@@ -159,43 +187,82 @@ public class Connect4GUI implements Connect4Constants
 				
 				GridPane.setRowIndex(newRec, row);
 				GridPane.setColumnIndex(newRec, col);
-				newGrid.getChildren().addAll(newRec);
 				
-				if(visualBoard[row][col].equals("X"))
-				{
-					Circle circ = new Circle();
-					circ.setRadius(40);
-					circ.setFill(Color.BLACK);
-					GridPane.setRowIndex(circ, row);
-					GridPane.setColumnIndex(circ, col);
-					newGrid.getChildren().addAll(circ);
-					circ.setTranslateX(5);
-				}
-				else if(visualBoard[row][col].equals("O"))
-				{
-					Circle circ = new Circle();
-					circ.setRadius(40);
-					circ.setFill(Color.RED);
-					GridPane.setRowIndex(circ, row);
-					GridPane.setColumnIndex(circ, col);
-					newGrid.getChildren().addAll(circ);
-					circ.setTranslateX(5);
-				}
+				Circle circ = new Circle();
+				circ.setRadius(40);
+				circ.setFill(Color.TRANSPARENT);
+				GridPane.setRowIndex(circ, row);
+				GridPane.setColumnIndex(circ, col);
+				circ.setTranslateX(5);
+				
+				grid.getChildren().addAll(newRec, circ);
+				cells[row][col] = circ;
+				renderedBoard[row][col] = " ";
+			}
+		}
+	}
+	
+	/**
+	 * Brings the display up to date with the visual board,
+	 * recoloring only the cells which have changed since the
+	 * last update. Must be called on the JavaFX thread.
+	 *
+	 * @return the scene holding the display
+	 */
+	public synchronized Scene updateDisplay()
+	{
+		for(int row = 0; row < ROWS; row++)
+		{
+			for(int col = 0; col < COLUMNS; col++)
+			{
+				if(!visualBoard[row][col].equals(renderedBoard[row][col]))
+					renderCell(row, col);
 			}
 		}
-		StackPane newPane = new StackPane();
-		newGrid.setTranslateX(180);
-		newGrid.setTranslateY(100);
 		
-		newBorder.setTop(statusMsg);
-		BorderPane.setAlignment(statusMsg, Pos.CENTER);
-		statusMsg.setStyle("-fx-font: 24 arial;");
-		statusMsg.setTranslateY(10);
+		// A column is full once its top cell holds a token
+		for(int col = 0; col < COLUMNS; col++)
+		{
+			boolean full = !visualBoard[0][col].equals(" ");
+			
+			if(full != columnDisabled[col])
+			{
+				columnButtons[col].setDisable(full);
+				columnDisabled[col] = full;
+			}
+		}
+		
+		return scene;
+	}
+	
+	/**
+	 * Recolors a single cell to match the visual board.
+	 * 
+	 * @param row the row of the cell
+	 * @param col the column of the cell
+	 */
+	private void renderCell(int row, int col)
+	{
+		String marker = visualBoard[row][col];
 		
-		newPane.getChildren().addAll(newBorder, columnChoice, newGrid);
-		Scene updatedScene = new Scene(newPane, 1000, 700);
+		if(marker.equals("X"))
+			cells[row][col].setFill(Color.BLACK);
+		else if(marker.equals("O"))
+			cells[row][col].setFill(Color.RED);
+		else
+			cells[row][col].setFill(Color.TRANSPARENT);
 		
-		return updatedScene;
+		renderedBoard[row][col] = marker;
+	}
+	
+	/**
+	 * Returns the scene built by initDisplay.
+	 * 
+	 * @return the scene holding the display
+	 */
+	public Scene getScene()
+	{
+		return scene;
 	}
 	
 	/**
@@ -224,29 +291,119 @@ public class Connect4GUI implements Connect4Constants
 			else
 				desiredMove = 0;
 			
-			try 
-			{
-				if(myTurn)
-					sendMove(desiredMove); 
-
-			} 
-			catch (IOException e) 
-			{
-				System.out.println("Communication to Server has broken. "
-					+ "Please close out, restart the server, and try again");
-			}
+			if(myTurn)
+				playMove(desiredMove); 
         }  	
 	};
 	
+	/**
+	 * Draws the player's move straight away, predicting its row from
+	 * the confirmed moves so far, then sends it to the server. Moves
+	 * made out of turn, while another awaits the server's reply, or
+	 * into a full column are refused without being sent.
+	 * 
+	 * @param desiredMove the column to play in
+	 */
+	public void playMove(int desiredMove)
+	{
+		synchronized(this)
+		{
+			if(!myTurn || pendingColumn != -1)
+				return;
+			
+			if(!shadow.isValidMove(desiredMove))
+			{
+				updateStatus(columnFull);
+				return;
+			}
+			
+			int predictedRow = shadow.getLowestOpenRow(desiredMove);
+			
+			visualBoard[predictedRow][desiredMove] = myMarker;
+			pendingRow = predictedRow;
+			pendingColumn = desiredMove;
+		}
+		
+		// Draw the prediction in this frame, ahead of the reply
+		updateDisplay();
+		sendMove(desiredMove);
+	}
+	
+	/**
+	 * Records a move the server has accepted. If it differs from
+	 * the move predicted for this player, the prediction is removed.
+	 * 
+	 * @param column the column of the move
+	 * @param row the row the move landed in
+	 * @param marker the marker of the player who moved
+	 */
+	public synchronized void confirmMove(int column, int row, String marker)
+	{
+		if(pendingColumn != -1 && (pendingColumn != column || pendingRow != row))
+			visualBoard[pendingRow][pendingColumn] = " ";
+		
+		pendingRow = pendingColumn = -1;
+		
+		shadow.placeMarker(column);
+		visualBoard[row][column] = marker;
+	}
+	
+	/**
+	 * Replaces the whole board with a snapshot from the server,
+	 * after the connection has been made again. Any move awaiting
+	 * a reply is forgotten, and later moves go out on the new link.
+	 * 
+	 * @param position the position decoded from the snapshot, which
+	 *        the display takes over for its predictions
+	 * @param toServer the new link to the server
+	 */
+	public synchronized void restore(Connect4 position, DataOutputStream toServer)
+	{
+		this.toServer = toServer;
+		pendingRow = pendingColumn = -1;
+		shadow = position;
+		initBoard();
+		
+		for(int row = 0; row < ROWS; row++)
+		{
+			for(int col = 0; col < COLUMNS; col++)
+				visualBoard[row][col] = position.getCell(row, col);
+		}
+	}
+	
+	/**
+	 * Takes back the predicted move after the server has
+	 * rejected it, so the player may try again.
+	 */
+	public synchronized void rollbackMove()
+	{
+		if(pendingColumn != -1)
+			visualBoard[pendingRow][pendingColumn] = " ";
+		
+		pendingRow = pendingColumn = -1;
+	}
+	
 	/**
 	 * Takes the desired move of the player and sends it to the server.
+	 * The write happens on the sender thread, so a slow connection
+	 * never stalls the display.
 	 * 
 	 * @param desiredMove the column to play in
-	 * @throws IOException thrown if communication link fails
 	 */
-	public void sendMove(int desiredMove) throws IOException
+	public void sendMove(int desiredMove)
 	{
-		toServer.writeInt(desiredMove);
+		sender.execute(() ->
+		{
+			try
+			{
+				toServer.writeInt(desiredMove);
+			}
+			catch (IOException e) 
+			{
+				System.out.println("Communication to Server has broken. "
+					+ "Please close out, restart the server, and try again");
+			}
+		});
 	}
 	
 	/**
@@ -273,6 +430,9 @@ public class Connect4GUI implements Connect4Constants
 		c5.setOnAction(null);
 		c6.setOnAction(null);
 		c7.setOnAction(null);
+		
+		// Any move still queued is sent before the sender stops
+		sender.shutdown();
 	}
 	
 	/**